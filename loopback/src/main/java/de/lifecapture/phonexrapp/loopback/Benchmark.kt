@@ -0,0 +1,278 @@
+package de.lifecapture.phonexrapp.loopback
+
+import de.lifecapture.phonexrapp.stream.CaptureMetadataRing
+import de.lifecapture.phonexrapp.stream.DatagramTransport
+import de.lifecapture.phonexrapp.stream.DropReason
+import de.lifecapture.phonexrapp.stream.FrameFormat
+import de.lifecapture.phonexrapp.stream.FramePool
+import de.lifecapture.phonexrapp.stream.FrameProtocol
+import de.lifecapture.phonexrapp.stream.FrameSender
+import de.lifecapture.phonexrapp.stream.FrameTransport
+import de.lifecapture.phonexrapp.stream.RawFramePacker
+import de.lifecapture.phonexrapp.stream.StreamTransport
+import de.lifecapture.phonexrapp.stream.YuvPlanes
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.nio.channels.DatagramChannel
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Sends synthetic frames through the app's packer and [FrameSender] to a [LoopbackReceiver] in
+ * the same process and reports throughput, send latency and the allocation rate of the capture
+ * and sender threads. Everything after the warm-up counts.
+ */
+class Benchmark(private val options: Options) {
+
+    data class Options(
+        val width: Int = 1920,
+        val height: Int = 1080,
+        /** Frames per second offered to the sender, 0 offers them as fast as possible. */
+        val fps: Int = 30,
+        val seconds: Double = 10.0,
+        val warmupSeconds: Double = 2.0,
+        val version: Int = FrameProtocol.VERSION_2,
+        val checksums: Boolean = false,
+        val layout: SyntheticFrameSource.Layout = SyntheticFrameSource.Layout.SEMI_PLANAR,
+        /** Publishes a capture result for every frame, like the camera callback. */
+        val captureMetadata: Boolean = false,
+        /** Sends fragmented datagrams with [DatagramTransport] instead of using TCP. */
+        val datagrams: Boolean = false,
+        /** Data fragments per parity fragment with [datagrams], 0 for none. */
+        val parityGroup: Int = 0
+    )
+
+    data class Report(
+        val seconds: Double,
+        val sent: Long,
+        val sentBytes: Long,
+        /** Frames written including the warm-up, for comparison with [received]. */
+        val totalSent: Long,
+        val received: Long,
+        val checksumErrors: Long,
+        /** Received frames that carried capture metadata. */
+        val capturedFrames: Long,
+        /** Datagram frames the receiver dropped because fragments were missing. */
+        val incompleteFrames: Long,
+        /** Datagram fragments the receiver restored from parity. */
+        val recoveredFragments: Long,
+        val sendLatencyP50Us: Long,
+        val sendLatencyP99Us: Long,
+        val receiveLatencyP50Us: Long,
+        val receiveLatencyP99Us: Long,
+        /** Microseconds from the first to the last fragment of a datagram frame. */
+        val reassemblyLatencyP50Us: Long,
+        val reassemblyLatencyP99Us: Long,
+        val overwritten: Long,
+        val slowClose: Long,
+        val allocatedBytes: Long,
+        val receiver: String
+    ) {
+        val framesPerSecond: Double
+            get() = sent / seconds
+
+        val megabytesPerSecond: Double
+            get() = sentBytes / seconds / 1_000_000
+
+        val allocationRate: Double
+            get() = allocatedBytes / seconds
+
+        override fun toString(): String {
+            return String.format(
+                "frames/s %.1f MB/s %.1f send latency us p50 %d p99 %d receive latency us p50 %d p99 %d " +
+                        "reassembly latency us p50 %d p99 %d incomplete %d recovered fragments %d " +
+                        "overwritten %d slow close %d allocation B/s %.0f\nreceiver %s",
+                framesPerSecond, megabytesPerSecond, sendLatencyP50Us, sendLatencyP99Us,
+                receiveLatencyP50Us, receiveLatencyP99Us, reassemblyLatencyP50Us, reassemblyLatencyP99Us,
+                incompleteFrames, recoveredFragments, overwritten, slowClose, allocationRate, receiver
+            )
+        }
+    }
+
+    fun run(): Report {
+        val receiver = if (options.datagrams) {
+            val channel = DatagramChannel.open()
+            channel.socket().receiveBufferSize = RECEIVE_BUFFER_SIZE
+            channel.bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+            LoopbackReceiver(channel, localClock = true)
+        } else {
+            LoopbackReceiver(ServerSocket(0, 1, InetAddress.getLoopbackAddress()), localClock = true)
+        }
+        receiver.start()
+        val host = InetAddress.getLoopbackAddress().hostAddress
+        val transport: FrameTransport = if (options.datagrams) {
+            DatagramTransport.connect(host, receiver.port, parityGroup = options.parityGroup)
+        } else {
+            StreamTransport.connect(host, receiver.port)
+        }
+        val protocol = FrameProtocol.negotiate(
+            transport, options.version, if (options.checksums) FrameProtocol.CAP_CHECKSUM else 0
+        )
+        val sendError = AtomicReference<IOException?>()
+        val sender = FrameSender(transport, protocol) { sendError.set(it) }
+        sender.start()
+
+        val packer = RawFramePacker(protocol)
+        val metadata = if (options.captureMetadata) CaptureMetadataRing() else null
+        packer.captureMetadata = metadata
+        val pool = FramePool(FRAME_POOL_SLOTS, FrameFormat.frameSize(options.width, options.height))
+        val source = SyntheticFrameSource(options.width, options.height, options.layout)
+        val planes = YuvPlanes()
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val captureThread = Thread.currentThread().id
+        val periodNs = if (options.fps > 0) 1_000_000_000L / options.fps else 0L
+
+        val startNs = System.nanoTime()
+        val warmupEndNs = startNs + (options.warmupSeconds * 1e9).toLong()
+        val endNs = warmupEndNs + (options.seconds * 1e9).toLong()
+        var measuring = false
+        var sentBase = 0L
+        var sentBytesBase = 0L
+        var overwrittenBase = 0L
+        var slowCloseBase = 0L
+        var allocatedBase = 0L
+        var nextNs = startNs
+        while (sendError.get() == null) {
+            val now = System.nanoTime()
+            if (now >= endNs) {
+                break
+            }
+            if (!measuring && now >= warmupEndNs) {
+                measuring = true
+                sentBase = sender.sent
+                sentBytesBase = sender.sentBytes
+                overwrittenBase = sender.drops(DropReason.MAILBOX_OVERWRITE)
+                slowCloseBase = sender.drops(DropReason.SLOW_IMAGE_CLOSE)
+                allocatedBase = threads.getThreadAllocatedBytes(captureThread) +
+                        threads.getThreadAllocatedBytes(sender.id)
+                sender.sendLatency.reset()
+                receiver.latency.reset()
+                receiver.reassembler.latency.reset()
+            }
+            if (now < nextNs) {
+                LockSupport.parkNanos(nextNs - now)
+                continue
+            }
+            // Like a camera, skip frames instead of catching up after a stall.
+            nextNs = if (now - nextNs > periodNs) now + periodNs else nextNs + periodNs
+
+            val image = source.acquire()
+            if (image == null) {
+                if (periodNs == 0L) {
+                    LockSupport.parkNanos(IDLE_WAIT_NS)
+                } else {
+                    sender.countDrop(DropReason.SLOW_IMAGE_CLOSE)
+                }
+                continue
+            }
+            val timestampNs = System.nanoTime()
+            metadata?.publish(timestampNs, periodNs / 2, periodNs, periodNs / 4, 0.5f, 100)
+            image.fill(planes, timestampNs)
+            val frame = try {
+                packer.pack(pool, planes, image)
+            } finally {
+                planes.clear()
+            }
+            sender.offer(frame)
+        }
+        val elapsedNs = System.nanoTime() - warmupEndNs
+        val allocated = threads.getThreadAllocatedBytes(captureThread) +
+                threads.getThreadAllocatedBytes(sender.id) - allocatedBase
+        val sent = sender.sent - sentBase
+        val sentBytes = sender.sentBytes - sentBytesBase
+        val overwritten = sender.drops(DropReason.MAILBOX_OVERWRITE) - overwrittenBase
+        val slowClose = sender.drops(DropReason.SLOW_IMAGE_CLOSE) - slowCloseBase
+
+        sender.shutdown()
+        transport.close()
+        if (options.datagrams) {
+            // Datagrams carry no end of stream, wait until the last ones were taken.
+            var frames = -1L
+            while (frames != receiver.frames) {
+                frames = receiver.frames
+                Thread.sleep(DATAGRAM_DRAIN_MS)
+            }
+            receiver.shutdown()
+        } else {
+            receiver.join()
+        }
+        sendError.get()?.let { throw it }
+        receiver.error?.let { throw it }
+        if (receiver.captureMismatches > 0) {
+            throw IOException("Capture metadata of the wrong frame: " + receiver)
+        }
+
+        return Report(
+            elapsedNs / 1e9, sent, sentBytes, sender.sent, receiver.frames, receiver.checksumErrors,
+            receiver.capturedFrames, receiver.reassembler.incomplete, receiver.reassembler.recovered,
+            sender.sendLatency.valueAtPercentile(50.0), sender.sendLatency.valueAtPercentile(99.0),
+            receiver.latency.valueAtPercentile(50.0), receiver.latency.valueAtPercentile(99.0),
+            receiver.reassembler.latency.valueAtPercentile(50.0), receiver.reassembler.latency.valueAtPercentile(99.0),
+            overwritten, slowClose, allocated, receiver.toString()
+        )
+    }
+
+    companion object {
+        /** Same pool size as `CameraView`. */
+        private const val FRAME_POOL_SLOTS = 3
+
+        /** Wait for a free image when frames are offered as fast as possible. */
+        private const val IDLE_WAIT_NS = 50_000L
+
+        /** Asked for, the kernel may grant less (net.core.rmem_max). */
+        private const val RECEIVE_BUFFER_SIZE = 8 shl 20
+
+        /** Receiving stops once no frame arrived for this long after the sender stopped. */
+        private const val DATAGRAM_DRAIN_MS = 100L
+
+        fun parseOptions(args: Array<String>): Options {
+            var options = Options()
+            var i = 0
+            while (i < args.size) {
+                val name = args[i++]
+                if (name == "--checksums") {
+                    options = options.copy(checksums = true)
+                    continue
+                }
+                if (name == "--capture-metadata") {
+                    options = options.copy(captureMetadata = true)
+                    continue
+                }
+                if (name == "--datagrams") {
+                    options = options.copy(datagrams = true)
+                    continue
+                }
+                if (name == "--planar") {
+                    options = options.copy(layout = SyntheticFrameSource.Layout.PLANAR)
+                    continue
+                }
+                require(i < args.size) { "Missing value for $name" }
+                val value = args[i++]
+                options = when (name) {
+                    "--width" -> options.copy(width = value.toInt())
+                    "--height" -> options.copy(height = value.toInt())
+                    "--fps" -> options.copy(fps = value.toInt())
+                    "--seconds" -> options.copy(seconds = value.toDouble())
+                    "--warmup" -> options.copy(warmupSeconds = value.toDouble())
+                    "--version" -> options.copy(version = value.toInt())
+                    "--parity" -> options.copy(parityGroup = value.toInt())
+                    else -> throw IllegalArgumentException("Unknown option $name")
+                }
+            }
+            return options
+        }
+    }
+}
+
+/**
+ * Runs the benchmark, e.g. `--width 1920 --height 1080 --fps 60 --seconds 10 --version 2
+ * --checksums --planar --capture-metadata --datagrams --parity 8`.
+ */
+fun main(args: Array<String>) {
+    val options = Benchmark.parseOptions(args)
+    println(options)
+    println(Benchmark(options).run())
+}
@@ -0,0 +1,245 @@
+package de.lifecapture.phonexrapp.loopback
+
+import de.lifecapture.phonexrapp.stream.DatagramTransport
+import de.lifecapture.phonexrapp.stream.LatencyHistogram
+import java.io.IOException
+import java.nio.ByteBuffer
+import kotlin.math.min
+
+/**
+ * Puts the fragments of [DatagramTransport] back together.
+ *
+ * A few frames are assembled at the same time, so reordered fragments do not hurt. A frame that
+ * is still incomplete when a newer one completes is dropped and never waited for, as is a frame
+ * that needs a slot while all are taken by newer frames. One lost fragment per parity group is
+ * restored from the parity fragment.
+ */
+class FrameReassembler(slots: Int = DEFAULT_SLOTS) {
+    private class Partial {
+        var active = false
+        var frameId = 0
+        var frameSize = 0
+        var fragmentCount = 0
+        var payloadSize = 0
+        var parityGroup = 0
+        var received = 0
+        var firstNs = 0L
+        var data = ByteArray(0)
+        var have = BooleanArray(0)
+        var groupReceived = IntArray(0)
+        var parity = ByteArray(0)
+        var haveParity = BooleanArray(0)
+
+        fun fragmentLength(index: Int): Int {
+            return min(payloadSize, frameSize - index * payloadSize)
+        }
+
+        fun groupEnd(group: Int): Int {
+            return min((group + 1) * parityGroup, fragmentCount)
+        }
+    }
+
+    private val partials = Array(slots) { Partial() }
+    private var lastCompleted = 0
+    private var anyCompleted = false
+
+    /** Frames assembled completely. */
+    var completed = 0L
+        private set
+
+    /** Frames given up because newer frames completed first or needed their slot. */
+    var incomplete = 0L
+        private set
+
+    /** Data fragments restored from parity. */
+    var recovered = 0L
+        private set
+
+    /** Fragments of frames that were already completed or dropped. */
+    var late = 0L
+        private set
+
+    /** Microseconds from the first fragment of a frame to its completion. */
+    val latency = LatencyHistogram()
+
+    /** The last completed frame, valid until the next call of [add]. */
+    var frame = ByteArray(0)
+        private set
+
+    /**
+     * Adds the datagram in [fragment], received at [nowNs]. Returns the size of the frame it
+     * completed, which is then in [frame], or -1.
+     */
+    fun add(fragment: ByteBuffer, nowNs: Long): Int {
+        val start = fragment.position()
+        if (fragment.remaining() < DatagramTransport.FRAGMENT_HEADER_SIZE ||
+            fragment.get(start) != DatagramTransport.MAGIC[0] || fragment.get(start + 1) != DatagramTransport.MAGIC[1]
+        ) {
+            throw IOException("Not a frame fragment")
+        }
+        val type = fragment.get(start + 2).toInt()
+        val parityGroup = fragment.get(start + 3).toInt() and 0xff
+        val frameId = fragment.getInt(start + 4)
+        val index = fragment.getShort(start + 8).toInt() and 0xffff
+        val fragmentCount = fragment.getShort(start + 10).toInt() and 0xffff
+        val frameSize = fragment.getInt(start + 12)
+        val payloadSize = fragment.getShort(start + 16).toInt() and 0xffff
+        fragment.position(start + DatagramTransport.FRAGMENT_HEADER_SIZE)
+
+        if (anyCompleted && frameId - lastCompleted <= 0) {
+            late++
+            return -1
+        }
+        val partial = partialFor(frameId) ?: run {
+            late++
+            return -1
+        }
+        if (!partial.active) {
+            start(partial, frameId, frameSize, fragmentCount, payloadSize, parityGroup, nowNs)
+        }
+
+        val group: Int
+        if (type == DatagramTransport.FRAGMENT_PARITY) {
+            group = index
+            if (partial.haveParity[group]) {
+                return -1
+            }
+            fragment.get(partial.parity, group * payloadSize, fragment.remaining())
+            partial.haveParity[group] = true
+        } else {
+            if (partial.have[index]) {
+                return -1
+            }
+            fragment.get(partial.data, index * payloadSize, fragment.remaining())
+            partial.have[index] = true
+            partial.received++
+            if (parityGroup == 0) {
+                return complete(partial, nowNs)
+            }
+            group = index / parityGroup
+            partial.groupReceived[group]++
+        }
+        restore(partial, group)
+        return complete(partial, nowNs)
+    }
+
+    /** The partial frame of [frameId], else a free slot or the slot of an older frame. */
+    private fun partialFor(frameId: Int): Partial? {
+        var free: Partial? = null
+        var oldest: Partial? = null
+        for (partial in partials) {
+            if (!partial.active) {
+                if (free == null) {
+                    free = partial
+                }
+                continue
+            }
+            if (partial.frameId == frameId) {
+                return partial
+            }
+            if (oldest == null || partial.frameId - oldest.frameId < 0) {
+                oldest = partial
+            }
+        }
+        if (free != null) {
+            return free
+        }
+        if (oldest!!.frameId - frameId > 0) {
+            // Every slot holds a newer frame.
+            return null
+        }
+        oldest.active = false
+        incomplete++
+        return oldest
+    }
+
+    private fun start(
+        partial: Partial,
+        frameId: Int,
+        frameSize: Int,
+        fragmentCount: Int,
+        payloadSize: Int,
+        parityGroup: Int,
+        nowNs: Long
+    ) {
+        partial.active = true
+        partial.frameId = frameId
+        partial.frameSize = frameSize
+        partial.fragmentCount = fragmentCount
+        partial.payloadSize = payloadSize
+        partial.parityGroup = parityGroup
+        partial.received = 0
+        partial.firstNs = nowNs
+        if (partial.data.size < fragmentCount * payloadSize) {
+            partial.data = ByteArray(fragmentCount * payloadSize)
+        }
+        if (partial.have.size < fragmentCount) {
+            partial.have = BooleanArray(fragmentCount)
+        }
+        partial.have.fill(false, 0, fragmentCount)
+        val groups = if (parityGroup > 0) (fragmentCount + parityGroup - 1) / parityGroup else 0
+        if (partial.groupReceived.size < groups) {
+            partial.groupReceived = IntArray(groups)
+            partial.haveParity = BooleanArray(groups)
+        }
+        partial.groupReceived.fill(0, 0, groups)
+        partial.haveParity.fill(false, 0, groups)
+        if (partial.parity.size < groups * payloadSize) {
+            partial.parity = ByteArray(groups * payloadSize)
+        }
+    }
+
+    /** Restores the one missing data fragment of [group] from its parity, if possible. */
+    private fun restore(partial: Partial, group: Int) {
+        val first = group * partial.parityGroup
+        val end = partial.groupEnd(group)
+        if (!partial.haveParity[group] || partial.groupReceived[group] != end - first - 1) {
+            return
+        }
+        var missing = first
+        while (partial.have[missing]) {
+            missing++
+        }
+        val target = missing * partial.payloadSize
+        val length = partial.fragmentLength(missing)
+        System.arraycopy(partial.parity, group * partial.payloadSize, partial.data, target, length)
+        for (index in first until end) {
+            if (index == missing) {
+                continue
+            }
+            val source = index * partial.payloadSize
+            for (i in 0 until min(length, partial.fragmentLength(index))) {
+                partial.data[target + i] = (partial.data[target + i].toInt() xor partial.data[source + i].toInt()).toByte()
+            }
+        }
+        partial.have[missing] = true
+        partial.received++
+        partial.groupReceived[group]++
+        recovered++
+    }
+
+    private fun complete(partial: Partial, nowNs: Long): Int {
+        if (partial.received < partial.fragmentCount) {
+            return -1
+        }
+        partial.active = false
+        // Older frames will not be waited for.
+        for (other in partials) {
+            if (other.active && other.frameId - partial.frameId < 0) {
+                other.active = false
+                incomplete++
+            }
+        }
+        lastCompleted = partial.frameId
+        anyCompleted = true
+        completed++
+        latency.record((nowNs - partial.firstNs) / 1000)
+        frame = partial.data
+        return partial.frameSize
+    }
+
+    companion object {
+        /** Frames assembled at the same time. */
+        const val DEFAULT_SLOTS = 4
+    }
+}
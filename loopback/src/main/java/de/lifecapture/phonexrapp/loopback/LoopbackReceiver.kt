@@ -0,0 +1,503 @@
+package de.lifecapture.phonexrapp.loopback
+
+import de.lifecapture.phonexrapp.stream.ControlChannel
+import de.lifecapture.phonexrapp.stream.Crc32
+import de.lifecapture.phonexrapp.stream.FrameFormat
+import de.lifecapture.phonexrapp.stream.FrameProtocol
+import de.lifecapture.phonexrapp.stream.LatencyHistogram
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.OutputStream
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.DatagramChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+
+/**
+ * Reference receiver for the frame stream, see [FrameFormat]. Accepts one connection, answers
+ * the version 2 handshake and parses every frame until the phone disconnects.
+ *
+ * Frames are validated (lengths, checksums, sequence numbers) and counted but not kept. With
+ * [localClock] the sender runs in the same process, so the capture timestamps of version 2
+ * frames can be compared with [System.nanoTime] to measure the latency up to the receiver.
+ *
+ * Given a [DatagramChannel] instead, the receiver takes the fragments of a
+ * [de.lifecapture.phonexrapp.stream.DatagramTransport], parses the frames the [reassembler]
+ * completes and skips the ones it drops. It receives until [shutdown].
+ *
+ * With [FrameProtocol.CAP_CONTROL] agreed, [request] sends requests to the phone, see
+ * [ControlChannel]; their answers end up in [acks]. With [FrameProtocol.CAP_CLOCK] the receiver
+ * answers the phone's pings with [System.nanoTime], and frames stamped in that clock give the
+ * [receiverLatency] without sharing a process. With [FrameProtocol.CAP_RECEIPTS] it confirms
+ * every frame with the time it was complete, for the phone's
+ * [de.lifecapture.phonexrapp.stream.LatencyRecorder].
+ */
+class LoopbackReceiver private constructor(
+    private val serverSocket: ServerSocket?,
+    private val datagrams: DatagramChannel?,
+    private val maxVersion: Int,
+    private val capabilities: Int,
+    private val localClock: Boolean
+) : Thread("LoopbackReceiver") {
+    constructor(
+        serverSocket: ServerSocket,
+        maxVersion: Int = FrameProtocol.VERSION_2,
+        capabilities: Int = FrameProtocol.CAP_CHECKSUM or FrameProtocol.CAP_CONTROL or FrameProtocol.CAP_CLOCK or
+                FrameProtocol.CAP_RECEIPTS,
+        localClock: Boolean = false
+    ) : this(serverSocket, null, maxVersion, capabilities, localClock)
+
+    constructor(
+        datagrams: DatagramChannel,
+        maxVersion: Int = FrameProtocol.VERSION_2,
+        capabilities: Int = FrameProtocol.CAP_CHECKSUM or FrameProtocol.CAP_CONTROL or FrameProtocol.CAP_CLOCK or
+                FrameProtocol.CAP_RECEIPTS,
+        localClock: Boolean = false
+    ) : this(null, datagrams, maxVersion, capabilities, localClock)
+
+    /** Answer to a control request, see [FrameFormat.BLOCK_CONTROL]. */
+    data class Ack(val requestId: Int, val command: Int, val status: Int, val sequence: Int, val value: Long)
+
+    private var data = ByteArray(INITIAL_FRAME_CAPACITY)
+    private var frame = ByteBuffer.wrap(data)
+    private var nextSequence = -1
+
+    /** When the frame being parsed was received completely. */
+    private var receivedNs = 0L
+    private val pong = ByteBuffer.allocate(ControlChannel.REQUEST_SIZE)
+    private val receipt = ByteBuffer.allocate(ControlChannel.REQUEST_SIZE)
+
+    /** Capabilities the phone and the receiver agreed on. */
+    @Volatile
+    private var agreed = 0
+
+    val port: Int
+        get() = serverSocket?.localPort ?: datagrams!!.socket().localPort
+
+    /** Protocol version the phone and the receiver agreed on. */
+    @Volatile
+    var version = FrameProtocol.VERSION_1
+        private set
+
+    @Volatile
+    var frames = 0L
+        private set
+
+    @Volatile
+    var bytes = 0L
+        private set
+
+    @Volatile
+    var encodedFrames = 0L
+        private set
+
+    @Volatile
+    var checksumErrors = 0L
+        private set
+
+    /** Frames missing between the sequence numbers of version 2 raw and encoded frames. */
+    @Volatile
+    var sequenceGaps = 0L
+        private set
+
+    /** Frames whose sensor data carried a head pose. */
+    @Volatile
+    var posedFrames = 0L
+        private set
+
+    /** Frames with capture metadata, see [FrameFormat.BLOCK_CAPTURE]. */
+    @Volatile
+    var capturedFrames = 0L
+        private set
+
+    /** Capture metadata blocks whose timestamp is not the frame's. */
+    @Volatile
+    var captureMismatches = 0L
+        private set
+
+    /** Control frames, they are not counted in [frames]. */
+    @Volatile
+    var controlFrames = 0L
+        private set
+
+    /** Answers of the phone by request id. */
+    val acks = ConcurrentHashMap<Int, Ack>()
+
+    private val requestIds = AtomicInteger()
+
+    /** Where requests go once the handshake agreed on [FrameProtocol.CAP_CONTROL]. */
+    @Volatile
+    private var requestStream: OutputStream? = null
+    @Volatile
+    private var phoneAddress: SocketAddress? = null
+
+    /** Why receiving stopped early, null after a clean disconnect. */
+    @Volatile
+    var error: IOException? = null
+        private set
+
+    /** Microseconds from capture to the frame being received completely, with [localClock]. */
+    val latency = LatencyHistogram()
+
+    /** Frames with their capture time in the receiver's clock, see [FrameFormat.FLAG_RECEIVER_TIME]. */
+    @Volatile
+    var syncedFrames = 0L
+        private set
+
+    /** Microseconds from capture to the frame being received, by the capture time in the receiver's clock. */
+    val receiverLatency = LatencyHistogram()
+
+    /** Pings of the phone answered. */
+    @Volatile
+    var pings = 0L
+        private set
+
+    /** Frames confirmed to the phone. */
+    @Volatile
+    var receipts = 0L
+        private set
+
+    /** Reassembles datagram frames, it counts the completed and the dropped ones. */
+    val reassembler = FrameReassembler()
+
+    @Volatile
+    private var stopping = false
+
+    override fun run() {
+        if (datagrams != null) {
+            try {
+                receiveDatagrams(datagrams)
+            } catch (e: ClosedChannelException) {
+                if (!stopping) {
+                    error = e
+                }
+            } catch (e: IOException) {
+                error = e
+            } finally {
+                datagrams.close()
+            }
+            return
+        }
+        try {
+            serverSocket!!.accept().use { receive(it) }
+        } catch (e: IOException) {
+            error = e
+        } finally {
+            serverSocket!!.close()
+        }
+    }
+
+    /** Stops a datagram receiver, which cannot tell when the phone is done, and waits for it. */
+    fun shutdown() {
+        stopping = true
+        datagrams?.close()
+        join()
+    }
+
+    private fun receive(socket: Socket) {
+        socket.tcpNoDelay = true
+        val buffered = BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE)
+        val input = DataInputStream(buffered)
+
+        buffered.mark(HELLO_SIZE)
+        val magic = ByteArray(HELLO_MAGIC.size)
+        if (buffered.read(magic) < 0) {
+            return
+        }
+        if (!magic.contentEquals(HELLO_MAGIC)) {
+            // No handshake, the first bytes belong to a version 1 frame.
+            buffered.reset()
+            receiveV1(input)
+            return
+        }
+        val offered = input.readUnsignedByte()
+        input.readUnsignedByte()
+        val offeredCapabilities = input.readUnsignedShort()
+        val reply = reply(offered, offeredCapabilities)
+        socket.getOutputStream().write(reply.array())
+        socket.getOutputStream().flush()
+        if (reply.getShort(6).toInt() and CONTROL_CAPABILITIES != 0) {
+            requestStream = socket.getOutputStream()
+        }
+        if (version >= FrameFormat.VERSION_2) {
+            receiveV2(input)
+        } else {
+            receiveV1(input)
+        }
+    }
+
+    private fun receiveDatagrams(channel: DatagramChannel) {
+        val fragment = ByteBuffer.allocate(MAX_DATAGRAM_SIZE)
+        var handshaken = false
+        while (true) {
+            fragment.clear()
+            val sender = channel.receive(fragment)
+            fragment.flip()
+            val size = reassembler.add(fragment, System.nanoTime())
+            if (size < 0) {
+                continue
+            }
+            val completed = reassembler.frame
+            if (!handshaken) {
+                handshaken = true
+                if (size == HELLO_SIZE && completed.copyOf(HELLO_MAGIC.size).contentEquals(HELLO_MAGIC)) {
+                    val offered = completed[4].toInt() and 0xff
+                    val offeredCapabilities = ByteBuffer.wrap(completed).getShort(6).toInt() and 0xffff
+                    val reply = reply(offered, offeredCapabilities)
+                    channel.send(reply, sender)
+                    if (reply.getShort(6).toInt() and CONTROL_CAPABILITIES != 0) {
+                        phoneAddress = sender
+                    }
+                    continue
+                }
+            }
+            val input = DataInputStream(ByteArrayInputStream(completed, 0, size))
+            if (version >= FrameFormat.VERSION_2) {
+                receiveV2(input)
+            } else {
+                receiveV1(input)
+            }
+        }
+    }
+
+    /**
+     * Sends a [ControlChannel] request to the phone and returns its id, the answer shows up in
+     * [acks]. Fails if the phone did not agree to control requests (yet).
+     */
+    fun request(command: Int, argument: Long): Int {
+        val requestId = requestIds.incrementAndGet()
+        val request = ByteBuffer.allocate(ControlChannel.REQUEST_SIZE)
+        ControlChannel.putRequest(request, requestId, command, argument)
+        request.flip()
+        sendControl(request)
+        return requestId
+    }
+
+    /** Sends a message of the [ControlChannel] layout to the phone. */
+    @Synchronized
+    private fun sendControl(message: ByteBuffer) {
+        val stream = requestStream
+        val address = phoneAddress
+        if (stream != null) {
+            stream.write(message.array(), 0, message.remaining())
+            stream.flush()
+        } else if (address != null) {
+            datagrams!!.send(message, address)
+        } else {
+            throw IOException("No control channel")
+        }
+    }
+
+    /** Agrees on the version and the capabilities the phone offered. */
+    private fun reply(offered: Int, offeredCapabilities: Int): ByteBuffer {
+        version = min(offered, maxVersion)
+        agreed = offeredCapabilities and capabilities
+        val reply = ByteBuffer.allocate(HELLO_SIZE)
+        reply.put(HELLO_MAGIC)
+        reply.put(version.toByte())
+        reply.put(0)
+        reply.putShort(agreed.toShort())
+        reply.flip()
+        return reply
+    }
+
+    private fun receiveV1(input: DataInputStream) {
+        while (true) {
+            val first = input.read()
+            if (first < 0) {
+                return
+            }
+            val type = input.readUnsignedByte()
+            if (first != FrameFormat.MAGIC[0].toInt()) {
+                throw IOException("Lost frame sync")
+            }
+            val frameSize = when (type) {
+                FrameFormat.MAGIC[1].toInt() -> {
+                    input.readUnsignedShort() // row stride
+                    input.readUnsignedShort() // height
+                    input.readUnsignedShort() // width
+                    val planeSize = input.readInt()
+                    skip(input, planeSize + FrameFormat.SENSOR_SIZE)
+                    FrameFormat.frameSize(planeSize)
+                }
+                FrameFormat.ENCODED_MAGIC[1].toInt() -> {
+                    input.readShort() // flags
+                    input.readLong() // presentation time
+                    val payloadSize = input.readInt()
+                    skip(input, payloadSize)
+                    encodedFrames++
+                    FrameFormat.encodedFrameSize(payloadSize)
+                }
+                else -> throw IOException("Unknown frame type $type")
+            }
+            bytes += frameSize
+            frames++
+        }
+    }
+
+    private fun receiveV2(input: DataInputStream) {
+        while (true) {
+            val first = input.read()
+            if (first < 0) {
+                return
+            }
+            val length = (first shl 24) or (input.readUnsignedByte() shl 16) or
+                    (input.readUnsignedShort())
+            if (length > data.size) {
+                data = ByteArray(length)
+                frame = ByteBuffer.wrap(data)
+            }
+            input.readFully(data, 0, length)
+            receivedNs = System.nanoTime()
+            bytes += 4 + length
+            if (!parseV2(length)) {
+                controlFrames++
+                continue
+            }
+            if (localClock) {
+                latency.record((System.nanoTime() - frame.getLong(V2_TIMESTAMP)) / 1000)
+            }
+            if (agreed and FrameProtocol.CAP_RECEIPTS != 0) {
+                receipt.clear()
+                ControlChannel.putReceipt(receipt, frame.getInt(V2_SEQUENCE), receivedNs)
+                receipt.flip()
+                sendControl(receipt)
+                receipts++
+            }
+            frames++
+        }
+    }
+
+    /**
+     * Validates one version 2 frame of [length] bytes, without its length field, in [frame].
+     * Returns false for control frames, whose answers go to [acks].
+     */
+    private fun parseV2(length: Int): Boolean {
+        val headerLength = (frame.getShort(V2_HEADER_LENGTH).toInt() and 0xffff) - 4
+        val flags = frame.getShort(V2_FLAGS).toInt() and 0xffff
+        val planeCount = frame.get(V2_PLANE_COUNT).toInt() and 0xff
+        val trailerLength = frame.getInt(V2_TRAILER_LENGTH)
+        var payloadSize = 0
+        for (i in 0 until planeCount) {
+            payloadSize += frame.getInt(V2_PLANES + i * FrameFormat.V2_PLANE_SIZE)
+        }
+        if (headerLength + payloadSize + trailerLength != length) {
+            throw IOException("Frame length $length does not match its header")
+        }
+        if (flags and FrameFormat.FLAG_RECEIVER_TIME != 0) {
+            val receiverTimeNs = frame.getLong(V2_PLANES + planeCount * FrameFormat.V2_PLANE_SIZE)
+            receiverLatency.record((receivedNs - receiverTimeNs) / 1000)
+            syncedFrames++
+        }
+
+        val type = frame.get(V2_TYPE).toInt()
+        // Control frames carry the number of the next frame without taking it.
+        if (type != FrameFormat.TYPE_CONTROL) {
+            val sequence = frame.getInt(V2_SEQUENCE)
+            if (nextSequence >= 0 && sequence != nextSequence) {
+                sequenceGaps += sequence - nextSequence
+            }
+            nextSequence = sequence + 1
+        }
+        if (type == FrameFormat.TYPE_ENCODED) {
+            encodedFrames++
+        }
+        if (flags and FrameFormat.FLAG_CHECKSUM != 0) {
+            val expected = frame.getInt(headerLength - 4)
+            val crc = Crc32.finish(Crc32.update(Crc32.INITIAL, frame, headerLength, headerLength + payloadSize))
+            if (crc != expected) {
+                checksumErrors++
+            }
+        }
+
+        var block = headerLength + payloadSize
+        while (block + FrameFormat.BLOCK_HEADER_SIZE <= length) {
+            val blockType = frame.get(block).toInt() and 0xff
+            val blockLength = frame.getShort(block + 2).toInt() and 0xffff
+            if (blockType == FrameFormat.BLOCK_SENSOR &&
+                frame.getInt(block + FrameFormat.BLOCK_HEADER_SIZE + SENSOR_FLAGS) and
+                FrameFormat.SENSOR_POSE_VALID != 0
+            ) {
+                posedFrames++
+            }
+            if (blockType == FrameFormat.BLOCK_CAPTURE) {
+                capturedFrames++
+                if (frame.getLong(block + FrameFormat.BLOCK_HEADER_SIZE) != frame.getLong(V2_TIMESTAMP)) {
+                    captureMismatches++
+                }
+            }
+            if (blockType == FrameFormat.BLOCK_PING) {
+                val pingId = frame.getInt(block + FrameFormat.BLOCK_HEADER_SIZE)
+                pong.clear()
+                ControlChannel.putPong(pong, pingId, System.nanoTime() - receivedNs, receivedNs)
+                pong.flip()
+                sendControl(pong)
+                pings++
+            }
+            if (blockType == FrameFormat.BLOCK_CONTROL) {
+                val ack = block + FrameFormat.BLOCK_HEADER_SIZE
+                val requestId = frame.getInt(ack)
+                acks[requestId] = Ack(
+                    requestId, frame.get(ack + 4).toInt() and 0xff, frame.get(ack + 5).toInt() and 0xff,
+                    frame.getInt(ack + 8), frame.getLong(ack + 12)
+                )
+            }
+            block += FrameFormat.BLOCK_HEADER_SIZE + blockLength
+        }
+        return type != FrameFormat.TYPE_CONTROL
+    }
+
+    private fun skip(input: DataInputStream, count: Int) {
+        var remaining = count
+        while (remaining > 0) {
+            val n = input.read(data, 0, min(remaining, data.size))
+            if (n < 0) {
+                throw EOFException("Frame cut off")
+            }
+            remaining -= n
+        }
+    }
+
+    override fun toString(): String {
+        return "version " + version + " frames " + frames + " bytes " + bytes +
+                " encoded " + encodedFrames + " gaps " + sequenceGaps +
+                " checksum errors " + checksumErrors + " posed " + posedFrames +
+                " captured " + capturedFrames + " capture mismatches " + captureMismatches +
+                " control " + controlFrames + " pings " + pings + " synced " + syncedFrames + " receipts " + receipts +
+                if (datagrams == null) "" else " completed " + reassembler.completed +
+                        " incomplete " + reassembler.incomplete + " recovered fragments " + reassembler.recovered
+    }
+
+    companion object {
+        private val HELLO_MAGIC = "PXRH".toByteArray(Charsets.US_ASCII)
+
+        /** Capabilities that need messages to the phone. */
+        private const val CONTROL_CAPABILITIES =
+            FrameProtocol.CAP_CONTROL or FrameProtocol.CAP_CLOCK or FrameProtocol.CAP_RECEIPTS
+        private const val HELLO_SIZE = 8
+        private const val READ_BUFFER_SIZE = 1 shl 16
+        private const val INITIAL_FRAME_CAPACITY = 1 shl 20
+        private const val MAX_DATAGRAM_SIZE = 1 shl 16
+
+        // Version 2 field offsets, counted without the frame length field.
+        private const val V2_TYPE = 1
+        private const val V2_HEADER_LENGTH = 2
+        private const val V2_SEQUENCE = 4
+        private const val V2_TIMESTAMP = 8
+        private const val V2_FLAGS = 24
+        private const val V2_PLANE_COUNT = 26
+        private const val V2_TRAILER_LENGTH = 28
+        private const val V2_PLANES = FrameFormat.V2_FIXED_HEADER_SIZE - 4
+
+        /** Offset of the sensor flags in the sensor data. */
+        private const val SENSOR_FLAGS = 36
+    }
+}
@@ -0,0 +1,111 @@
+package de.lifecapture.phonexrapp.loopback
+
+import de.lifecapture.phonexrapp.stream.YuvPlanes
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Stands in for the camera's `ImageReader`: a fixed set of YUV 4:2:0 images in direct buffers,
+ * laid out like camera output with padded rows. An image goes back to the source when it is
+ * closed, so a sender that holds images too long runs the source dry just like the camera.
+ */
+class SyntheticFrameSource(
+    val width: Int,
+    val height: Int,
+    val layout: Layout = Layout.SEMI_PLANAR,
+    images: Int = MAX_IMAGES
+) {
+    enum class Layout {
+        /** NV12 as most Camera2 devices deliver it: the U and V planes interleave. */
+        SEMI_PLANAR,
+
+        /** I420, three separate planes. */
+        PLANAR
+    }
+
+    private val free = ArrayBlockingQueue<Image>(images)
+
+    init {
+        repeat(images) {
+            free.add(Image())
+        }
+    }
+
+    /** Next free image, or null while all of them are still held by the sender. */
+    fun acquire(): Image? {
+        return free.poll()
+    }
+
+    inner class Image : AutoCloseable {
+        private val rowStride = align(width, ROW_ALIGNMENT)
+        private val chromaHeight = (height + 1) shr 1
+        private val chromaWidth = (width + 1) shr 1
+        private val y = ByteBuffer.allocateDirect(rowStride * (height - 1) + width)
+        private val u: ByteBuffer
+        private val v: ByteBuffer
+        private val uvRowStride: Int
+        private val uvPixelStride: Int
+
+        init {
+            if (layout == Layout.SEMI_PLANAR) {
+                // Both chroma planes view the same memory, V one byte behind U.
+                uvRowStride = rowStride
+                uvPixelStride = 2
+                val planeSize = uvRowStride * (chromaHeight - 1) + chromaWidth * 2 - 1
+                val uv = ByteBuffer.allocateDirect(planeSize + 1)
+                uv.limit(planeSize)
+                u = uv.slice()
+                uv.limit(planeSize + 1).position(1)
+                v = uv.slice()
+            } else {
+                uvRowStride = align(chromaWidth, ROW_ALIGNMENT)
+                uvPixelStride = 1
+                val planeSize = uvRowStride * (chromaHeight - 1) + chromaWidth
+                u = ByteBuffer.allocateDirect(planeSize)
+                v = ByteBuffer.allocateDirect(planeSize)
+            }
+            fill(y, 16)
+            fill(u, 128)
+            fill(v, 128)
+        }
+
+        /** Fills [planes] like `CameraView.sendData` does for a camera image. */
+        fun fill(planes: YuvPlanes, timestampNs: Long) {
+            planes.width = width
+            planes.height = height
+            planes.timestampNs = timestampNs
+            planes.format = YUV_420_888
+            // The packer may shrink limits, a camera hands out fresh buffer views per image.
+            y.clear()
+            u.clear()
+            v.clear()
+            planes.setPlane(0, y, rowStride, 1)
+            planes.setPlane(1, u, uvRowStride, uvPixelStride)
+            planes.setPlane(2, v, uvRowStride, uvPixelStride)
+        }
+
+        override fun close() {
+            free.offer(this)
+        }
+
+        private fun fill(buffer: ByteBuffer, base: Int) {
+            for (i in 0 until buffer.capacity()) {
+                buffer.put(i, (base + (i and 0x3f)).toByte())
+            }
+        }
+    }
+
+    companion object {
+        /** Images of the camera's reader, see `CameraConnectionFragment`. */
+        const val MAX_IMAGES = 4
+
+        private const val ROW_ALIGNMENT = 64
+
+        /** `ImageFormat.YUV_420_888`. */
+        private const val YUV_420_888 = 0x23
+
+        private fun align(value: Int, alignment: Int): Int {
+            return (value + alignment - 1) / alignment * alignment
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package de.lifecapture.phonexrapp.loopback
+
+import de.lifecapture.phonexrapp.stream.DatagramTransport
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.util.Random
+
+/**
+ * Fragments frames with [DatagramTransport] over the loopback interface and loses some of the
+ * datagrams on purpose before they reach [FrameReassembler].
+ */
+class FrameReassemblerTest {
+    private val receiver = DatagramChannel.open().bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+
+    @After
+    fun closeReceiver() {
+        receiver.close()
+    }
+
+    private fun transport(parityGroup: Int): DatagramTransport {
+        val channel = DatagramChannel.open()
+        channel.connect(receiver.localAddress)
+        return DatagramTransport(channel, MTU, parityGroup)
+    }
+
+    /** A frame of three segments, like a packed raw frame: header, planes and trailer. */
+    private fun segments(seed: Long): Array<ByteBuffer> {
+        val random = Random(seed)
+        return arrayOf(36, 1000, 52).map {
+            val bytes = ByteArray(it)
+            random.nextBytes(bytes)
+            ByteBuffer.allocateDirect(it).put(bytes).flip() as ByteBuffer
+        }.toTypedArray()
+    }
+
+    private fun concatenate(segments: Array<ByteBuffer>): ByteArray {
+        val out = ByteBuffer.allocate(segments.sumOf { it.limit() })
+        for (segment in segments) {
+            out.put(segment.duplicate().clear() as ByteBuffer)
+        }
+        return out.array()
+    }
+
+    /** Sends one frame and returns its datagrams. */
+    private fun send(transport: DatagramTransport, segments: Array<ByteBuffer>): MutableList<ByteBuffer> {
+        val before = transport.fragments
+        transport.write(segments, segments.size)
+        return MutableList((transport.fragments - before).toInt()) {
+            val datagram = ByteBuffer.allocate(MTU)
+            receiver.receive(datagram)
+            datagram.flip() as ByteBuffer
+        }
+    }
+
+    private fun isParity(datagram: ByteBuffer): Boolean {
+        return datagram.get(2).toInt() == DatagramTransport.FRAGMENT_PARITY
+    }
+
+    @Test
+    fun reorderedFragments_makeTheFrame() {
+        transport(0).use { transport ->
+            val segments = segments(1)
+            val datagrams = send(transport, segments)
+            // 1088 bytes at 152 per fragment.
+            assertEquals(8L, datagrams.size.toLong())
+            for (segment in segments) {
+                assertFalse(segment.hasRemaining())
+                assertEquals(segment.capacity().toLong(), segment.limit().toLong())
+            }
+            datagrams.shuffle(Random(2))
+            val reassembler = FrameReassembler()
+            var size = -1
+            for (datagram in datagrams) {
+                size = reassembler.add(datagram, 0)
+            }
+            assertEquals(1088L, size.toLong())
+            assertArrayEquals(concatenate(segments), reassembler.frame.copyOf(size))
+            assertEquals(1L, reassembler.completed)
+        }
+    }
+
+    @Test
+    fun oneLostFragmentPerGroup_isRestored() {
+        transport(3).use { transport ->
+            val segments = segments(3)
+            val datagrams = send(transport, segments)
+            // 8 data fragments in groups of 3, 3 parity fragments.
+            assertEquals(11L, datagrams.size.toLong())
+            // Lose the second fragment of every group, the last one is short.
+            val kept = datagrams.filter { datagram ->
+                isParity(datagram) || datagram.getShort(8).toInt() % 3 != 1
+            }
+            val reassembler = FrameReassembler()
+            val size = kept.map { reassembler.add(it, 0) }.last { it >= 0 }
+            assertArrayEquals(concatenate(segments), reassembler.frame.copyOf(size))
+            assertEquals(3L, reassembler.recovered)
+        }
+    }
+
+    @Test
+    fun incompleteFrame_isDroppedForNewerOne() {
+        transport(4).use { transport ->
+            val first = send(transport, segments(4))
+            val secondSegments = segments(5)
+            val second = send(transport, secondSegments)
+            val reassembler = FrameReassembler()
+            // Two fragments of one group are more than parity can restore.
+            first.removeAt(1)
+            first.removeAt(1)
+            val late = first.removeAt(first.size - 1)
+            for (datagram in first) {
+                assertEquals(-1L, reassembler.add(datagram, 0).toLong())
+            }
+            // The last data fragment completes the frame, its parity fragment comes too late.
+            second.removeAt(second.size - 1)
+            val size = second.map { reassembler.add(it, 1000) }.last()
+            assertArrayEquals(concatenate(secondSegments), reassembler.frame.copyOf(size))
+            assertEquals(1L, reassembler.incomplete)
+            assertEquals(-1L, reassembler.add(late, 2000).toLong())
+            assertEquals(1L, reassembler.late)
+            assertEquals(1L, reassembler.completed)
+        }
+    }
+
+    @Test
+    fun tooManyFragments_failsTheWrite() {
+        transport(0).use { transport ->
+            val huge = ByteBuffer.allocateDirect(152 * DatagramTransport.MAX_FRAGMENTS + 1)
+            try {
+                transport.write(arrayOf(huge), 1)
+                fail("Wrote a frame of " + huge.capacity() + " bytes")
+            } catch (e: IOException) {
+                // Expected.
+            }
+        }
+    }
+
+    companion object {
+        /** 152 bytes of frame data per fragment. */
+        private const val MTU = 200
+    }
+}
@@ -0,0 +1,212 @@
+package de.lifecapture.phonexrapp.loopback
+
+import de.lifecapture.phonexrapp.stream.ControlChannel
+import de.lifecapture.phonexrapp.stream.DatagramTransport
+import de.lifecapture.phonexrapp.stream.FramePool
+import de.lifecapture.phonexrapp.stream.FrameProtocol
+import de.lifecapture.phonexrapp.stream.FrameSender
+import de.lifecapture.phonexrapp.stream.FrameTransport
+import de.lifecapture.phonexrapp.stream.LatencyRecorder
+import de.lifecapture.phonexrapp.stream.LatencyStage
+import de.lifecapture.phonexrapp.stream.RawFramePacker
+import de.lifecapture.phonexrapp.stream.StreamTransport
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+
+/**
+ * Round trips synthetic frames through the app's sender and the reference receiver, so a
+ * change of the wire format on one side only shows up here.
+ */
+class LoopbackReceiverTest {
+    private fun run(options: Benchmark.Options): Benchmark.Report {
+        return Benchmark(options.copy(width = 640, height = 481, fps = 120, seconds = 0.5, warmupSeconds = 0.0)).run()
+    }
+
+    @Test
+    fun version1_receivesEveryFrame() {
+        val report = run(Benchmark.Options(version = FrameProtocol.VERSION_1))
+        assertTrue(report.totalSent > 0)
+        assertEquals(report.totalSent, report.received)
+    }
+
+    @Test
+    fun version1_planarIsPackedToNv12() {
+        val report = run(Benchmark.Options(version = FrameProtocol.VERSION_1, layout = SyntheticFrameSource.Layout.PLANAR))
+        assertTrue(report.totalSent > 0)
+        assertEquals(report.totalSent, report.received)
+    }
+
+    @Test
+    fun version2_semiPlanarWithChecksums() {
+        val report = run(Benchmark.Options(checksums = true))
+        assertTrue(report.totalSent > 0)
+        assertEquals(report.totalSent, report.received)
+        assertEquals(0L, report.checksumErrors)
+    }
+
+    @Test
+    fun version2_planarWithChecksums() {
+        val report = run(Benchmark.Options(checksums = true, layout = SyntheticFrameSource.Layout.PLANAR))
+        assertEquals(report.totalSent, report.received)
+        assertEquals(0L, report.checksumErrors)
+    }
+
+    @Test
+    fun version2_captureMetadataOnEveryFrame() {
+        val report = run(Benchmark.Options(captureMetadata = true))
+        assertTrue(report.totalSent > 0)
+        assertEquals(report.received, report.capturedFrames)
+    }
+
+    @Test
+    fun datagrams_completeFramesAreIntact() {
+        val report = run(Benchmark.Options(checksums = true, datagrams = true, parityGroup = 8))
+        assertTrue(report.received > 0)
+        assertTrue(report.received + report.incompleteFrames <= report.totalSent)
+        assertEquals(0L, report.checksumErrors)
+    }
+
+    /**
+     * Connects like the app does, with control requests, answers every request with its
+     * argument and checks what the receiver makes of the answers.
+     */
+    private fun control(receiver: LoopbackReceiver, connect: () -> FrameTransport) {
+        receiver.start()
+        val transport = connect()
+        val protocol = FrameProtocol.negotiate(transport, FrameProtocol.VERSION_2, FrameProtocol.CAP_CONTROL)
+        assertTrue(protocol.capabilities and FrameProtocol.CAP_CONTROL != 0)
+        val sender = FrameSender(transport, protocol) {}
+        sender.start()
+        val channel = ControlChannel(transport, sender, protocol) { channel, requestId, command, argument ->
+            channel.acknowledge(requestId, command, ControlChannel.STATUS_APPLIED, argument)
+        }
+        channel.start()
+        try {
+            val bitRate = receiver.request(ControlChannel.COMMAND_BIT_RATE, 4_000_000)
+            val unknown = receiver.request(99, 0)
+            val deadline = System.nanoTime() + 10_000_000_000L
+            while (receiver.acks.size < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(5)
+            }
+            val ack = receiver.acks[bitRate]!!
+            assertEquals(ControlChannel.COMMAND_BIT_RATE.toLong(), ack.command.toLong())
+            assertEquals(ControlChannel.STATUS_APPLIED.toLong(), ack.status.toLong())
+            assertEquals(4_000_000L, ack.value)
+            assertEquals(ControlChannel.STATUS_INVALID.toLong(), receiver.acks[unknown]!!.status.toLong())
+            // Answers take no sequence number of their own.
+            assertEquals(0L, protocol.peekSequence().toLong())
+            assertEquals(2L, channel.requests)
+        } finally {
+            sender.shutdown()
+            transport.close()
+            channel.join(10_000)
+        }
+        assertFalse(channel.isAlive)
+    }
+
+    @Test
+    fun control_requestsAreAcknowledgedOverTcp() {
+        val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        val receiver = LoopbackReceiver(server)
+        control(receiver) { StreamTransport.connect(server.inetAddress.hostAddress, receiver.port) }
+        receiver.join(10_000)
+        assertNull(receiver.error)
+        assertEquals(2L, receiver.controlFrames)
+        assertEquals(0L, receiver.frames)
+    }
+
+    @Test
+    fun control_requestsAreAcknowledgedOverUdp() {
+        val receiver = LoopbackReceiver(DatagramChannel.open().bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0)))
+        control(receiver) { DatagramTransport.connect(InetAddress.getLoopbackAddress().hostAddress, receiver.port) }
+        receiver.shutdown()
+        assertNull(receiver.error)
+        assertEquals(2L, receiver.controlFrames)
+        assertEquals(0L, receiver.frames)
+    }
+
+    /**
+     * Syncs the clock like the app does, sends stamped frames and follows them through every
+     * stage of the latency recorder by the receiver's receipts.
+     */
+    @Test
+    fun clock_framesAreTimedUpToTheReceiver() {
+        val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        val receiver = LoopbackReceiver(server)
+        receiver.start()
+        val transport = StreamTransport.connect(server.inetAddress.hostAddress, receiver.port)
+        val protocol = FrameProtocol.negotiate(
+            transport, FrameProtocol.VERSION_2, FrameProtocol.CAP_CLOCK or FrameProtocol.CAP_RECEIPTS
+        )
+        val clock = protocol.clock!!
+        val recorder = LatencyRecorder()
+        val sender = FrameSender(transport, protocol) {}
+        sender.latencyRecorder = recorder
+        sender.start()
+        val channel = ControlChannel(transport, sender, protocol, null)
+        channel.start()
+        try {
+            val deadline = System.nanoTime() + 10_000_000_000L
+            while (clock.exchanges < 4 && System.nanoTime() < deadline) {
+                channel.ping()
+                Thread.sleep(5)
+            }
+            // Both ends read the same clock here, so the estimate has to come out near zero.
+            assertTrue(clock.synced)
+            assertTrue(Math.abs(clock.offsetNs) < 1_000_000)
+
+            val packer = RawFramePacker(protocol)
+            val pool = FramePool(2, 64 * 48 * 3 / 2 + 256)
+            repeat(3) { index ->
+                val data = ByteBuffer.allocateDirect(64 * 48 * 3 / 2)
+                val capturedNs = System.nanoTime()
+                val frame = packer.packNv21(pool, data, 64, 48, capturedNs, NV21, null)
+                recorder.onPacked(frame, capturedNs - 1_000_000, capturedNs)
+                sender.offer(frame)
+                // Offered frames replace each other until sent.
+                while (receiver.frames <= index && System.nanoTime() < deadline) {
+                    Thread.sleep(5)
+                }
+            }
+            // Receipts come in on the channel thread, collect intervals until they are all in.
+            val counts = LongArray(LatencyStage.values().size)
+            var totalMaxUs = 0L
+            while (counts[LatencyStage.TOTAL.ordinal] < 3 && System.nanoTime() < deadline) {
+                Thread.sleep(5)
+                val interval = recorder.export()
+                for (stage in LatencyStage.values()) {
+                    counts[stage.ordinal] += interval[stage].count
+                }
+                totalMaxUs = maxOf(totalMaxUs, interval[LatencyStage.TOTAL].max)
+            }
+            for (stage in LatencyStage.values()) {
+                assertEquals(stage.name, 3L, counts[stage.ordinal])
+            }
+            assertTrue(totalMaxUs >= 1000)
+            assertTrue(totalMaxUs < 1_000_000)
+        } finally {
+            sender.shutdown()
+            transport.close()
+            channel.join(10_000)
+        }
+        receiver.join(10_000)
+        assertNull(receiver.error)
+        assertEquals(3L, receiver.frames)
+        assertEquals(3L, receiver.syncedFrames)
+        assertTrue(receiver.pings >= 4)
+        assertEquals(3L, receiver.receipts)
+        // Capture to receive over loopback, in microseconds.
+        assertTrue(receiver.receiverLatency.max < 1_000_000)
+    }
+
+    companion object {
+        /** `ImageFormat.NV21`. */
+        private const val NV21 = 17
+    }
+}
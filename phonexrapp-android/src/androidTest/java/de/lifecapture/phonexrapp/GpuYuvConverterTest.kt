@@ -0,0 +1,85 @@
+package de.lifecapture.phonexrapp
+
+import android.graphics.Bitmap
+import android.graphics.ImageFormat
+import android.media.ImageWriter
+import android.os.Build
+import androidx.test.ext.junit.runners.AndroidJUnit4
+
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks the GPU conversion against [ImageUtils.convertYUV420ToARGB8888Scalar], the reference.
+ */
+@RunWith(AndroidJUnit4::class)
+class GpuYuvConverterTest {
+    @Test
+    fun gradient_matchesReferenceConversion() {
+        // ImageWriter takes YUV_420_888 for any surface from Q on.
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+        val width = 320
+        val height = 240
+        val y = ByteArray(width * height) { (16 + it % width * 219 / width).toByte() }
+        val u = ByteArray(width / 2 * height / 2) { (64 + it / (width / 2) * 128 / (height / 2)).toByte() }
+        val v = ByteArray(width / 2 * height / 2) { (192 - it % (width / 2) * 128 / (width / 2)).toByte() }
+        val expected = IntArray(width * height)
+        ImageUtils.convertYUV420ToARGB8888Scalar(y, u, v, width, height, width, width / 2, 1, expected)
+
+        val actual = IntArray(width * height)
+        val done = CountDownLatch(1)
+        val converter = GpuYuvConverter(width, height, object : GpuYuvConverter.Listener {
+            override fun onRgbFrame(bitmap: Bitmap, timestampNs: Long) {
+                bitmap.getPixels(actual, 0, width, 0, 0, width, height)
+                done.countDown()
+            }
+        })
+        val writer = ImageWriter.newInstance(converter.inputSurface, 1, ImageFormat.YUV_420_888)
+        try {
+            val image = writer.dequeueInputImage()
+            val planes = image.planes
+            for (row in 0 until height) {
+                planes[0].buffer.position(row * planes[0].rowStride)
+                planes[0].buffer.put(y, row * width, width)
+            }
+            for (row in 0 until height / 2) {
+                for (column in 0 until width / 2) {
+                    val offset = row * planes[1].rowStride + column * planes[1].pixelStride
+                    planes[1].buffer.put(offset, u[row * width / 2 + column])
+                    planes[2].buffer.put(row * planes[2].rowStride + column * planes[2].pixelStride,
+                        v[row * width / 2 + column])
+                }
+            }
+            image.timestamp = 1000
+            writer.queueInputImage(image)
+            assertTrue(done.await(5, TimeUnit.SECONDS))
+        } finally {
+            writer.close()
+            converter.release()
+        }
+
+        // Drivers differ in rounding and chroma filtering, away from the chroma edges a few
+        // steps at most.
+        for (row in 2 until height - 2) {
+            for (column in 2 until width - 2) {
+                val i = row * width + column
+                for (shift in intArrayOf(0, 8, 16)) {
+                    val difference = (expected[i] shr shift and 0xff) - (actual[i] shr shift and 0xff)
+                    if (Math.abs(difference) > TOLERANCE) {
+                        fail("Pixel " + column + "," + row + " is " + Integer.toHexString(actual[i]) +
+                                " instead of " + Integer.toHexString(expected[i]))
+                    }
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val TOLERANCE = 12
+    }
+}
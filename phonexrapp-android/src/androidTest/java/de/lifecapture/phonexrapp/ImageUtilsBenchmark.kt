@@ -0,0 +1,93 @@
+package de.lifecapture.phonexrapp
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import java.nio.ByteBuffer
+import java.util.Random
+
+/**
+ * Compares the native converters of [ImageUtils] with the Kotlin reference, for correctness and
+ * speed. The timings are logged with the tag BENCHMARK.
+ */
+@RunWith(AndroidJUnit4::class)
+class ImageUtilsBenchmark {
+    private val width = 1920
+    private val height = 1080
+
+    private fun randomBytes(size: Int): ByteArray {
+        val bytes = ByteArray(size)
+        Random(42).nextBytes(bytes)
+        return bytes
+    }
+
+    /** Average milliseconds of [convert] after a warm-up. */
+    private fun measure(name: String, convert: () -> Unit): Double {
+        repeat(WARM_UP) { convert() }
+        val start = System.nanoTime()
+        repeat(ITERATIONS) { convert() }
+        val ms = (System.nanoTime() - start) / 1e6 / ITERATIONS
+        Log.i("BENCHMARK", name + " " + width + "x" + height + ": " + ms + " ms")
+        return ms
+    }
+
+    @Test
+    fun nv21_nativeMatchesScalar() {
+        assumeTrue(ImageUtils.nativeConversion)
+        val nv21 = randomBytes(ImageUtils.getYUVByteSize(width, height))
+        val expected = IntArray(width * height)
+        val actual = IntArray(width * height)
+
+        val scalar = measure("NV21 scalar") {
+            ImageUtils.convertYUV420SPToARGB8888Scalar(nv21, width, height, expected)
+        }
+        val native = measure("NV21 native") {
+            ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, actual)
+        }
+        assertArrayEquals(expected, actual)
+        Log.i("BENCHMARK", "NV21 speedup " + scalar / native)
+    }
+
+    @Test
+    fun paddedPlanes_nativeMatchesScalar() {
+        assumeTrue(ImageUtils.nativeConversion)
+        // Rows padded like camera images, chroma once planar (I420) and once semi-planar (NV12).
+        val yRowStride = width + 64
+        for (pixelStride in intArrayOf(1, 2)) {
+            val uvRowStride = width / 2 * pixelStride + 32
+            val uvSize = (height / 2 - 1) * uvRowStride + (width / 2 - 1) * pixelStride + 1
+            val y = randomBytes(yRowStride * height)
+            val u = randomBytes(uvSize)
+            val v = randomBytes(uvSize)
+            val expected = IntArray(width * height)
+            val actual = IntArray(width * height)
+            val yBuffer = ByteBuffer.allocateDirect(y.size).put(y)
+            val uBuffer = ByteBuffer.allocateDirect(u.size).put(u)
+            val vBuffer = ByteBuffer.allocateDirect(v.size).put(v)
+
+            val name = if (pixelStride == 1) "I420" else "NV12"
+            val scalar = measure(name + " scalar") {
+                ImageUtils.convertYUV420ToARGB8888Scalar(
+                    y, u, v, width, height, yRowStride, uvRowStride, pixelStride, expected
+                )
+            }
+            val native = measure(name + " native") {
+                ImageUtils.convertYUV420ToARGB8888(
+                    yBuffer, uBuffer, vBuffer, width, height, yRowStride, uvRowStride, pixelStride, actual
+                )
+            }
+            assertArrayEquals(expected, actual)
+            Log.i("BENCHMARK", name + " speedup " + scalar / native)
+        }
+    }
+
+    companion object {
+        private const val WARM_UP = 3
+        private const val ITERATIONS = 20
+    }
+}
@@ -0,0 +1,62 @@
+package de.lifecapture.phonexrapp
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import java.util.Random
+
+/**
+ * Measures how [ParallelYuvConverter] scales with its threads on the phone. The timings are
+ * logged with the tag BENCHMARK.
+ */
+@RunWith(AndroidJUnit4::class)
+class ParallelYuvConverterBenchmark {
+    private val width = 1920
+    private val height = 1080
+    private val yRowStride = width + 64
+    private val uvRowStride = width + 32
+    private val y = ByteArray(yRowStride * height)
+    private val u = ByteArray(uvRowStride * (height / 2))
+    private val v = ByteArray(u.size)
+    private val out = IntArray(width * height)
+
+    init {
+        val random = Random(42)
+        random.nextBytes(y)
+        random.nextBytes(u)
+        random.nextBytes(v)
+    }
+
+    /** Average milliseconds of a semi-planar conversion with [threads] after a warm-up. */
+    private fun measure(threads: Int): Double {
+        ParallelYuvConverter(threads).use { converter ->
+            val convert = { converter.convert(y, u, v, width, height, yRowStride, uvRowStride, 2, out) }
+            repeat(WARM_UP) { convert() }
+            val start = System.nanoTime()
+            repeat(ITERATIONS) { convert() }
+            val ms = (System.nanoTime() - start) / 1e6 / ITERATIONS
+            Log.i("BENCHMARK", "NV12 " + width + "x" + height + " " + threads + " threads: " + ms + " ms")
+            return ms
+        }
+    }
+
+    @Test
+    fun defaultThreads_fasterThanOne() {
+        val threads = ParallelYuvConverter.defaultThreads()
+        assumeTrue(threads > 1)
+        val single = measure(1)
+        val parallel = measure(threads)
+        Log.i("BENCHMARK", "NV12 speedup " + single / parallel)
+        assertTrue(parallel < single)
+    }
+
+    companion object {
+        private const val WARM_UP = 5
+        private const val ITERATIONS = 20
+    }
+}
@@ -0,0 +1,51 @@
+package de.lifecapture.phonexrapp
+
+/**
+ * What the stream setup needs to know about one camera, probed once and kept in the
+ * [CameraCapabilityCache]. Plain values only, so they can be stored and compared; Camera1 cameras
+ * leave the Camera2-only fields at their defaults.
+ */
+data class CameraCapabilities(
+    val sensorOrientation: Int,
+    /** Whether the sensor timestamps share the `elapsedRealtimeNanos` clock. */
+    val realtimeTimestamps: Boolean = false,
+    /** `INFO_SUPPORTED_HARDWARE_LEVEL`, or [HARDWARE_LEVEL_UNKNOWN]. */
+    val hardwareLevel: Int = HARDWARE_LEVEL_UNKNOWN,
+    /** `REQUEST_AVAILABLE_CAPABILITIES`. */
+    val capabilities: List<Int> = emptyList(),
+    /** Preview sizes, in the order the camera reported them. */
+    val outputSizes: List<StreamSize> = emptyList(),
+    /** AE target frame rate ranges in frames per second. */
+    val fpsRanges: List<FpsRange> = emptyList(),
+    /** Constrained high-speed video sizes, one entry per size and frame rate range. */
+    val highSpeedConfigs: List<HighSpeedConfig> = emptyList(),
+    /** Frame and stall durations of the stream formats, see [StreamConfigSelector]. */
+    val outputConfigs: List<OutputConfig> = emptyList(),
+    /**
+     * `LENS_INTRINSIC_CALIBRATION`: fx, fy, cx, cy and skew in pixels of [preCorrectionArray],
+     * empty if unknown. Used by [UndistortionMesh].
+     */
+    val lensIntrinsics: List<Float> = emptyList(),
+    /** `LENS_DISTORTION` k1, k2, k3, p1, p2, empty if unknown. */
+    val lensDistortion: List<Float> = emptyList(),
+    /** `SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE`, the image area without distortion correction. */
+    val preCorrectionArray: StreamSize? = null
+) {
+    data class StreamSize(val width: Int, val height: Int)
+
+    data class OutputConfig(
+        /** `ImageFormat` of the output. */
+        val format: Int,
+        val size: StreamSize,
+        val minFrameDurationNs: Long,
+        val stallDurationNs: Long
+    )
+
+    data class FpsRange(val lower: Int, val upper: Int)
+
+    data class HighSpeedConfig(val size: StreamSize, val fpsRange: FpsRange)
+
+    companion object {
+        const val HARDWARE_LEVEL_UNKNOWN = -1
+    }
+}
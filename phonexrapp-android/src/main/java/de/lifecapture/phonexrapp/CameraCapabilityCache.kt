@@ -0,0 +1,174 @@
+package de.lifecapture.phonexrapp
+
+import de.lifecapture.phonexrapp.CameraCapabilities.FpsRange
+import de.lifecapture.phonexrapp.CameraCapabilities.HighSpeedConfig
+import de.lifecapture.phonexrapp.CameraCapabilities.OutputConfig
+import de.lifecapture.phonexrapp.CameraCapabilities.StreamSize
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * [CameraCapabilities] stored in [file], so the cameras are probed on the first launch only.
+ *
+ * Entries are keyed by camera API and id. The file records [fingerprint], the build fingerprint of
+ * the device, and the format version; when either differs, e.g. after an OS update, the whole
+ * file is ignored and the cameras are probed again.
+ */
+class CameraCapabilityCache(private val file: File, private val fingerprint: String) {
+    private val entries = HashMap<String, CameraCapabilities>()
+    private var loaded = false
+
+    /** The stored capabilities of [cameraId], or null if it has to be probed. */
+    @Synchronized
+    fun get(api: Int, cameraId: String): CameraCapabilities? {
+        load()
+        return entries[key(api, cameraId)]
+    }
+
+    /** Stores the probed [capabilities] of [cameraId] and writes the file. */
+    @Synchronized
+    @Throws(IOException::class)
+    fun put(api: Int, cameraId: String, capabilities: CameraCapabilities) {
+        load()
+        entries[key(api, cameraId)] = capabilities
+        save()
+    }
+
+    private fun load() {
+        if (loaded) {
+            return
+        }
+        loaded = true
+        if (!file.exists()) {
+            return
+        }
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != FORMAT_VERSION || input.readUTF() != fingerprint) {
+                    return
+                }
+                val count = readCount(input)
+                val read = HashMap<String, CameraCapabilities>(count)
+                repeat(count) {
+                    read[input.readUTF()] = readCapabilities(input)
+                }
+                entries.putAll(read)
+            }
+        } catch (e: IOException) {
+            // Cut off or corrupt, probe again.
+        }
+    }
+
+    private fun save() {
+        // Written next to the file and renamed, so a crash never leaves half an entry behind.
+        val temporary = File(file.path + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(temporary))).use { output ->
+            output.writeInt(FORMAT_VERSION)
+            output.writeUTF(fingerprint)
+            output.writeInt(entries.size)
+            for ((key, capabilities) in entries) {
+                output.writeUTF(key)
+                writeCapabilities(output, capabilities)
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete()
+            throw IOException("Cannot replace $file")
+        }
+    }
+
+    companion object {
+        const val API_CAMERA1 = 1
+        const val API_CAMERA2 = 2
+
+        /** Raise whenever [CameraCapabilities] changes, older files are then ignored. */
+        const val FORMAT_VERSION = 3
+
+        /** Upper bound for every list in the file, far above what cameras report. */
+        private const val MAX_COUNT = 4096
+
+        private fun key(api: Int, cameraId: String): String {
+            return "$api/$cameraId"
+        }
+
+        private fun writeCapabilities(output: DataOutputStream, capabilities: CameraCapabilities) {
+            output.writeInt(capabilities.sensorOrientation)
+            output.writeBoolean(capabilities.realtimeTimestamps)
+            output.writeInt(capabilities.hardwareLevel)
+            output.writeInt(capabilities.capabilities.size)
+            capabilities.capabilities.forEach { output.writeInt(it) }
+            output.writeInt(capabilities.outputSizes.size)
+            capabilities.outputSizes.forEach { writeSize(output, it) }
+            output.writeInt(capabilities.fpsRanges.size)
+            capabilities.fpsRanges.forEach { writeRange(output, it) }
+            output.writeInt(capabilities.highSpeedConfigs.size)
+            capabilities.highSpeedConfigs.forEach {
+                writeSize(output, it.size)
+                writeRange(output, it.fpsRange)
+            }
+            output.writeInt(capabilities.outputConfigs.size)
+            capabilities.outputConfigs.forEach {
+                output.writeInt(it.format)
+                writeSize(output, it.size)
+                output.writeLong(it.minFrameDurationNs)
+                output.writeLong(it.stallDurationNs)
+            }
+            output.writeInt(capabilities.lensIntrinsics.size)
+            capabilities.lensIntrinsics.forEach { output.writeFloat(it) }
+            output.writeInt(capabilities.lensDistortion.size)
+            capabilities.lensDistortion.forEach { output.writeFloat(it) }
+            output.writeBoolean(capabilities.preCorrectionArray != null)
+            capabilities.preCorrectionArray?.let { writeSize(output, it) }
+        }
+
+        private fun readCapabilities(input: DataInputStream): CameraCapabilities {
+            return CameraCapabilities(
+                sensorOrientation = input.readInt(),
+                realtimeTimestamps = input.readBoolean(),
+                hardwareLevel = input.readInt(),
+                capabilities = List(readCount(input)) { input.readInt() },
+                outputSizes = List(readCount(input)) { readSize(input) },
+                fpsRanges = List(readCount(input)) { readRange(input) },
+                highSpeedConfigs = List(readCount(input)) { HighSpeedConfig(readSize(input), readRange(input)) },
+                outputConfigs = List(readCount(input)) {
+                    OutputConfig(input.readInt(), readSize(input), input.readLong(), input.readLong())
+                },
+                lensIntrinsics = List(readCount(input)) { input.readFloat() },
+                lensDistortion = List(readCount(input)) { input.readFloat() },
+                preCorrectionArray = if (input.readBoolean()) readSize(input) else null
+            )
+        }
+
+        private fun readCount(input: DataInputStream): Int {
+            val count = input.readInt()
+            if (count < 0 || count > MAX_COUNT) {
+                throw IOException("Bad count $count")
+            }
+            return count
+        }
+
+        private fun writeSize(output: DataOutputStream, size: StreamSize) {
+            output.writeInt(size.width)
+            output.writeInt(size.height)
+        }
+
+        private fun readSize(input: DataInputStream): StreamSize {
+            return StreamSize(input.readInt(), input.readInt())
+        }
+
+        private fun writeRange(output: DataOutputStream, range: FpsRange) {
+            output.writeInt(range.lower)
+            output.writeInt(range.upper)
+        }
+
+        private fun readRange(input: DataInputStream): FpsRange {
+            return FpsRange(input.readInt(), input.readInt())
+        }
+    }
+}
@@ -17,7 +17,6 @@ import android.hardware.Camera
 import android.hardware.camera2.*
 import android.hardware.camera2.CameraCaptureSession.CaptureCallback
 import android.media.ImageReader
-import android.media.ImageReader.OnImageAvailableListener
 import android.media.MediaCodec
 import android.media.MediaFormat
 import android.os.Build
@@ -25,6 +24,7 @@ import android.os.Bundle
 import android.os.Handler
 import android.os.HandlerThread
 import android.util.Log
+import android.util.Range
 import android.util.Size
 import android.util.SparseIntArray
 import android.view.LayoutInflater
@@ -35,6 +35,9 @@ import android.view.ViewGroup
 import android.widget.Toast
 import androidx.annotation.RequiresApi
 import androidx.core.app.ActivityCompat
+import de.lifecapture.phonexrapp.stream.FrameIntervalMonitor
+import java.io.File
+import java.io.IOException
 import java.util.*
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
@@ -50,10 +53,37 @@ import kotlin.math.min
 val TAG = "CAMERA_FRAGMENT"
 val useApi1 = false
 
+/** Streams H.264 from [Encoder] instead of raw YUV frames from the [ImageReader]. */
+val useEncoder = false
+
+/**
+ * Frame rate to capture at. Above 30 fps the encoder is fed from a constrained high-speed session
+ * when the camera has one; otherwise, and for raw frames, the closest regular AE range is used.
+ */
+val targetFps = 30
+
+/** Lowest frame rate a capture size has to reach to be chosen, see [StreamConfigSelector].  */
+val minFps = 24
+
+/** Bits per second the link carries for raw frames; encoded streams use the encoder bit rate.  */
+val linkBitRate = 1_000_000_000L
+
+/**
+ * Undistorts encoded frames on the GPU with the lens calibration of the camera, see
+ * [UndistortionRenderer]. Raw frames are sent as the camera delivers them.
+ */
+val undistort = false
+
+/**
+ * Converts raw frames to RGB on the GPU as well and hands them to the [CameraView], see
+ * [GpuYuvConverter].
+ */
+val rgbFrames = false
+
 @SuppressLint("ValidFragment")
 class CameraConnectionFragment @SuppressLint("ValidFragment") private constructor(
     private val cameraConnectionCallback: ConnectionCallback,
-    /** A [OnImageAvailableListener] to receive frames as they are available.  */
+    /** Receives the frames of the [HeldImageReader] as they are available.  */
     private val imageListener: CameraView,
     /** The layout identifier to inflate for this Fragment.  */
     private val layout: Int,
@@ -61,68 +91,51 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
     private val inputSize: Size
 ) : Fragment() {
     companion object {
-        /**
-         * The camera preview size will be chosen to be the smallest frame by pixel size capable of
-         * containing a DESIRED_SIZE x DESIRED_SIZE square.
-         */
-        private const val MINIMUM_PREVIEW_SIZE = 320
+        /** Smallest side of the capture sizes [stepCaptureSize] moves through.  */
+        private const val MINIMUM_PREVIEW_SIZE = StreamConfigSelector.MINIMUM_SIZE
+
+        /** Number of frames between two log lines with the achieved frame rate.  */
+        private const val FPS_REPORT_FRAMES = 300
+
+        /** File of the [CameraCapabilityCache], in the no-backup directory.  */
+        private const val CAPABILITY_CACHE_FILE = "camera_capabilities"
 
         /** Conversion from screen rotation to JPEG orientation.  */
         private val ORIENTATIONS = SparseIntArray()
         private const val FRAGMENT_DIALOG = "dialog"
 
         /**
-         * Given `choices` of `Size`s supported by a camera, chooses the smallest one whose
-         * width and height are at least as large as the minimum of both, or an exact match if possible.
-         *
-         * @param choices The list of sizes that the camera supports for the intended output class
-         * @param width The minimum desired width
-         * @param height The minimum desired height
-         * @return The optimal `Size`, or an arbitrary one if none were big enough
+         * Sizes with the aspect ratio of [chosen] that are not larger than it, smallest first.
+         * These are the steps [stepCaptureSize] moves through.
          */
-        protected fun chooseOptimalSize(
-            choices: Array<Size>,
-            width: Int,
-            height: Int
-        ): Size {
-            val minSize = max(
-                min(width, height),
-                MINIMUM_PREVIEW_SIZE
-            )
-            val desiredSize = Size(width, height)
-
-            // Collect the supported resolutions that are at least as big as the preview Surface
-            var exactSizeFound = false
-            val bigEnough: MutableList<Size> =
-                ArrayList()
-            val tooSmall: MutableList<Size> =
-                ArrayList()
-            for (option in choices) {
-                if (option == desiredSize) {
-                    // Set the size but don't return yet so that remaining sizes will still be logged.
-                    exactSizeFound = true
-                }
-                if (option.height >= minSize && option.width >= minSize) {
-                    bigEnough.add(option)
-                } else {
-                    tooSmall.add(option)
-                }
-            }
-            if (exactSizeFound) {
-                return desiredSize
-            }
+        private fun sizeLadder(choices: Array<Size>, chosen: Size): List<Size> {
+            return choices.filter {
+                it.width.toLong() * chosen.height == it.height.toLong() * chosen.width &&
+                        min(it.width, it.height) >= MINIMUM_PREVIEW_SIZE &&
+                        it.width <= chosen.width && it.height <= chosen.height
+            }.sortedWith(CompareSizesByArea())
+        }
 
-            // Pick the smallest of those, assuming we found any
-            return if (bigEnough.size > 0) {
-                // LOGGER.i("Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
-                Collections.min(
-                    bigEnough,
-                    CompareSizesByArea()
-                )
-            } else {
-                // LOGGER.e("Couldn't find any suitable preview size");
-                choices[0]
+        /**
+         * The high-speed size and fixed frame rate closest to [fps] and not larger than
+         * [preferred], or null if the camera cannot beat 30 fps this way.
+         */
+        private fun chooseHighSpeedMode(
+            configs: List<CameraCapabilities.HighSpeedConfig>,
+            preferred: Size,
+            fps: Int
+        ): HighSpeedMode? {
+            val best = configs.filter {
+                it.size.width <= preferred.width && it.size.height <= preferred.height &&
+                        it.fpsRange.lower == it.fpsRange.upper && it.fpsRange.upper <= fps
+            }.maxWithOrNull(compareBy({ it.fpsRange.upper }, { it.size.width * it.size.height }))
+            if (best == null || best.fpsRange.upper <= 30) {
+                return null
             }
+            return HighSpeedMode(
+                Size(best.size.width, best.size.height),
+                Range(best.fpsRange.lower, best.fpsRange.upper)
+            )
         }
 
         fun newInstance(
@@ -159,6 +172,19 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
         Semaphore(1)
 
     private val captureCallback: CaptureCallback = object : CaptureCallback() {
+        override fun onCaptureStarted(
+            session: CameraCaptureSession,
+            request: CaptureRequest,
+            timestamp: Long,
+            frameNumber: Long
+        ) {
+            frameIntervals.record(timestamp)
+            if (frameIntervals.intervalCount >= FPS_REPORT_FRAMES) {
+                Log.d(TAG, "Capture " + frameIntervals)
+                frameIntervals.reset()
+            }
+        }
+
         override fun onCaptureProgressed(
             session: CameraCaptureSession,
             request: CaptureRequest,
@@ -171,16 +197,77 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
             request: CaptureRequest,
             result: TotalCaptureResult
         ) {
+            if (appliedTag != null && request.tag === appliedTag) {
+                appliedTag = null
+                runAppliedCallbacks(true)
+            }
+            // Only raw frames carry capture metadata.
+            if (useEncoder) {
+                return
+            }
+            val timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP) ?: return
+            imageListener.captureMetadata.publish(
+                timestamp,
+                result.get(CaptureResult.SENSOR_EXPOSURE_TIME) ?: 0L,
+                result.get(CaptureResult.SENSOR_FRAME_DURATION) ?: 0L,
+                result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW) ?: 0L,
+                result.get(CaptureResult.LENS_FOCUS_DISTANCE) ?: 0f,
+                result.get(CaptureResult.SENSOR_SENSITIVITY) ?: 0
+            )
         }
     }
     private var cameraId: String? = null
     private var camera: Camera? = null
+
+    /** Preview buffers of the legacy [camera], handed to [imageListener] with every frame.  */
+    @Volatile
+    var previewBuffers: PreviewBufferRing? = null
+        private set
     private var encoder: Encoder? = null
+    /** Draws the camera frames undistorted into the [encoder] when [undistort] is set.  */
+    private var undistortionRenderer: UndistortionRenderer? = null
+    /** Third camera output with [rgbFrames], next to the preview and the [previewReader].  */
+    private var yuvConverter: GpuYuvConverter? = null
     private var textureView: AutoFitTextureView? = null
     private var captureSession: CameraCaptureSession? = null
     private var cameraDevice: CameraDevice? = null
     private var sensorOrientation: Int? = null
+    /** Whether image timestamps are in the [android.os.SystemClock.elapsedRealtimeNanos] base. */
+    var realtimeTimestamps = false
+        private set
+    // Written on the background thread, read by stepCaptureSize on the caller's.
+    @Volatile
     private var previewSize: Size? = null
+    @Volatile
+    private var sizeLadder: List<Size> = emptyList()
+    private var currentCapabilities: CameraCapabilities? = null
+
+    /** AE target frame rate range of regular sessions.  */
+    private var aeFpsRange: Range<Int>? = null
+
+    /** Set while the encoder is fed from a constrained high-speed session.  */
+    private var highSpeedMode: HighSpeedMode? = null
+
+    /** Set once the camera rejected a high-speed session, later sessions are regular ones.  */
+    private var highSpeedFailed = false
+
+    /** Auto focus is locked by a trigger, see [lock3A]. New sessions start unlocked.  */
+    private var focusLocked = false
+
+    /**
+     * Tag of the first [previewRequest] with changed settings, and who waits for its first
+     * capture result. Both only change on the background thread.
+     */
+    private var appliedTag: Any? = null
+    private val appliedCallbacks = ArrayList<(Boolean) -> Unit>()
+
+    /** Frame rate and interval jitter measured from the capture timestamps.  */
+    private val frameIntervals = FrameIntervalMonitor()
+
+    private val capabilityCache by lazy {
+        CameraCapabilityCache(File(requireContext().noBackupFilesDir, CAPABILITY_CACHE_FILE), Build.FINGERPRINT)
+    }
+    private var targetBitRate = Encoder.Profile().bitRate
     private var backgroundThread: HandlerThread? = null
     private var backgroundHandler: Handler? = null
     private val surfaceTextureListener: SurfaceTextureListener = object : SurfaceTextureListener {
@@ -202,7 +289,7 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
 
         override fun onSurfaceTextureUpdated(texture: SurfaceTexture) {}
     }
-    private var previewReader: ImageReader? = null
+    private var previewReader: HeldImageReader? = null
     private var previewRequestBuilder: CaptureRequest.Builder? = null
     private var previewRequest: CaptureRequest? = null
     private val stateCallback: CameraDevice.StateCallback = object : CameraDevice.StateCallback() {
@@ -281,57 +368,190 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
         Log.d(TAG, x.name + " " + characteristics.get(x))
     }
 
-    /** Sets up member variables related to camera.  */
-    private fun setUpCameraOutputs() {
-        val activity = activity
-        val manager =
-            activity?.getSystemService(Context.CAMERA_SERVICE) as CameraManager
+    /**
+     * The capabilities of [cameraId] from the [capabilityCache], running [probe] only if they are
+     * not stored yet for this build.
+     */
+    private fun capabilities(api: Int, cameraId: String, probe: () -> CameraCapabilities): CameraCapabilities {
+        capabilityCache.get(api, cameraId)?.let { return it }
+        val capabilities = probe()
         try {
-            val characteristics = manager.getCameraCharacteristics(cameraId!!)
-            val map =
-                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
-            sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION)
+            capabilityCache.put(api, cameraId, capabilities)
+        } catch (e: IOException) {
+            Log.w(TAG, "Cannot store camera capabilities", e)
+        }
+        return capabilities
+    }
 
-            map!!.getOutputSizes(SurfaceTexture::class.java).forEach {
-                Log.d(TAG, "Size " + it)
-            }
+    /** Reads what [CameraCapabilities] holds from the characteristics and logs the rest once.  */
+    private fun probeCamera2(manager: CameraManager, cameraId: String): CameraCapabilities {
+        val characteristics = manager.getCameraCharacteristics(cameraId)
+        val map =
+            characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
 
-            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.S) {
-                logIt(characteristics, CameraCharacteristics.SCALER_DEFAULT_SECURE_IMAGE_SIZE)
-            }
+        map!!.getOutputSizes(SurfaceTexture::class.java).forEach {
+            Log.d(TAG, "Size " + it)
+        }
 
-            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
-                logIt(characteristics, CameraCharacteristics.LENS_DISTORTION)
-                logIt(characteristics,CameraCharacteristics.LENS_RADIAL_DISTORTION)
-            }
+        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.S) {
+            logIt(characteristics, CameraCharacteristics.SCALER_DEFAULT_SECURE_IMAGE_SIZE)
+        }
+
+        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
+            logIt(characteristics, CameraCharacteristics.LENS_DISTORTION)
+            logIt(characteristics,CameraCharacteristics.LENS_RADIAL_DISTORTION)
+        }
+
+        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.M) {
+            logIt(characteristics, CameraCharacteristics.LENS_INTRINSIC_CALIBRATION)
+            logIt(characteristics, CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE)
+        }
+        logIt(characteristics, CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE)
+        logIt(characteristics, CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE)
+        logIt(characteristics, CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE)
+
+        logIt(characteristics, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES)
+        logIt(characteristics, CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)
 
-            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.M) {
-                logIt(characteristics, CameraCharacteristics.LENS_INTRINSIC_CALIBRATION)
-                logIt(characteristics, CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE)
+        val capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES)
+        val highSpeed = capabilities != null && capabilities.contains(
+            CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO
+        )
+        return CameraCapabilities(
+            sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION)!!,
+            realtimeTimestamps = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE) ==
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME,
+            hardwareLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)
+                ?: CameraCapabilities.HARDWARE_LEVEL_UNKNOWN,
+            capabilities = capabilities?.toList() ?: emptyList(),
+            outputSizes = map.getOutputSizes(SurfaceTexture::class.java).map {
+                CameraCapabilities.StreamSize(it.width, it.height)
+            },
+            fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)
+                ?.map { CameraCapabilities.FpsRange(it.lower, it.upper) } ?: emptyList(),
+            highSpeedConfigs = if (!highSpeed) emptyList() else map.highSpeedVideoSizes.flatMap { size ->
+                map.getHighSpeedVideoFpsRangesFor(size).map {
+                    CameraCapabilities.HighSpeedConfig(
+                        CameraCapabilities.StreamSize(size.width, size.height),
+                        CameraCapabilities.FpsRange(it.lower, it.upper)
+                    )
+                }
+            },
+            outputConfigs = intArrayOf(ImageFormat.YUV_420_888, ImageFormat.PRIVATE).flatMap { format ->
+                map.getOutputSizes(format)?.map {
+                    CameraCapabilities.OutputConfig(
+                        format,
+                        CameraCapabilities.StreamSize(it.width, it.height),
+                        map.getOutputMinFrameDuration(format, it),
+                        map.getOutputStallDuration(format, it)
+                    )
+                } ?: emptyList()
+            },
+            lensIntrinsics = characteristics.get(CameraCharacteristics.LENS_INTRINSIC_CALIBRATION)?.toList()
+                ?: emptyList(),
+            lensDistortion = lensDistortion(characteristics),
+            preCorrectionArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE)
+                ?.let { CameraCapabilities.StreamSize(it.width(), it.height()) }
+        )
+    }
+
+    /**
+     * The distortion coefficients k1, k2, k3, p1, p2. Before Android P they come from
+     * LENS_RADIAL_DISTORTION, whose first element is the unused kappa 0.
+     */
+    private fun lensDistortion(characteristics: CameraCharacteristics): List<Float> {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return characteristics.get(CameraCharacteristics.LENS_DISTORTION)?.toList() ?: emptyList()
+        }
+        @Suppress("DEPRECATION")
+        val radial = characteristics.get(CameraCharacteristics.LENS_RADIAL_DISTORTION) ?: return emptyList()
+        return radial.toList().subList(1, 6)
+    }
+
+    /** Reads what [CameraCapabilities] holds from the parameters of the open [camera].  */
+    private fun probeCamera1(cameraId: Int, camera: Camera): CameraCapabilities {
+        val info = Camera.CameraInfo()
+        Camera.getCameraInfo(cameraId, info)
+        val params = camera.parameters
+        Log.d(TAG, "Camera1 " + cameraId + " facing " + info.facing + " preview format " + params.previewFormat +
+                " formats " + params.supportedPreviewFormats)
+        return CameraCapabilities(
+            sensorOrientation = info.orientation,
+            outputSizes = params.supportedPreviewSizes.map {
+                CameraCapabilities.StreamSize(it.width, it.height)
+            },
+            // Camera1 counts frames per 1000 seconds.
+            fpsRanges = params.supportedPreviewFpsRange.map {
+                CameraCapabilities.FpsRange(
+                    it[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] / 1000,
+                    it[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000
+                )
             }
-            logIt(characteristics, CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE)
-            logIt(characteristics, CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE)
-            logIt(characteristics, CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE)
+        )
+    }
+
+    /**
+     * Picks the capture size and AE target range closest to [inputSize] that reaches [minFps]
+     * and fits the link.
+     */
+    private fun selectStreamConfig(capabilities: CameraCapabilities): Size {
+        val selector = StreamConfigSelector(capabilities)
+        val config = selector.select(
+            StreamConfigSelector.Request(
+                CameraCapabilities.StreamSize(inputSize.width, inputSize.height),
+                targetFps,
+                minFps,
+                if (useEncoder) targetBitRate.toLong() else linkBitRate,
+                useEncoder
+            )
+        )
+        if (config == null) {
+            Log.w(TAG, "No capture size reaches " + minFps + " fps")
+            aeFpsRange = selector.chooseFpsRange(targetFps)?.let { Range(it.lower, it.upper) }
+            val size = selector.fallbackSize(useEncoder) ?: return inputSize
+            return Size(size.width, size.height)
+        }
+        Log.d(TAG, "Stream configuration " + config)
+        aeFpsRange = config.fpsRange?.let { Range(it.lower, it.upper) }
+        return Size(config.size.width, config.size.height)
+    }
 
-            logIt(characteristics, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES)
-            logIt(characteristics, CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)
+    /** Sets up member variables related to camera.  */
+    private fun setUpCameraOutputs() {
+        val activity = activity
+        val manager =
+            activity?.getSystemService(Context.CAMERA_SERVICE) as CameraManager
+        try {
+            val cameraCapabilities = capabilities(CameraCapabilityCache.API_CAMERA2, cameraId!!) {
+                probeCamera2(manager, cameraId!!)
+            }
+            currentCapabilities = cameraCapabilities
+            sensorOrientation = cameraCapabilities.sensorOrientation
+            realtimeTimestamps = cameraCapabilities.realtimeTimestamps
+            val outputSizes = cameraCapabilities.outputSizes.map { Size(it.width, it.height) }.toTypedArray()
 
             // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
             // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
             // garbage capture data.
-            previewSize = chooseOptimalSize(
-                map!!.getOutputSizes(SurfaceTexture::class.java),
-                inputSize.width,
-                inputSize.height
-            )
+            previewSize = selectStreamConfig(cameraCapabilities)
+            sizeLadder = sizeLadder(outputSizes, previewSize!!)
 
-            // We fit the aspect ratio of TextureView to the size of preview we picked.
-            val orientation = resources.configuration.orientation
-            if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                textureView!!.setAspectRatio(previewSize!!.width, previewSize!!.height)
-            } else {
-                textureView!!.setAspectRatio(previewSize!!.height, previewSize!!.width)
+            highSpeedMode = null
+            if (useEncoder && targetFps > 30 && !highSpeedFailed) {
+                val mode = chooseHighSpeedMode(cameraCapabilities.highSpeedConfigs, previewSize!!, targetFps)
+                if (mode != null) {
+                    // High-speed sessions only run at their own sizes.
+                    highSpeedMode = mode
+                    previewSize = mode.size
+                    sizeLadder = sizeLadder(cameraCapabilities.highSpeedConfigs.filter {
+                        it.fpsRange.lower == mode.fpsRange.lower && it.fpsRange.upper == mode.fpsRange.upper
+                    }.map { Size(it.size.width, it.size.height) }.toTypedArray(), mode.size)
+                }
             }
+            Log.d(TAG, "Frame rate " + (highSpeedMode?.fpsRange ?: aeFpsRange) +
+                    if (highSpeedMode != null) " high speed" else "")
+
+            fitAspectRatio()
         } catch (e: CameraAccessException) {
             //  LOGGER.e(e, "Exception!");
         } catch (e: NullPointerException) {
@@ -344,33 +564,260 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
         cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation!!)
     }
 
+    /** We fit the aspect ratio of TextureView to the size of preview we picked.  */
+    private fun fitAspectRatio() {
+        val orientation = resources.configuration.orientation
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            textureView!!.setAspectRatio(previewSize!!.width, previewSize!!.height)
+        } else {
+            textureView!!.setAspectRatio(previewSize!!.height, previewSize!!.width)
+        }
+    }
+
+    /**
+     * Moves the capture size one step down (-1) or up (+1) the sizes of the same aspect ratio, up
+     * to the size chosen initially. The capture session is recreated with the new size. Returns
+     * false if there is no such size, at either end of the ladder, or no camera.
+     */
+    fun stepCaptureSize(step: Int): Boolean {
+        val handler = backgroundHandler ?: return false
+        if (nextCaptureSize(step) == null) {
+            return false
+        }
+        handler.post {
+            // The ladder may have changed meanwhile.
+            val size = nextCaptureSize(step) ?: return@post
+            switchCaptureSize(size)
+        }
+        return true
+    }
+
+    /** The size [step] rungs from the current one on the ladder, or null. */
+    private fun nextCaptureSize(step: Int): Size? {
+        val ladder = sizeLadder
+        val index = ladder.indexOf(previewSize)
+        val next = index + step
+        if (index < 0 || next < 0 || next >= ladder.size || cameraDevice == null) {
+            return null
+        }
+        return ladder[next]
+    }
+
+    /**
+     * Switches to the largest size of the ladder [stepCaptureSize] moves through that fits into
+     * [width] x [height], or to the smallest one. Calls [onApplied] with the size once the old
+     * session is closed, so the next frame has the new size; with null if there is no camera or
+     * ladder.
+     */
+    fun setCaptureSize(width: Int, height: Int, onApplied: (Size?) -> Unit) {
+        val handler = backgroundHandler
+        if (handler == null) {
+            onApplied(null)
+            return
+        }
+        handler.post {
+            if (sizeLadder.isEmpty() || cameraDevice == null) {
+                onApplied(null)
+                return@post
+            }
+            val size = sizeLadder.lastOrNull { it.width <= width && it.height <= height } ?: sizeLadder[0]
+            if (size != previewSize) {
+                switchCaptureSize(size)
+            }
+            onApplied(size)
+        }
+    }
+
+    /** Recreates the capture session with [size], on the background thread.  */
+    private fun switchCaptureSize(size: Size) {
+        Log.d(TAG, "Capture size " + previewSize + " -> " + size)
+        runAppliedCallbacks(false)
+        captureSession?.close()
+        captureSession = null
+        encoder?.stop()
+        encoder = null
+        undistortionRenderer?.release()
+        undistortionRenderer = null
+        yuvConverter?.release()
+        yuvConverter = null
+        val reader = previewReader
+        if (reader != null) {
+            // Images of the old reader may still be in the sender, it closes once they are done.
+            reader.reader.setOnImageAvailableListener(null, null)
+            reader.close()
+            previewReader = null
+        }
+
+        previewSize = size
+        cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation!!)
+        activity?.runOnUiThread {
+            fitAspectRatio()
+            configureTransform(textureView!!.width, textureView!!.height)
+        }
+        createCameraPreviewSession()
+    }
+
+    /**
+     * Sets the bit rate of the running encoder and of the ones created later. [onApplied] is
+     * called on the background thread once the encoder has it.
+     */
+    fun setBitRate(bitRate: Int, onApplied: (() -> Unit)? = null) {
+        backgroundHandler?.post {
+            targetBitRate = bitRate
+            encoder?.setBitRate(bitRate)
+            onApplied?.invoke()
+        }
+    }
+
+    /**
+     * Asks the encoder for a sync frame and calls [onSent] with its sequence number, or with -1
+     * right away when every frame is a sync frame anyway: raw frames, or no encoder yet.
+     */
+    fun requestSyncFrame(onSent: (sequence: Int) -> Unit) {
+        val handler = backgroundHandler
+        if (handler == null) {
+            onSent(-1)
+            return
+        }
+        handler.post {
+            val encoder = encoder
+            if (encoder == null) {
+                onSent(-1)
+            } else {
+                encoder.requestSyncFrame(onSent)
+            }
+        }
+    }
+
+    /**
+     * Switches the AE target frame rate range of the running session to the one closest to
+     * [fps], without recreating the session. Calls [onApplied] with the upper end of the range
+     * once the first frame has it, with 0 if the session cannot change its frame rate: high-speed
+     * sessions run at a fixed one, and the legacy API is not supported.
+     */
+    fun setFrameRate(fps: Int, onApplied: (Int) -> Unit) {
+        val handler = backgroundHandler
+        if (handler == null || useApi1) {
+            onApplied(0)
+            return
+        }
+        handler.post {
+            val session = captureSession
+            val capabilities = currentCapabilities
+            val range = capabilities?.let { StreamConfigSelector(it).chooseFpsRange(fps) }
+            if (session == null || highSpeedMode != null || previewRequestBuilder == null || range == null) {
+                onApplied(0)
+                return@post
+            }
+            aeFpsRange = Range(range.lower, range.upper)
+            previewRequestBuilder!!.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, aeFpsRange)
+            try {
+                submitPreviewRequest(session) { applied -> onApplied(if (applied) range.upper else 0) }
+            } catch (e: CameraAccessException) {
+                onApplied(0)
+            }
+        }
+    }
+
+    /**
+     * Locks or unlocks auto exposure and auto focus on the repeating request, without recreating
+     * the session. Focus is locked with an auto focus trigger, so it holds the current distance.
+     * [onApplied] is called once the first frame has the new settings, with false if the session
+     * went away before; a new capture size starts unlocked.
+     */
+    fun lock3A(exposure: Boolean, focus: Boolean, onApplied: (Boolean) -> Unit) {
+        val handler = backgroundHandler
+        if (handler == null || useApi1) {
+            onApplied(false)
+            return
+        }
+        handler.post {
+            val session = captureSession
+            val builder = previewRequestBuilder
+            if (session == null || builder == null) {
+                onApplied(false)
+                return@post
+            }
+            try {
+                builder.set(CaptureRequest.CONTROL_AE_LOCK, exposure)
+                if (focus != focusLocked) {
+                    builder.set(
+                        CaptureRequest.CONTROL_AF_TRIGGER,
+                        if (focus) CaptureRequest.CONTROL_AF_TRIGGER_START else CaptureRequest.CONTROL_AF_TRIGGER_CANCEL
+                    )
+                    submitTrigger(session, builder.build())
+                    builder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE)
+                    focusLocked = focus
+                }
+                submitPreviewRequest(session, onApplied)
+            } catch (e: CameraAccessException) {
+                onApplied(false)
+            }
+        }
+    }
+
+    /**
+     * Builds [previewRequest] and makes it the repeating request of [session]. With [onApplied]
+     * the request is tagged, and the callback runs with the first capture result of it.
+     */
+    private fun submitPreviewRequest(session: CameraCaptureSession, onApplied: ((Boolean) -> Unit)? = null) {
+        if (onApplied != null) {
+            // Older requests still waiting are covered by this one.
+            appliedTag = Any()
+            previewRequestBuilder!!.setTag(appliedTag)
+            appliedCallbacks.add(onApplied)
+        }
+        previewRequest = previewRequestBuilder!!.build()
+        if (session is CameraConstrainedHighSpeedCaptureSession) {
+            // The burst holds one request per frame the camera batches up.
+            session.setRepeatingBurst(
+                session.createHighSpeedRequestList(previewRequest!!),
+                captureCallback, backgroundHandler
+            )
+        } else {
+            session.setRepeatingRequest(previewRequest!!, captureCallback, backgroundHandler)
+        }
+    }
+
+    /** Captures [request] once, e.g. for a trigger, in between the repeating requests.  */
+    private fun submitTrigger(session: CameraCaptureSession, request: CaptureRequest) {
+        if (session is CameraConstrainedHighSpeedCaptureSession) {
+            session.captureBurst(session.createHighSpeedRequestList(request), captureCallback, backgroundHandler)
+        } else {
+            session.capture(request, captureCallback, backgroundHandler)
+        }
+    }
+
+    /** Tells everyone waiting in [appliedCallbacks] whether their settings took effect.  */
+    private fun runAppliedCallbacks(applied: Boolean) {
+        appliedTag = null
+        for (callback in appliedCallbacks) {
+            callback(applied)
+        }
+        appliedCallbacks.clear()
+    }
+
     @SuppressLint("MissingPermission")
     private fun openCamera(width: Int, height: Int) {
         if (useApi1) {
             val camid = cameraId?.toIntOrNull() ?: 0
             camera = Camera.open(camid)
-            var params = camera!!.parameters
-            val prevSizes = params.supportedPreviewSizes
-            var arr = prevSizes.map {
-                Size(it.width, it.height)
+            val capabilities = capabilities(CameraCapabilityCache.API_CAMERA1, camid.toString()) {
+                probeCamera1(camid, camera!!)
             }
-            previewSize = chooseOptimalSize(
-                arr.toTypedArray(),
-                inputSize.width,
-                inputSize.height
-            )
+            previewSize = selectStreamConfig(capabilities)
+            sensorOrientation = capabilities.sensorOrientation
 
+            // The only parameters round trip; frames take the size from the preview buffers.
+            var params = camera!!.parameters
             params.setPreviewSize(previewSize!!.width, previewSize!!.height)
+            params.previewFormat = ImageFormat.NV21
             //params.setRecordingHint(true)
             params.focusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO
             camera!!.parameters = params
+            cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation!!)
 
-            val orientation = resources.configuration.orientation
-            if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                textureView!!.setAspectRatio(previewSize!!.width, previewSize!!.height)
-            } else {
-                textureView!!.setAspectRatio(previewSize!!.height, previewSize!!.width)
-            }
+            fitAspectRatio()
             createCameraPreview(camera!!)
             return
         }
@@ -408,9 +855,10 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
     /** Closes the current [CameraDevice].  */
     private fun closeCamera() {
         if(useApi1) {
-            encoder?.stop()
             camera?.stopPreview()
-            camera?.setPreviewCallback(null)
+            camera?.setPreviewCallbackWithBuffer(null)
+            previewBuffers?.release()
+            previewBuffers = null
             surface?.release()
             camera?.release()
             surface = null
@@ -430,6 +878,12 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
                 previewReader!!.close()
                 previewReader = null
             }
+            encoder?.stop()
+            encoder = null
+            undistortionRenderer?.release()
+            undistortionRenderer = null
+            yuvConverter?.release()
+            yuvConverter = null
         } catch (e: InterruptedException) {
             throw RuntimeException("Interrupted while trying to lock camera closing.", e)
         } finally {
@@ -465,7 +919,8 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
         //encoder = Encoder(previewSize!!.width, previewSize!!.height)//, MediaFormat.MIMETYPE_VIDEO_VP8)
         //surface = encoder!!.start()
         //camera.setPreviewDisplay(surface)
-        camera.setPreviewCallback(imageListener)
+        previewBuffers = PreviewBufferRing(camera, previewSize!!.width, previewSize!!.height)
+        camera.setPreviewCallbackWithBuffer(imageListener)
         camera.startPreview()
     }
 
@@ -480,23 +935,107 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
             // This is the output Surface we need to start preview.
             val surface = Surface(texture)
 
-            // We set up a CaptureRequest.Builder with the output Surface.
-            previewRequestBuilder =
-                cameraDevice!!.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW)
-            previewRequestBuilder!!.addTarget(surface)
-
             // LOGGER.i("Opening camera preview: " + previewSize.getWidth() + "x" + previewSize.getHeight());
 
-            // Create the reader for the preview frames.
-            previewReader = ImageReader.newInstance(
-                previewSize!!.width, previewSize!!.height, ImageFormat.YUV_420_888, 3
+            val streamSurface: Surface
+            val sender = imageListener.frameSender
+            val highSpeed = if (useEncoder && sender != null) highSpeedMode else null
+            if (useEncoder && sender != null) {
+                // The camera renders straight into the encoder's input surface.
+                val fps = highSpeed?.fpsRange?.upper ?: aeFpsRange?.upper ?: Encoder.Profile().frameRate
+                encoder = Encoder(
+                    previewSize!!.width, previewSize!!.height, sender,
+                    profile = Encoder.Profile(bitRate = targetBitRate, frameRate = fps)
+                )
+                encoder!!.realtimeTimestamps = realtimeTimestamps
+                streamSurface = undistortionSurface(encoder!!.start())
+            } else {
+                if (undistort) {
+                    Log.w(TAG, "Raw frames are sent distorted, undistortion needs the encoder")
+                }
+                // Create the reader for the preview frames. Images are held until they were sent:
+                // one waits in the sender mailbox, one is written and acquireLatestImage needs two
+                // more.
+                val reader = HeldImageReader(
+                    ImageReader.newInstance(previewSize!!.width, previewSize!!.height, ImageFormat.YUV_420_888, 4)
+                )
+                reader.reader.setOnImageAvailableListener({ imageListener.onImageAvailable(reader) }, backgroundHandler)
+                previewReader = reader
+                streamSurface = reader.reader.surface
+                if (rgbFrames) {
+                    yuvConverter = try {
+                        GpuYuvConverter(previewSize!!.width, previewSize!!.height, imageListener)
+                    } catch (e: IllegalStateException) {
+                        Log.w(TAG, "No GPU conversion to RGB", e)
+                        null
+                    }
+                }
+            }
+
+            // We set up a CaptureRequest.Builder with the output Surfaces. The record template
+            // keeps the frame rate steady instead of trading it for exposure.
+            previewRequestBuilder = cameraDevice!!.createCaptureRequest(
+                if (highSpeed != null) CameraDevice.TEMPLATE_RECORD else CameraDevice.TEMPLATE_PREVIEW
             )
-            previewReader!!.setOnImageAvailableListener(imageListener, backgroundHandler)
-            previewRequestBuilder!!.addTarget(previewReader!!.surface)
+            previewRequestBuilder!!.addTarget(surface)
+            previewRequestBuilder!!.addTarget(streamSurface)
+            yuvConverter?.let { previewRequestBuilder!!.addTarget(it.inputSurface) }
+            if (undistortionRenderer != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                // The mesh expects the uncorrected image.
+                previewRequestBuilder!!.set(
+                    CaptureRequest.DISTORTION_CORRECTION_MODE,
+                    CaptureRequest.DISTORTION_CORRECTION_MODE_OFF
+                )
+            }
+
+            if (highSpeed != null) {
+                createHighSpeedSession(surface, streamSurface, highSpeed)
+            } else {
+                createRegularSession(listOfNotNull(surface, streamSurface, yuvConverter?.inputSurface))
+            }
+        } catch (e: CameraAccessException) {
+            //        LOGGER.e(e, "Exception!");
+        }
+    }
+
+    /**
+     * Puts an [UndistortionRenderer] in front of [encoderSurface] if [undistort] is set and the
+     * camera is calibrated. Returns the surface the camera renders into.
+     */
+    private fun undistortionSurface(encoderSurface: Surface): Surface {
+        if (!undistort) {
+            return encoderSurface
+        }
+        val capabilities = currentCapabilities ?: return encoderSurface
+        val mesh = UndistortionMesh.forCamera(cameraId!!, capabilities, previewSize!!.width, previewSize!!.height)
+        if (mesh == null) {
+            Log.w(TAG, "Camera " + cameraId + " has no lens calibration, frames are sent distorted")
+            return encoderSurface
+        }
+        try {
+            val renderer = UndistortionRenderer(mesh, previewSize!!.width, previewSize!!.height, encoderSurface)
+            undistortionRenderer = renderer
+            return renderer.inputSurface
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "Undistortion not possible, frames are sent distorted", e)
+            return encoderSurface
+        }
+    }
 
-            // Here, we create a CameraCaptureSession for camera preview.
-            cameraDevice!!.createCaptureSession(
-                Arrays.asList(surface, previewReader!!.surface),
+    /**
+     * Starts a constrained high-speed session at the fixed frame rate of [mode]. Such sessions
+     * only take preview and encoder surfaces. If the camera rejects it, now or once it configured
+     * the session, a regular session takes over, see [fallBackFromHighSpeed].
+     */
+    private fun createHighSpeedSession(surface: Surface, streamSurface: Surface, mode: HighSpeedMode) {
+        previewRequestBuilder!!.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mode.fpsRange)
+        previewRequestBuilder!!.set(
+            CaptureRequest.CONTROL_AF_MODE,
+            CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO
+        )
+        try {
+            cameraDevice!!.createConstrainedHighSpeedCaptureSession(
+                Arrays.asList(surface, streamSurface),
                 object : CameraCaptureSession.StateCallback() {
                     override fun onConfigured(cameraCaptureSession: CameraCaptureSession) {
                         // The camera is already closed
@@ -504,41 +1043,92 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
                             return
                         }
 
-                        // When the session is ready, we start displaying the preview.
                         captureSession = cameraCaptureSession
+                        focusLocked = false
                         try {
-                            // Auto focus should be continuous for camera preview.
-                            previewRequestBuilder!!.set(
-                                CaptureRequest.CONTROL_AF_MODE,
-                                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE
-                            )
-                            // Flash is automatically enabled when necessary.
-                            previewRequestBuilder!!.set(
-                                CaptureRequest.CONTROL_AE_MODE,
-                                CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH
-                            )
-
-                            // Finally, we start displaying the camera preview.
-                            previewRequest = previewRequestBuilder!!.build()
-                            captureSession!!.setRepeatingRequest(
-                                previewRequest!!, captureCallback, backgroundHandler
-                            )
+                            submitPreviewRequest(cameraCaptureSession)
+                            Log.d(TAG, "High speed session " + previewSize + " at " + mode.fpsRange)
                         } catch (e: CameraAccessException) {
                             //       LOGGER.e(e, "Exception!");
                         }
                     }
 
                     override fun onConfigureFailed(cameraCaptureSession: CameraCaptureSession) {
-                        showToast("Failed")
+                        if (null == cameraDevice) {
+                            return
+                        }
+                        Log.w(TAG, "High speed session failed")
+                        fallBackFromHighSpeed()
                     }
                 },
-                null
+                backgroundHandler
             )
-        } catch (e: CameraAccessException) {
-            //        LOGGER.e(e, "Exception!");
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "High speed session not possible", e)
+            fallBackFromHighSpeed()
         }
     }
 
+    /**
+     * Gives up on high speed for this camera. A regular session needs its own size, size ladder,
+     * request template, AE range and encoder frame rate, so the configuration is chosen again and
+     * the session recreated from scratch, on the background thread.
+     */
+    private fun fallBackFromHighSpeed() {
+        highSpeedFailed = true
+        highSpeedMode = null
+        val capabilities = currentCapabilities ?: return
+        val size = selectStreamConfig(capabilities)
+        sizeLadder = sizeLadder(capabilities.outputSizes.map { Size(it.width, it.height) }.toTypedArray(), size)
+        Log.w(TAG, "Falling back to " + size + " at " + aeFpsRange)
+        switchCaptureSize(size)
+    }
+
+    /** Starts a regular session at the AE target frame rate range.  */
+    private fun createRegularSession(outputs: List<Surface>) {
+        // Here, we create a CameraCaptureSession for camera preview.
+        cameraDevice!!.createCaptureSession(
+            outputs,
+            object : CameraCaptureSession.StateCallback() {
+                override fun onConfigured(cameraCaptureSession: CameraCaptureSession) {
+                    // The camera is already closed
+                    if (null == cameraDevice) {
+                        return
+                    }
+
+                    // When the session is ready, we start displaying the preview.
+                    captureSession = cameraCaptureSession
+                    focusLocked = false
+                    try {
+                        // Auto focus should be continuous for camera preview.
+                        previewRequestBuilder!!.set(
+                            CaptureRequest.CONTROL_AF_MODE,
+                            CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE
+                        )
+                        // Flash is automatically enabled when necessary.
+                        previewRequestBuilder!!.set(
+                            CaptureRequest.CONTROL_AE_MODE,
+                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH
+                        )
+                        if (aeFpsRange != null) {
+                            previewRequestBuilder!!.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, aeFpsRange)
+                        }
+
+                        // Finally, we start displaying the camera preview.
+                        submitPreviewRequest(cameraCaptureSession)
+                    } catch (e: CameraAccessException) {
+                        //       LOGGER.e(e, "Exception!");
+                    }
+                }
+
+                override fun onConfigureFailed(cameraCaptureSession: CameraCaptureSession) {
+                    showToast("Failed")
+                }
+            },
+            null
+        )
+    }
+
     /**
      * Configures the necessary [Matrix] transformation to `mTextureView`. This method should be
      * called after the camera preview size is determined in setUpCameraOutputs and also the size of
@@ -589,6 +1179,9 @@ class CameraConnectionFragment @SuppressLint("ValidFragment") private constructo
         fun onPreviewSizeChosen(size: Size?, cameraRotation: Int)
     }
 
+    /** A high-speed video size with the fixed frame rate range it runs at.  */
+    private data class HighSpeedMode(val size: Size, val fpsRange: Range<Int>)
+
     /** Compares two `Size`s based on their areas.  */
     internal class CompareSizesByArea : Comparator<Size?> {
         override fun compare(lhs: Size?, rhs: Size?): Int {
@@ -8,11 +8,11 @@ import android.content.Context
 import android.content.pm.PackageManager
 import android.hardware.camera2.CameraAccessException
 import android.hardware.camera2.CameraManager
-import android.media.ImageReader
 import android.os.Build
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
+import android.os.SystemClock
 import android.util.Size
 import android.view.MotionEvent
 import android.view.Surface
@@ -21,19 +21,32 @@ import android.view.WindowInsets
 import android.widget.LinearLayout
 import androidx.fragment.app.Fragment
 import android.graphics.Bitmap
+import android.graphics.ImageFormat
 import android.hardware.Camera
 import android.media.Image
 import android.util.Log
 import android.widget.Button
 import android.widget.FrameLayout
-import androidx.lifecycle.lifecycleScope
-import kotlinx.coroutines.*
-import java.io.DataOutputStream
+import de.lifecapture.phonexrapp.stream.CaptureMetadataRing
+import de.lifecapture.phonexrapp.stream.ConnectionManager
+import de.lifecapture.phonexrapp.stream.ControlChannel
+import de.lifecapture.phonexrapp.stream.DatagramTransport
+import de.lifecapture.phonexrapp.stream.DropReason
+import de.lifecapture.phonexrapp.stream.Frame
+import de.lifecapture.phonexrapp.stream.FrameFormat
+import de.lifecapture.phonexrapp.stream.FramePool
+import de.lifecapture.phonexrapp.stream.FrameProtocol
+import de.lifecapture.phonexrapp.stream.FrameSender
+import de.lifecapture.phonexrapp.stream.LatencyRecorder
+import de.lifecapture.phonexrapp.stream.RateController
+import de.lifecapture.phonexrapp.stream.RawFramePacker
+import de.lifecapture.phonexrapp.stream.StreamTransport
+import de.lifecapture.phonexrapp.stream.YuvPlanes
+import java.io.IOException
 import java.io.PrintWriter
 import java.lang.Runnable
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.net.Socket
 import java.net.SocketAddress
 import java.nio.ByteBuffer
 import kotlin.system.measureTimeMillis
@@ -42,18 +55,192 @@ import kotlin.system.measureTimeMillis
  * An example full-screen activity that shows and hides the system UI (i.e.
  * status bar and navigation/system bar) with user interaction.
  */
-class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Camera.PreviewCallback  {
+class CameraView : AppCompatActivity(), Camera.PreviewCallback,
+    GpuYuvConverter.Listener {
 
     private lateinit var fullscreenContent: FrameLayout
     private lateinit var fullscreenContentControls: LinearLayout
     private val hideHandler = Handler(Looper.myLooper()!!)
 
-    private var socket = Socket()
-    private lateinit var socketOut : DataOutputStream
+    /** Connects [frameSender] and connects it again whenever the receiver goes away. */
+    @Volatile
+    private var connection: ConnectionManager? = null
+
+    /** Writes frames to the receiver, so capture never waits on the network. */
+    val frameSender: FrameSender?
+        get() = connection?.sender
+
+    /** Latency of every stage from exposure to the receiver, see [latencyRunnable]. */
+    private val latencyRecorder = LatencyRecorder { SystemClock.elapsedRealtimeNanos() }
+
+    /** Recycled frame buffers, sized once the preview size is known. */
+    @Volatile
+    var framePool: FramePool? = null
+        private set
+
+    /** Packs images for the protocol negotiated with the receiver. */
+    @Volatile
+    private var packer: RawFramePacker? = null
+    private val yuvPlanes = YuvPlanes()
+
+    /** Capture results of the camera, sent along with the raw frames they belong to. */
+    val captureMetadata = CaptureMetadataRing()
+
+    /** Head pose sent with every frame. */
+    private var headTracker: HeadTracker? = null
+
+    /** Raw IMU side channel, only with [imuStreaming]. Set on the connection thread. */
+    @Volatile
+    private var imuStream: ImuStream? = null
+    @Volatile
+    private var imuTransport: StreamTransport? = null
+
+    private var cameraFragment: CameraConnectionFragment? = null
+    private var rateController: RateController? = null
+
+    private val rateListener = object : RateController.Listener {
+        override fun onBitRateChanged(bitRate: Int) {
+            cameraFragment?.setBitRate(bitRate)
+        }
+
+        override fun onCaptureSizeStep(step: Int): Boolean {
+            return cameraFragment?.stepCaptureSize(step) ?: false
+        }
+    }
+
+    private val connectionListener = object : ConnectionManager.Listener {
+        override fun onConnected(protocol: FrameProtocol) {
+            Log.d("CAMERA_FRAGMENT", "Connected, frame protocol version " + protocol.version)
+            packer = RawFramePacker(protocol).also {
+                it.poseSource = headTracker
+                it.captureMetadata = captureMetadata
+                it.syncableTimestamps = realtimeFrameTimestamps()
+            }
+            if (imuStreaming && imuStream == null) {
+                startImuStream()
+            }
+        }
+
+        override fun onDisconnected(error: IOException) {
+            // Images are closed without packing them until the next connection.
+            packer = null
+            Log.w("CAMERA_FRAGMENT", "Connection lost", error)
+        }
+
+        override fun onConnectFailed(error: IOException, retryInMs: Long) {
+            Log.d("CAMERA_FRAGMENT", "Connecting failed, retry in " + retryInMs + " ms: " + error.message)
+        }
+    }
+
+    /**
+     * Applies the requests of the receiver. Camera changes go through [cameraFragment], the bit
+     * rate becomes the maximum of the [rateController], on the UI thread it runs on.
+     */
+    private val controlListener = ControlChannel.Listener { channel, requestId, command, argument ->
+        val fragment = cameraFragment
+        if (fragment == null) {
+            channel.acknowledge(requestId, command, ControlChannel.STATUS_FAILED, 0)
+            return@Listener
+        }
+        when (command) {
+            ControlChannel.COMMAND_SYNC_FRAME -> fragment.requestSyncFrame { sequence ->
+                if (sequence < 0) {
+                    channel.acknowledge(requestId, command, ControlChannel.STATUS_APPLIED, 0)
+                } else {
+                    channel.acknowledge(requestId, command, ControlChannel.STATUS_APPLIED, 0, sequence)
+                }
+            }
+            ControlChannel.COMMAND_BIT_RATE -> when {
+                !useEncoder -> channel.acknowledge(requestId, command, ControlChannel.STATUS_UNSUPPORTED, 0)
+                argument <= 0 || argument > Int.MAX_VALUE ->
+                    channel.acknowledge(requestId, command, ControlChannel.STATUS_INVALID, 0)
+                else -> hideHandler.post {
+                    val controller = rateController
+                    if (controller == null) {
+                        channel.acknowledge(requestId, command, ControlChannel.STATUS_FAILED, 0)
+                        return@post
+                    }
+                    // The controller hands the bit rate to the fragment, acknowledge behind it.
+                    val bitRate = controller.limitBitRate(argument.toInt())
+                    fragment.setBitRate(bitRate) {
+                        channel.acknowledge(requestId, command, ControlChannel.STATUS_APPLIED, bitRate.toLong())
+                    }
+                }
+            }
+            ControlChannel.COMMAND_FRAME_RATE -> if (argument <= 0 || argument > MAX_FRAME_RATE) {
+                channel.acknowledge(requestId, command, ControlChannel.STATUS_INVALID, 0)
+            } else {
+                fragment.setFrameRate(argument.toInt()) { fps ->
+                    val status = if (fps > 0) ControlChannel.STATUS_APPLIED else ControlChannel.STATUS_UNSUPPORTED
+                    channel.acknowledge(requestId, command, status, fps.toLong())
+                }
+            }
+            ControlChannel.COMMAND_CAPTURE_SIZE -> fragment.setCaptureSize(
+                ControlChannel.captureWidth(argument), ControlChannel.captureHeight(argument)
+            ) { size ->
+                if (size == null) {
+                    channel.acknowledge(requestId, command, ControlChannel.STATUS_UNSUPPORTED, 0)
+                } else {
+                    channel.acknowledge(
+                        requestId, command, ControlChannel.STATUS_APPLIED,
+                        ControlChannel.captureSize(size.width, size.height)
+                    )
+                }
+            }
+            ControlChannel.COMMAND_LOCK_3A -> fragment.lock3A(
+                argument.toInt() and ControlChannel.LOCK_EXPOSURE != 0,
+                argument.toInt() and ControlChannel.LOCK_FOCUS != 0
+            ) { applied ->
+                val status = if (applied) ControlChannel.STATUS_APPLIED else ControlChannel.STATUS_FAILED
+                channel.acknowledge(requestId, command, status, argument)
+            }
+        }
+    }
+
+    private val rateRunnable = object : Runnable {
+        override fun run() {
+            val controller = rateController ?: return
+            if (controller.update(System.nanoTime())) {
+                Log.d("RATE", controller.toString())
+            }
+            hideHandler.postDelayed(this, RateController.UPDATE_INTERVAL_MS)
+        }
+    }
+
+    /** Logs the latency of the last interval, on a timer so encoded frames are covered as well. */
+    private val latencyRunnable = object : Runnable {
+        override fun run() {
+            Log.d("CAMERA_FRAGMENT", "latency us " + latencyRecorder.export())
+            hideHandler.postDelayed(this, LATENCY_EXPORT_INTERVAL_MS)
+        }
+    }
 
     val hostname = "localhost"
     val port = 50000
 
+    /**
+     * Highest frame protocol offered to the receiver, [FrameProtocol.VERSION_1] skips the
+     * handshake. Receivers that answer the hello with something else get version 1, see
+     * [ConnectionManager].
+     */
+    val protocolVersion = FrameProtocol.VERSION_2
+
+    /** Whether to ask the receiver for CRC-32 checksums of the plane data. */
+    val checksums = false
+
+    /**
+     * Whether to send frames as UDP datagrams to [port] instead of over TCP, so a lost packet
+     * drops one frame instead of delaying all later ones.
+     */
+    val datagrams = false
+
+    /** Data fragments per parity fragment with [datagrams], 0 sends no parity. */
+    val parityGroup = 8
+
+    /** Whether to stream the raw IMU samples to [imuPort] as well. */
+    val imuStreaming = false
+    val imuPort = 50001
+
     @SuppressLint("InlinedApi")
     private val hidePart2Runnable = Runnable {
         // Delayed removal of status and navigation bar
@@ -102,39 +289,6 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
 
-        // TODO CAMERA1 TESTCODE
-        val nr = Camera.getNumberOfCameras()
-        for( id in 0 until nr ){
-            var info = Camera.CameraInfo()
-            Camera.getCameraInfo(id, info)
-            Log.d("CAMERA", "" + info.facing)
-            val cam = Camera.open(id)
-            val params = cam.parameters
-            Log.d("CAMERA", "previewFormat " + params.previewFormat)
-            params.supportedPreviewFormats.forEach() {
-                Log.d("CAMERA", "prev_format " + it)
-            }
-            params.supportedPreviewSizes.forEach() {
-                Log.d("CAMERA", "pre_format " + it.width + "x" + it.height)
-            }
-            params.supportedVideoSizes.forEach() {
-                Log.d("CAMERA", "vid_format " + it.width + "x" + it.height)
-            }
-            params.supportedSceneModes.forEach() {
-                Log.d("CAMERA", "Screen Modes " + it)
-            }
-            params.supportedPictureFormats.forEach() {
-                Log.d("CAMERA", "picture formats " + it)
-            }
-            params.supportedPreviewFpsRange.forEach() {
-                Log.d("CAMERA", "FPS " + it.toList())
-            }
-            cam.release()
-        }
-
-
-
-
         //binding = ActivityCameraViewBinding.inflate(layoutInflater)
         setContentView(R.layout.activity_camera_view)//binding.root)
 
@@ -153,14 +307,33 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
         // while interacting with the UI.
         findViewById<Button>(R.id.dummyButton).setOnTouchListener(delayHideTouchListener)
 
-        runBlocking {
-            launch(Dispatchers.IO) {
-                socket.connect(InetSocketAddress(hostname, port))
-                /*val ostream = DataOutputStream(socket.outputStream)
-                ostream.writeBytes("Connected")
-                ostream.flush()*/
-            }
-        }
+        headTracker = HeadTracker(this)
+
+        // Connecting happens in the background, capture starts right away and drops its frames
+        // until the receiver is there.
+        val connection = ConnectionManager(
+            ConnectionManager.Connector {
+                if (datagrams) {
+                    DatagramTransport.connect(hostname, port, parityGroup = parityGroup)
+                } else {
+                    StreamTransport.connect(hostname, port, ConnectionManager.CONNECT_TIMEOUT_MS)
+                }
+            },
+            protocolVersion,
+            (if (checksums) FrameProtocol.CAP_CHECKSUM else 0) or FrameProtocol.CAP_CONTROL or
+                    FrameProtocol.CAP_CLOCK or FrameProtocol.CAP_RECEIPTS,
+            connectionListener, control = controlListener,
+            // Camera images and sensor events are stamped in this clock.
+            localClock = { SystemClock.elapsedRealtimeNanos() }
+        )
+        this.connection = connection
+        connection.sender.latencyRecorder = latencyRecorder
+        rateController = RateController(
+            connection.sender, rateListener, useEncoder, MIN_BIT_RATE, Encoder.Profile().bitRate
+        )
+        connection.start()
+        hideHandler.postDelayed(rateRunnable, RateController.UPDATE_INTERVAL_MS)
+        hideHandler.postDelayed(latencyRunnable, LATENCY_EXPORT_INTERVAL_MS)
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             if (checkSelfPermission(Manifest.permission.CAMERA) == PackageManager.PERMISSION_DENIED
@@ -177,6 +350,54 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
         }
     }
 
+    /** Connects the IMU side channel, on the connection thread. */
+    private fun startImuStream() {
+        val tracker = headTracker ?: return
+        try {
+            imuTransport = StreamTransport.connect(hostname, imuPort, ConnectionManager.CONNECT_TIMEOUT_MS)
+        } catch (e: IOException) {
+            Log.e("CAMERA_FRAGMENT", "No IMU connection", e)
+            return
+        }
+        imuStream = ImuStream(tracker, imuTransport!!, IMU_SAMPLES_PER_PACKET, IMU_MAX_AGE_MS) {
+            Log.e("CAMERA_FRAGMENT", "Sending IMU samples failed", it)
+            // Connected again with the next frame connection.
+            stopImuStream()
+        }
+        imuStream!!.start()
+    }
+
+    private fun stopImuStream() {
+        // Closing first fails a write to a receiver that stopped reading, so the join returns.
+        imuTransport?.close()
+        imuTransport = null
+        imuStream?.shutdown()
+        imuStream = null
+    }
+
+    override fun onResume() {
+        super.onResume()
+        headTracker?.resume()
+    }
+
+    override fun onPause() {
+        headTracker?.pause()
+        super.onPause()
+    }
+
+    override fun onDestroy() {
+        hideHandler.removeCallbacks(rateRunnable)
+        hideHandler.removeCallbacks(latencyRunnable)
+        rateController = null
+        connection?.shutdown()
+        connection = null
+        packer = null
+        stopImuStream()
+        headTracker?.close()
+        headTracker = null
+        super.onDestroy()
+    }
+
     override fun onRequestPermissionsResult(requestCode: Int, permissions: Array<String?>, grantResults: IntArray) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults)
         //TODO show live camera footage
@@ -206,9 +427,15 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
             object :
                 CameraConnectionFragment.ConnectionCallback {
                 override fun onPreviewSizeChosen(size: Size?, cameraRotation: Int) {
+                    framePool = FramePool(
+                        FRAME_POOL_SLOTS,
+                        FrameFormat.frameSize(size!!.width, size.height)
+                    )
                     previewHeight = size!!.height
                     previewWidth = size.width
                     sensorOrientation = cameraRotation - getScreenOrientation()
+                    headTracker?.realtimeTimestamps = realtimeFrameTimestamps()
+                    packer?.syncableTimestamps = realtimeFrameTimestamps()
                 }
             },
             this,
@@ -216,13 +443,13 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
             Size(2048, 1536)
         )
         camera2Fragment.setCamera(cameraId)
+        cameraFragment = camera2Fragment
         fragment = camera2Fragment
         supportFragmentManager.beginTransaction().replace(R.id.fullscreenContent, fragment).commit()
     }
 
     //ON IMAGE AVAILABLE
 
-    private var isProcessingFrame = false
     private val yuvBytes = arrayOfNulls<ByteArray>(3)
     private var rgbBytes: IntArray? = null
     private var yRowStride = 0
@@ -238,83 +465,113 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
         return buffer
     }
 
-    fun sendData(image: Image) {
-        val format = byteArrayOf(16, 1)
-        val width = image.planes[0].rowStride
-        //val bWidth = int2bytearray(width, 2)
-        val height = image.height
-        //val bHeight = int2bytearray(height, 2)
-        //val bWidth2 = int2bytearray(image.width, 2)
-
-        var planeSize = 0
-        val bY = image.planes[0].buffer
-        val bUV = ByteBuffer.allocate((height shr 1) * width)
-        if (image.planes[1].pixelStride == 2) {
-            bUV.put(image.planes[1].buffer)
-            for (row in 0 until (height shr 1)) {
-                val index = row * width + image.width - 1
-                bUV.put(index, image.planes[2].buffer[index-1])
-            }
+    /**
+     * Whether frames are stamped with [SystemClock.elapsedRealtimeNanos], the clock the receiver's
+     * clock is estimated against. Camera1 frames are stamped in onPreviewFrame.
+     */
+    private fun realtimeFrameTimestamps(): Boolean {
+        return useApi1 || cameraFragment?.realtimeTimestamps == true
+    }
+
+    private fun obtainFramePool(frameSize: Int): FramePool {
+        return framePool ?: FramePool(FRAME_POOL_SLOTS, frameSize).also { framePool = it }
+    }
+
+    /** Hands a packed frame to the sender, or drops it while there is no connection. */
+    private fun sendFrame(frame: Frame) {
+        val sender = frameSender
+        if (sender == null) {
+            frame.release()
+            return
         }
-        planeSize += bY.capacity()
-        planeSize += bUV.capacity()
-        bY.rewind()
-        bUV.rewind()
-        //val bPlaneSize = int2bytearray(planeSize, 4)
-        val dummySensor = ByteArray(4*3*4)
-        val buffer = ByteBuffer.allocateDirect(12+planeSize+4*4*3)
-        buffer.put(format)
-        buffer.putShort(width.toShort())
-        buffer.putShort(height.toShort())
-        buffer.putShort(image.width.toShort())
-        //buffer.put(bWidth)
-        //buffer.put(bHeight)
-        //buffer.put(bWidth2)
-        buffer.putInt(planeSize)
-        buffer.put(bY)
-        buffer.put(bUV)
-        buffer.put(dummySensor)
-        buffer.rewind()
-
-        val ostream = DataOutputStream(socket.outputStream)
-        ostream.write(buffer.array())
-        ostream.flush()
-    }
-
-    var previewSending = false
+        sender.offer(frame)
+    }
+
+    /**
+     * Sends the image of [handle] and takes care of closing it. Plane buffers are written in place
+     * where the protocol allows it and stay open until the sender wrote them; other layouts are
+     * repacked. [deliveredNs] is when the image reached the app, for the [latencyRecorder].
+     */
+    fun sendData(handle: HeldImageReader.Handle, deliveredNs: Long = SystemClock.elapsedRealtimeNanos()) {
+        val image = handle.image!!
+        val packer = packer
+        if (packer == null) {
+            // No connection, the image is not even packed.
+            handle.close()
+            frameSender?.countDrop(DropReason.DISCONNECTED)
+            return
+        }
+        val planes = image.planes
+        val crop = image.cropRect
+        yuvPlanes.width = crop.width()
+        yuvPlanes.height = crop.height()
+        yuvPlanes.cropLeft = crop.left
+        yuvPlanes.cropTop = crop.top
+        val timestampNs = image.timestamp
+        yuvPlanes.timestampNs = timestampNs
+        yuvPlanes.format = image.format
+        for (i in 0 until 3) {
+            yuvPlanes.setPlane(i, planes[i].buffer, planes[i].rowStride, planes[i].pixelStride)
+        }
+        val frame = try {
+            packer.pack(obtainFramePool(FrameFormat.frameSize(image.width, image.height)), yuvPlanes, handle)
+        } finally {
+            yuvPlanes.clear()
+        }
+        // Exposure start only counts in the clock of the delivery time.
+        latencyRecorder.onPacked(frame, if (realtimeFrameTimestamps()) timestampNs else 0, deliveredNs)
+        sendFrame(frame)
+    }
 
     override fun onPreviewFrame(data : ByteArray, camera : Camera) {
-        if (previewSending){
+        val buffers = cameraFragment?.previewBuffers ?: return
+        // Buffers of a replaced ring are dropped with it.
+        val buffer = buffers.lookup(data) ?: return
+        val packer = packer
+        if (packer == null) {
+            buffer.close()
+            frameSender?.countDrop(DropReason.DISCONNECTED)
             return
         }
+        val deliveredNs = SystemClock.elapsedRealtimeNanos()
+        val frame = packer.packNv21(
+            obtainFramePool(FrameFormat.frameSize(buffers.frameSize)), buffer.frame(),
+            buffers.width, buffers.height, deliveredNs, ImageFormat.NV21, buffer
+        )
+        // The legacy API does not tell when the exposure started.
+        latencyRecorder.onPacked(frame, 0, deliveredNs)
+        sendFrame(frame)
+        reportFrameStats()
+    }
 
-        val prevSize = camera.parameters.previewSize
-        val format = byteArrayOf(16, 1)
-        val dummySensor = ByteArray(4*4*3)
-        val buffer = ByteBuffer.allocateDirect(12+data.size+4*4*3)
-        buffer.put(format)
-        buffer.putShort(prevSize.width.toShort())
-        buffer.putShort(prevSize.height.toShort())
-        buffer.putShort(prevSize.width.toShort())
-        buffer.putInt(data.size)
-        buffer.put(data)
-        buffer.put(dummySensor)
-        buffer.rewind()
-
-        //runBlocking {
-            lifecycleScope.launch(Dispatchers.IO) {
-                previewSending = true
-                val ostream = DataOutputStream(socket.outputStream)
-                ostream.write(buffer.array())
-                ostream.flush()
-                previewSending = false
-            }
-        //}
+    private var framesSinceReport = 0
+
+    @Volatile
+    private var rgbFrameCount = 0L
+
+    /** RGB frames converted on the GPU with [rgbFrames], the place for on-device processing. */
+    override fun onRgbFrame(bitmap: Bitmap, timestampNs: Long) {
+        rgbFrameCount++
     }
 
-    private var frameskip = 0
+    private fun reportFrameStats() {
+        if (++framesSinceReport < STATS_INTERVAL) {
+            return
+        }
+        framesSinceReport = 0
+        val sender = frameSender ?: return
+        Log.d("CAMERA_FRAGMENT", "sent " + sender.sent +
+                " overwritten " + sender.drops(DropReason.MAILBOX_OVERWRITE) +
+                " slow close " + sender.drops(DropReason.SLOW_IMAGE_CLOSE) +
+                " disconnected " + sender.drops(DropReason.DISCONNECTED) +
+                " pool hits " + framePool?.hits + " misses " + framePool?.misses +
+                " " + captureMetadata + (sender.protocol.clock?.let { " clock " + it } ?: "") +
+                if (rgbFrames) " rgb frames " + rgbFrameCount else "")
+    }
 
-    override fun onImageAvailable(reader: ImageReader) {
+    /** A new image of the [CameraConnectionFragment]'s stream reader. */
+    fun onImageAvailable(reader: HeldImageReader) {
+        val deliveredNs = SystemClock.elapsedRealtimeNanos()
         // We need wait until we have some size from onPreviewSizeChosen
         if (previewWidth == 0 || previewHeight == 0) {
             return
@@ -325,26 +582,16 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
         }
 
         try {
-            val image = reader.acquireLatestImage() ?: return
+            val handle = try {
+                reader.acquireLatestImage()
+            } catch (e: IllegalStateException) {
+                // All images are still held, the frames behind them are lost.
+                frameSender?.countDrop(DropReason.SLOW_IMAGE_CLOSE)
+                null
+            } ?: return
 
-            if (isProcessingFrame) {
-                frameskip++
-                image.close()
-                return
-            }
-            if (frameskip > 0) {
-                Log.d("CAMERA_FRAGMENT", "frameskip " + frameskip)
-                frameskip = 0
-            }
-            isProcessingFrame = true
-
-            runBlocking {
-                launch(Dispatchers.IO) {
-                    sendData(image)
-                }
-            }
-            isProcessingFrame = false
-            image.close()
+            sendData(handle, deliveredNs)
+            reportFrameStats()
 
 /*            val planes = image.planes
             fillBytes(planes, yuvBytes)
@@ -376,8 +623,12 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
 
     private fun processImage() {
         imageConverter!!.run()
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888)
-        rgbFrameBitmap?.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight)
+        var bitmap = rgbFrameBitmap
+        if (bitmap == null || bitmap.width != previewWidth || bitmap.height != previewHeight) {
+            bitmap = Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888)
+            rgbFrameBitmap = bitmap
+        }
+        bitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight)
         postInferenceCallback!!.run()
     }
 
@@ -483,5 +734,29 @@ class CameraView : AppCompatActivity(), ImageReader.OnImageAvailableListener, Ca
          * and a change of the status and navigation bar.
          */
         private const val UI_ANIMATION_DELAY = 300
+
+        /**
+         * Number of pooled frame buffers: one is packed, one waits in the sender mailbox and one
+         * is written to the socket.
+         */
+        private const val FRAME_POOL_SLOTS = 3
+
+        /** Number of frames between two log lines with the sender statistics. */
+        private const val STATS_INTERVAL = 100
+
+        /** Time covered by one log line of [latencyRecorder]. */
+        private const val LATENCY_EXPORT_INTERVAL_MS = 5000L
+
+        /** Lowest bit rate the rate controller may choose for the encoder. */
+        private const val MIN_BIT_RATE = 500_000
+
+        /** Raw IMU samples per side channel packet. */
+        private const val IMU_SAMPLES_PER_PACKET = 32
+
+        /** Longest time a raw IMU sample waits for its packet to fill up. */
+        private const val IMU_MAX_AGE_MS = 10
+
+        /** Highest frame rate the receiver may ask for. */
+        private const val MAX_FRAME_RATE = 240
     }
 }
\ No newline at end of file
@@ -5,15 +5,93 @@ import android.media.MediaCodecInfo
 import android.media.MediaCodecList
 import android.media.MediaFormat
 import android.media.MediaFormat.MIMETYPE_VIDEO_AVC
+import android.os.Build
+import android.os.Bundle
+import android.os.SystemClock
 import android.util.Log
 import android.view.Surface
+import de.lifecapture.phonexrapp.stream.ClockSync
+import de.lifecapture.phonexrapp.stream.Crc32
+import de.lifecapture.phonexrapp.stream.DropReason
+import de.lifecapture.phonexrapp.stream.Frame
+import de.lifecapture.phonexrapp.stream.FrameFormat
+import de.lifecapture.phonexrapp.stream.FramePool
+import de.lifecapture.phonexrapp.stream.FrameSender
+import de.lifecapture.phonexrapp.stream.LatencyHistogram
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Encodes the frames drawn into [surface] and streams every access unit through [sender].
+ */
+class Encoder(
+    val width : Int,
+    val height : Int,
+    private val sender: FrameSender,
+    format : String = MIMETYPE_VIDEO_AVC,
+    val profile: Profile = Profile()
+) {
+    /**
+     * Encoder settings. The defaults are tuned for low latency: realtime priority, one frame of
+     * output latency, no B-frames and a periodic intra refresh instead of full IDR frames.
+     *
+     * @param bitRate Target bit rate in bits per second
+     * @param frameRate Expected frame rate of the input surface
+     * @param realtime Whether the codec runs with realtime priority
+     * @param latency Frames the codec may hold back before producing output, 0 leaves the default
+     * @param intraRefreshPeriod Frames over which a full intra refresh is spread, 0 for IDR frames
+     * @param iFrameInterval Seconds between IDR frames when intra refresh is not used
+     */
+    data class Profile(
+        val bitRate: Int = 8_000_000,
+        val frameRate: Int = 30,
+        val realtime: Boolean = true,
+        val latency: Int = 1,
+        val intraRefreshPeriod: Int = 30,
+        val iFrameInterval: Int = 5
+    )
 
-class Encoder(val width : Int, val height : Int, format : String = MIMETYPE_VIDEO_AVC) {
     val mediaFormat = MediaFormat.createVideoFormat(format, width, height)
     val codecName = MediaCodecList(MediaCodecList.ALL_CODECS).findEncoderForFormat(mediaFormat)
     val mediaCodec = MediaCodec.createByCodecName(codecName)
     var surface: Surface? = null
 
+    private val framePool = FramePool(FRAME_POOL_SLOTS, width * height / 4)
+
+    /** Set when an access unit had to be dropped, later ones are skipped until a key frame. */
+    private var waitForKeyFrame = false
+
+    /** [FrameSender.connections] when the last sync frame was requested. */
+    private var syncRequestedFor = -1
+
+    /** Codec configuration (e.g. SPS/PPS), sent ahead of the first frame of every connection. */
+    private var codecConfig: ByteBuffer? = null
+    private var codecConfigTimeUs = 0L
+
+    /** [FrameSender.connections] the codec configuration was last sent on. */
+    private var configSentFor = -1
+
+    /** Waiting for the next key frame that goes out, see [requestSyncFrame]. */
+    private val syncListeners = ConcurrentLinkedQueue<(Int) -> Unit>()
+
+    /** Sequence number of the last frame built by [frame]. */
+    private var lastSequence = 0
+
+    /**
+     * Whether frame timestamps are in the [SystemClock.elapsedRealtimeNanos] base, see
+     * `CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE`. Otherwise they are monotonic, and
+     * frames go without receiver time: the app syncs the receiver's clock against
+     * [SystemClock.elapsedRealtimeNanos].
+     */
+    var realtimeTimestamps = false
+
+    /**
+     * Time in microseconds from the frame's capture to its encoded output. The presentation time
+     * of camera frames is the sensor timestamp, so this covers exposure, image processing and the
+     * wait for the codec besides the encoding itself.
+     */
+    val captureToOutputLatency = LatencyHistogram()
+
     fun start() :Surface {
         Log.d("CODEC", codecName)
 //        MediaCodecList(MediaCodecList.ALL_CODECS).codecInfos.forEach() {
@@ -25,15 +103,11 @@ class Encoder(val width : Int, val height : Int, format : String = MIMETYPE_VIDE
 //                Log.d("CODEC", info)
 //            }
 //        }
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30)
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible)
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 5)
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, 24000)
-        mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
-        surface = mediaCodec.createInputSurface()
+        configureFormat()
+        // The callback has to be set before configure, otherwise the codec runs synchronously.
         mediaCodec.setCallback(object : MediaCodec.Callback() {
             override fun onInputBufferAvailable(p0: MediaCodec, p1: Int) {
-                // TODO("Not yet implemented")
+                // Input comes from the surface.
             }
 
             override fun onOutputBufferAvailable(
@@ -41,28 +115,204 @@ class Encoder(val width : Int, val height : Int, format : String = MIMETYPE_VIDE
                 index: Int,
                 info: MediaCodec.BufferInfo
             ) {
+                if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG == 0) {
+                    captureToOutputLatency.record(nowUs() - info.presentationTimeUs)
+                }
                 val buffer = mc.getOutputBuffer(index)
-                Log.d("ENCODER", "Length " +  buffer?.capacity())
+                if (buffer != null && info.size > 0) {
+                    send(buffer, info)
+                }
                 mc.releaseOutputBuffer(index, false)
             }
 
             override fun onOutputFormatChanged(p0: MediaCodec, p1: MediaFormat) {
-                // TODO("Not yet implemented")
+                Log.d("ENCODER", "Output format " + p1)
             }
 
             override fun onError(p0: MediaCodec, p1: MediaCodec.CodecException) {
-                // TODO("Not yet implemented")
+                Log.e("ENCODER", "Encoder failed", p1)
             }
         })
-        mediaCodec.flush()
+        mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        surface = mediaCodec.createInputSurface()
         mediaCodec.start()
         return surface!!
     }
 
+    private fun configureFormat() {
+        val capabilities = mediaCodec.codecInfo.getCapabilitiesForType(mediaFormat.getString(MediaFormat.KEY_MIME))
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, profile.frameRate)
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, profile.bitRate)
+        if (capabilities.encoderCapabilities.isBitrateModeSupported(
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            // Constant bit rate keeps the frames evenly sized, without spikes on the link.
+            mediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)
+        }
+        mediaFormat.setInteger(MediaFormat.KEY_PRIORITY, if (profile.realtime) 0 else 1)
+        if (profile.latency > 0) {
+            mediaFormat.setInteger(MediaFormat.KEY_LATENCY, profile.latency)
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mediaFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0)
+        } else if (mediaFormat.getString(MediaFormat.KEY_MIME) == MIMETYPE_VIDEO_AVC) {
+            // Baseline has no B-frames.
+            mediaFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline)
+        }
+        if (profile.intraRefreshPeriod > 0 && capabilities.isFeatureSupported(
+                MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            mediaFormat.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, profile.intraRefreshPeriod)
+            // Only the first frame is an IDR frame, later ones are requested when needed.
+            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, NO_PERIODIC_I_FRAMES)
+        } else {
+            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, profile.iFrameInterval)
+        }
+    }
+
+    /** Asks the codec to make the next frame a sync frame, e.g. after frames were lost. */
+    fun requestSyncFrame() {
+        syncRequestedFor = sender.connections
+        val params = Bundle()
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0)
+        mediaCodec.setParameters(params)
+    }
+
+    /**
+     * Requests a sync frame like [requestSyncFrame] and calls [onSent] with its sequence number
+     * once it was queued, on the codec thread. Frames of version 1 have no sequence number, there
+     * it is -1.
+     */
+    fun requestSyncFrame(onSent: (sequence: Int) -> Unit) {
+        syncListeners.add(onSent)
+        requestSyncFrame()
+    }
+
+    /** Changes the target bit rate of the running codec. */
+    fun setBitRate(bitRate: Int) {
+        val params = Bundle()
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate)
+        mediaCodec.setParameters(params)
+    }
+
+    private fun nowUs(): Long {
+        val nanos = if (realtimeTimestamps) SystemClock.elapsedRealtimeNanos() else System.nanoTime()
+        return nanos / 1000
+    }
+
+    /** Frames one access unit with its presentation time and key frame flag and queues it. */
+    private fun send(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        var flags = 0
+        if (info.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0) {
+            flags = flags or FrameFormat.FLAG_KEY_FRAME
+        }
+        if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+            flags = flags or FrameFormat.FLAG_CODEC_CONFIG
+        }
+        buffer.position(info.offset)
+        buffer.limit(info.offset + info.size)
+        if (flags and FrameFormat.FLAG_CODEC_CONFIG != 0) {
+            // Comes once per stream, but every connection needs it.
+            codecConfig = ByteBuffer.allocateDirect(info.size).put(buffer)
+            codecConfigTimeUs = info.presentationTimeUs
+            buffer.position(info.offset)
+        }
+        if (!sender.connected) {
+            sender.countDrop(DropReason.DISCONNECTED)
+            waitForKeyFrame = true
+            return
+        }
+        if (waitForKeyFrame && flags == 0) {
+            // A new connection has to start with a key frame.
+            if (syncRequestedFor != sender.connections) {
+                requestSyncFrame()
+            }
+            sender.countDrop(DropReason.QUEUE_FULL)
+            return
+        }
+
+        val connection = sender.connections
+        val config = codecConfig
+        if (config != null && configSentFor != connection && flags and FrameFormat.FLAG_CODEC_CONFIG == 0) {
+            config.clear()
+            if (sender.queue(frame(config, FrameFormat.FLAG_CODEC_CONFIG, codecConfigTimeUs))) {
+                configSentFor = connection
+            }
+        }
+        if (!sender.queue(frame(buffer, flags, info.presentationTimeUs))) {
+            if (syncRequestedFor != sender.connections) {
+                requestSyncFrame()
+            }
+            waitForKeyFrame = true
+        } else if (flags and FrameFormat.FLAG_KEY_FRAME != 0) {
+            waitForKeyFrame = false
+            syncRequestedFor = -1
+            while (true) {
+                val listener = syncListeners.poll() ?: break
+                listener(lastSequence)
+            }
+        } else if (flags and FrameFormat.FLAG_CODEC_CONFIG != 0) {
+            configSentFor = connection
+        }
+    }
+
+    /** Frames the remaining bytes of [buffer] in the negotiated protocol. */
+    private fun frame(buffer: ByteBuffer, flags: Int, presentationTimeUs: Long): Frame {
+        val size = buffer.remaining()
+        val protocol = sender.protocol
+        val frame: Frame
+        if (protocol.version >= FrameFormat.VERSION_2) {
+            val checksum = protocol.checksums
+            val timestampNs = presentationTimeUs * 1000
+            val receiverTimeNs = if (realtimeTimestamps) protocol.receiverTime(timestampNs) else ClockSync.NO_TIME
+            val synced = receiverTimeNs != ClockSync.NO_TIME
+            var headerFlags = if (checksum) flags or FrameFormat.FLAG_CHECKSUM else flags
+            if (synced) {
+                headerFlags = headerFlags or FrameFormat.FLAG_RECEIVER_TIME
+            }
+            frame = framePool.acquire(FrameFormat.headerSizeV2(1, checksum, synced) + size)
+            val data = frame.data
+            lastSequence = protocol.nextSequence()
+            frame.sequence = lastSequence
+            val start = FrameFormat.beginHeaderV2(
+                data, FrameFormat.TYPE_ENCODED, lastSequence, timestampNs, width, height, 0, headerFlags, 1, 0
+            )
+            FrameFormat.putPlaneV2(data, size, 0, 0)
+            val crc = if (checksum) Crc32.finish(Crc32.update(Crc32.INITIAL, buffer)) else 0
+            FrameFormat.endHeaderV2(data, start, crc, receiverTimeNs)
+            data.put(buffer)
+        } else {
+            lastSequence = -1
+            frame = framePool.acquire(FrameFormat.encodedFrameSize(size))
+            FrameFormat.putEncodedHeader(frame.data, flags, presentationTimeUs, size)
+            frame.data.put(buffer)
+        }
+        val data = frame.data
+        data.flip()
+        frame.addSegment(data)
+        if (flags and FrameFormat.FLAG_CODEC_CONFIG == 0) {
+            // The codec takes its input from a surface, when the image arrived is unknown.
+            val captureNs = if (realtimeTimestamps) presentationTimeUs * 1000 else 0
+            sender.latencyRecorder?.onPacked(frame, captureNs, 0)
+        }
+        return frame
+    }
+
     fun stop() {
+        Log.d("ENCODER", codecName + " capture to output latency us " + captureToOutputLatency)
         mediaCodec.stop()
         mediaCodec.release()
         surface?.release()
         surface = null
     }
-}
\ No newline at end of file
+
+    companion object {
+        /** One frame per slot of the sender queue, plus the one being filled. */
+        private const val FRAME_POOL_SLOTS = FrameSender.QUEUE_CAPACITY + 1
+
+        /**
+         * Large I-frame interval for intra refresh. Negative values (no key frames after the
+         * first) are only understood from API 25 on.
+         */
+        private val NO_PERIODIC_I_FRAMES = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) -1 else 3600
+    }
+}
@@ -0,0 +1,211 @@
+package de.lifecapture.phonexrapp
+
+import android.graphics.SurfaceTexture
+import android.opengl.EGL14
+import android.opengl.EGLConfig
+import android.opengl.EGLContext
+import android.opengl.EGLDisplay
+import android.opengl.EGLExt
+import android.opengl.EGLSurface
+import android.opengl.GLES11Ext
+import android.opengl.GLES20
+import android.os.Handler
+import android.os.HandlerThread
+import android.view.Surface
+import java.util.concurrent.CountDownLatch
+
+/**
+ * A GLES stage between the camera and an output surface, the base of [UndistortionRenderer] and
+ * [GpuYuvConverter].
+ *
+ * The camera renders into [inputSurface], an external texture; for every frame [draw] runs with
+ * the texture bound and the result is presented with the camera timestamp. All GL work happens
+ * on a thread of its own.
+ */
+abstract class GlStage(name: String, protected val width: Int, protected val height: Int) :
+    SurfaceTexture.OnFrameAvailableListener {
+    private val thread = HandlerThread(name).also { it.start() }
+    protected val handler = Handler(thread.looper)
+
+    private var display: EGLDisplay = EGL14.EGL_NO_DISPLAY
+    private var context: EGLContext = EGL14.EGL_NO_CONTEXT
+    private var eglSurface: EGLSurface = EGL14.EGL_NO_SURFACE
+    private var texture = 0
+    private val transform = FloatArray(16)
+
+    private lateinit var surfaceTexture: SurfaceTexture
+
+    /** The surface the camera renders into. */
+    lateinit var inputSurface: Surface
+        private set
+
+    /**
+     * Sets up the GL state for [output] on the stage thread and waits for it. Subclasses call this
+     * last in their constructor. Throws [IllegalStateException] if the stage cannot run.
+     */
+    protected fun start(output: Surface) {
+        val ready = CountDownLatch(1)
+        var failure: IllegalStateException? = null
+        handler.post {
+            try {
+                setUp(output)
+            } catch (e: IllegalStateException) {
+                failure = e
+            } finally {
+                ready.countDown()
+            }
+        }
+        ready.await()
+        failure?.let {
+            release()
+            throw it
+        }
+    }
+
+    /** Creates programs and buffers, called on the stage thread with the context current. */
+    protected abstract fun setUpGl()
+
+    /** Draws the current frame of the external texture, sampled through [transform]. */
+    protected abstract fun draw(texture: Int, transform: FloatArray)
+
+    /** Called on the stage thread before the context goes away. */
+    protected open fun tearDownGl() {}
+
+    override fun onFrameAvailable(texture: SurfaceTexture) {
+        if (context == EGL14.EGL_NO_CONTEXT) {
+            return
+        }
+        surfaceTexture.updateTexImage()
+        surfaceTexture.getTransformMatrix(transform)
+        GLES20.glViewport(0, 0, width, height)
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0)
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, this.texture)
+        draw(this.texture, transform)
+        EGLExt.eglPresentationTimeANDROID(display, eglSurface, surfaceTexture.timestamp)
+        EGL14.eglSwapBuffers(display, eglSurface)
+    }
+
+    /** Tears down the GL state and stops the thread. The output surface stays with its owner. */
+    open fun release() {
+        handler.post { tearDown() }
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun setUp(output: Surface) {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY)
+        val version = IntArray(2)
+        check(EGL14.eglInitialize(display, version, 0, version, 1)) { "eglInitialize failed" }
+        val configs = arrayOfNulls<EGLConfig>(1)
+        val count = IntArray(1)
+        val attributes = intArrayOf(
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            // Needed to render into a MediaCodec input surface.
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL14.EGL_NONE
+        )
+        check(EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, count, 0) && count[0] > 0) {
+            "No recordable EGL config"
+        }
+        context = EGL14.eglCreateContext(
+            display, configs[0], EGL14.EGL_NO_CONTEXT,
+            intArrayOf(EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE), 0
+        )
+        eglSurface = EGL14.eglCreateWindowSurface(display, configs[0], output, intArrayOf(EGL14.EGL_NONE), 0)
+        check(
+            context != EGL14.EGL_NO_CONTEXT && eglSurface != EGL14.EGL_NO_SURFACE &&
+                    EGL14.eglMakeCurrent(display, eglSurface, eglSurface, context)
+        ) { "Cannot make the EGL context current: " + EGL14.eglGetError() }
+
+        val names = IntArray(1)
+        GLES20.glGenTextures(1, names, 0)
+        texture = names[0]
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE)
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE)
+        setUpGl()
+
+        surfaceTexture = SurfaceTexture(texture)
+        surfaceTexture.setDefaultBufferSize(width, height)
+        surfaceTexture.setOnFrameAvailableListener(this, handler)
+        inputSurface = Surface(surfaceTexture)
+    }
+
+    private fun tearDown() {
+        if (::inputSurface.isInitialized) {
+            inputSurface.release()
+            surfaceTexture.release()
+        }
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                tearDownGl()
+            }
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)
+            if (eglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(display, eglSurface)
+            }
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(display, context)
+            }
+            EGL14.eglTerminate(display)
+        }
+        display = EGL14.EGL_NO_DISPLAY
+        context = EGL14.EGL_NO_CONTEXT
+        eglSurface = EGL14.EGL_NO_SURFACE
+    }
+
+    /** Compiles and links a program, throws [IllegalStateException] with the log on failure. */
+    protected fun createProgram(vertexSource: String, fragmentSource: String): Int {
+        val vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, vertexSource)
+        val fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource)
+        val program = GLES20.glCreateProgram()
+        GLES20.glAttachShader(program, vertexShader)
+        GLES20.glAttachShader(program, fragmentShader)
+        GLES20.glLinkProgram(program)
+        val status = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0)
+        if (status[0] == 0) {
+            val log = GLES20.glGetProgramInfoLog(program)
+            GLES20.glDeleteProgram(program)
+            throw IllegalStateException("Cannot link program: " + log)
+        }
+        return program
+    }
+
+    private fun compileShader(type: Int, source: String): Int {
+        val shader = GLES20.glCreateShader(type)
+        GLES20.glShaderSource(shader, source)
+        GLES20.glCompileShader(shader)
+        val status = IntArray(1)
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0)
+        if (status[0] == 0) {
+            val log = GLES20.glGetShaderInfoLog(shader)
+            GLES20.glDeleteShader(shader)
+            throw IllegalStateException("Cannot compile shader: " + log)
+        }
+        return shader
+    }
+
+    companion object {
+        private const val EGL_RECORDABLE_ANDROID = 0x3142
+
+        const val FLOAT_SIZE = 4
+
+        /** Samples the external texture, the fragment shader of every stage. */
+        const val EXTERNAL_FRAGMENT_SHADER = """
+            #extension GL_OES_EGL_image_external : require
+            precision mediump float;
+            uniform samplerExternalOES image;
+            varying vec2 sourceCoord;
+            void main() {
+                gl_FragColor = texture2D(image, sourceCoord);
+            }
+        """
+    }
+}
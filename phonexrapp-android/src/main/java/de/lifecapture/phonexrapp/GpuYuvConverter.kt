@@ -0,0 +1,168 @@
+package de.lifecapture.phonexrapp
+
+import android.graphics.Bitmap
+import android.graphics.PixelFormat
+import android.hardware.HardwareBuffer
+import android.media.Image
+import android.media.ImageReader
+import android.opengl.GLES20
+import android.os.Build
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Converts camera frames to RGB on the GPU, replacing the per-pixel loops of [ImageUtils].
+ *
+ * The camera renders into [inputSurface]; the external texture sampler does the YUV to RGB
+ * conversion while a full-frame quad is drawn into an RGBA [ImageReader]. Its buffers are
+ * reused round robin, and so is the [Bitmap] handed to [listener]: nothing is allocated per frame
+ * and the CPU only copies the finished pixels.
+ *
+ * [ImageUtils.convertYUV420ToARGB8888Scalar] stays the reference the output is tested against.
+ */
+class GpuYuvConverter(
+    width: Int,
+    height: Int,
+    private val listener: Listener
+) : GlStage("YuvConverter", width, height) {
+
+    interface Listener {
+        /**
+         * Called on the converter thread with the RGB frame captured at [timestampNs]. [bitmap] is
+         * overwritten by the next frame, so it must not be used after returning.
+         */
+        fun onRgbFrame(bitmap: Bitmap, timestampNs: Long)
+    }
+
+    private val reader = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        ImageReader.newInstance(
+            width, height, PixelFormat.RGBA_8888, MAX_IMAGES,
+            HardwareBuffer.USAGE_GPU_COLOR_OUTPUT or HardwareBuffer.USAGE_CPU_READ_OFTEN
+        )
+    } else {
+        ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES)
+    }
+    private val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+
+    // Tightly packed copy of images whose rows are padded, allocated on first need.
+    private var packed: ByteBuffer? = null
+
+    private var program = 0
+    private var vertexBuffer = 0
+    private var positionLocation = 0
+    private var texCoordLocation = 0
+    private var transformLocation = 0
+
+    /** Frames converted and handed to [listener]. */
+    @Volatile
+    var converted = 0L
+        private set
+
+    init {
+        reader.setOnImageAvailableListener({ onImageAvailable(it) }, handler)
+        try {
+            start(reader.surface)
+        } catch (e: IllegalStateException) {
+            reader.close()
+            throw e
+        }
+    }
+
+    override fun setUpGl() {
+        program = createProgram(VERTEX_SHADER, EXTERNAL_FRAGMENT_SHADER)
+        positionLocation = GLES20.glGetAttribLocation(program, "position")
+        texCoordLocation = GLES20.glGetAttribLocation(program, "texCoord")
+        transformLocation = GLES20.glGetUniformLocation(program, "transform")
+
+        val names = IntArray(1)
+        GLES20.glGenBuffers(1, names, 0)
+        vertexBuffer = names[0]
+        val quad = ByteBuffer.allocateDirect(QUAD.size * FLOAT_SIZE).order(ByteOrder.nativeOrder())
+        quad.asFloatBuffer().put(QUAD)
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer)
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, quad.capacity(), quad, GLES20.GL_STATIC_DRAW)
+    }
+
+    override fun draw(texture: Int, transform: FloatArray) {
+        GLES20.glUseProgram(program)
+        GLES20.glUniformMatrix4fv(transformLocation, 1, false, transform, 0)
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer)
+        GLES20.glEnableVertexAttribArray(positionLocation)
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 0)
+        GLES20.glEnableVertexAttribArray(texCoordLocation)
+        GLES20.glVertexAttribPointer(texCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 2 * FLOAT_SIZE)
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
+    }
+
+    override fun tearDownGl() {
+        GLES20.glDeleteBuffers(1, intArrayOf(vertexBuffer), 0)
+        GLES20.glDeleteProgram(program)
+    }
+
+    override fun release() {
+        super.release()
+        reader.close()
+    }
+
+    private fun onImageAvailable(reader: ImageReader) {
+        val image = try {
+            reader.acquireLatestImage()
+        } catch (e: IllegalStateException) {
+            null
+        } ?: return
+        try {
+            copyToBitmap(image)
+            listener.onRgbFrame(bitmap, image.timestamp)
+            converted++
+        } finally {
+            image.close()
+        }
+    }
+
+    /** Copies the RGBA pixels of [image] into [bitmap], whose memory layout is RGBA as well. */
+    private fun copyToBitmap(image: Image) {
+        val plane = image.planes[0]
+        val pixels = plane.buffer
+        val rowBytes = width * 4
+        if (plane.rowStride == rowBytes) {
+            pixels.rewind()
+            bitmap.copyPixelsFromBuffer(pixels)
+            return
+        }
+        val packed = packed ?: ByteBuffer.allocateDirect(rowBytes * height).also { packed = it }
+        packed.clear()
+        for (row in 0 until height) {
+            pixels.limit(row * plane.rowStride + rowBytes)
+            pixels.position(row * plane.rowStride)
+            packed.put(pixels)
+        }
+        packed.flip()
+        bitmap.copyPixelsFromBuffer(packed)
+    }
+
+    companion object {
+        /** One image is copied while the GPU draws the next. */
+        private const val MAX_IMAGES = 2
+
+        private const val STRIDE = 4 * FLOAT_SIZE
+
+        // Full-frame triangle strip: x, y and the texture coordinate of each corner.
+        private val QUAD = floatArrayOf(
+            -1f, -1f, 0f, 0f,
+            1f, -1f, 1f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, 1f, 1f, 1f
+        )
+
+        private const val VERTEX_SHADER = """
+            uniform mat4 transform;
+            attribute vec4 position;
+            attribute vec2 texCoord;
+            varying vec2 sourceCoord;
+            void main() {
+                gl_Position = position;
+                sourceCoord = (transform * vec4(texCoord, 0.0, 1.0)).xy;
+            }
+        """
+    }
+}
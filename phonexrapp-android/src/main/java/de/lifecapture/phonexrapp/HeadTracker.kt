@@ -0,0 +1,118 @@
+package de.lifecapture.phonexrapp
+
+import android.content.Context
+import android.os.SystemClock
+import de.lifecapture.phonexrapp.stream.FrameFormat
+import de.lifecapture.phonexrapp.stream.PoseSource
+import java.io.Closeable
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Head pose from the Cardboard SDK head tracker, sampled at the timestamp of each camera frame.
+ *
+ * The native side writes the pose into a direct buffer allocated once, so [putPose] neither
+ * allocates nor crosses JNI with any object but that buffer.
+ */
+class HeadTracker(context: Context) : PoseSource, Closeable {
+    private var nativeTracker = nativeCreate(context)
+
+    /** Orientation quaternion (x, y, z, w) followed by position (x, y, z), in native order. */
+    private val pose = ByteBuffer.allocateDirect(POSE_FLOATS * 4).order(ByteOrder.nativeOrder())
+
+    /**
+     * Whether frame timestamps are in the [SystemClock.elapsedRealtimeNanos] base the tracker
+     * expects. Otherwise they are [System.nanoTime] based and get converted.
+     */
+    @Volatile
+    var realtimeTimestamps = true
+
+    /** Viewport orientation passed to the tracker, a `CardboardViewportOrientation` value. */
+    @Volatile
+    var viewportOrientation = LANDSCAPE_LEFT
+
+    /** The native `CardboardHeadTracker`, for other JNI code attaching to it. */
+    internal val nativeHandle: Long
+        get() = nativeTracker
+
+    @Synchronized
+    fun resume() {
+        if (nativeTracker != 0L) {
+            nativeResume(nativeTracker)
+        }
+    }
+
+    @Synchronized
+    fun pause() {
+        if (nativeTracker != 0L) {
+            nativePause(nativeTracker)
+        }
+    }
+
+    /** Aligns the current heading with zero yaw. */
+    @Synchronized
+    fun recenter() {
+        if (nativeTracker != 0L) {
+            nativeRecenter(nativeTracker)
+        }
+    }
+
+    @Synchronized
+    override fun putPose(buffer: ByteBuffer, timestampNs: Long) {
+        if (nativeTracker == 0L) {
+            FrameFormat.putSensor(buffer)
+            return
+        }
+        val bootTimeNs = if (realtimeTimestamps) {
+            timestampNs
+        } else {
+            timestampNs + SystemClock.elapsedRealtimeNanos() - System.nanoTime()
+        }
+        nativeGetPose(nativeTracker, bootTimeNs, viewportOrientation, pose)
+
+        buffer.putLong(timestampNs)
+        for (i in 0 until POSE_FLOATS) {
+            buffer.putFloat(pose.getFloat(i * 4))
+        }
+        buffer.putInt(FrameFormat.SENSOR_POSE_VALID)
+        buffer.putInt(0)
+        buffer.putInt(0)
+    }
+
+    @Synchronized
+    override fun close() {
+        if (nativeTracker != 0L) {
+            nativeDestroy(nativeTracker)
+            nativeTracker = 0L
+        }
+    }
+
+    companion object {
+        /** `kLandscapeLeft`, the orientation the activity runs in. */
+        const val LANDSCAPE_LEFT = 0
+
+        private const val POSE_FLOATS = 7
+
+        init {
+            System.loadLibrary("cardboard_jni")
+        }
+
+        @JvmStatic
+        private external fun nativeCreate(context: Context): Long
+
+        @JvmStatic
+        private external fun nativeDestroy(tracker: Long)
+
+        @JvmStatic
+        private external fun nativeResume(tracker: Long)
+
+        @JvmStatic
+        private external fun nativePause(tracker: Long)
+
+        @JvmStatic
+        private external fun nativeRecenter(tracker: Long)
+
+        @JvmStatic
+        private external fun nativeGetPose(tracker: Long, timestampNs: Long, orientation: Int, pose: ByteBuffer)
+    }
+}
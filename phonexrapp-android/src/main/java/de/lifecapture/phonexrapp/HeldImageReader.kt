@@ -0,0 +1,75 @@
+package de.lifecapture.phonexrapp
+
+import android.media.Image
+import android.media.ImageReader
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * An [ImageReader] whose images outlive it: their planes are sent in place, so the sender may
+ * still hold an image in its mailbox or in a write when the capture session is replaced.
+ *
+ * Every image is handed out with a [Handle] that closes it. [close] only closes the reader once
+ * the last handle was closed, so its buffers are never freed under a frame being written. The
+ * handles are preallocated, one per image the reader can hand out.
+ *
+ * Images are acquired on the camera's image thread, handles may be closed on any thread.
+ */
+class HeldImageReader(val reader: ImageReader) {
+    private val handles = ArrayBlockingQueue<Handle>(reader.maxImages)
+
+    // Held images, plus one for the owner until close.
+    private val references = AtomicInteger(1)
+
+    init {
+        repeat(reader.maxImages) {
+            handles.add(Handle())
+        }
+    }
+
+    /**
+     * The latest image, or null if there is none. Throws an `IllegalStateException` like
+     * [ImageReader.acquireLatestImage] while all images are held.
+     */
+    fun acquireLatestImage(): Handle? {
+        val handle = handles.poll() ?: throw IllegalStateException("All images are held")
+        val image = try {
+            reader.acquireLatestImage()
+        } catch (e: IllegalStateException) {
+            handles.add(handle)
+            throw e
+        }
+        if (image == null) {
+            handles.add(handle)
+            return null
+        }
+        references.incrementAndGet()
+        handle.image = image
+        return handle
+    }
+
+    /** Closes the reader, right away or once the last held image was closed. */
+    fun close() {
+        release()
+    }
+
+    private fun release() {
+        if (references.decrementAndGet() == 0) {
+            reader.close()
+        }
+    }
+
+    inner class Handle : AutoCloseable {
+        /** The image until it was closed. */
+        var image: Image? = null
+            internal set
+
+        override fun close() {
+            val image = image ?: return
+            this.image = null
+            image.close()
+            handles.add(this)
+            release()
+        }
+    }
+}
@@ -4,13 +4,30 @@ import android.graphics.Bitmap
 import android.os.Environment
 import java.io.File
 import java.io.FileOutputStream
+import java.nio.ByteBuffer
 
-/** Utility class for manipulating images.  */
+/**
+ * Utility class for manipulating images.
+ *
+ * The YUV converters run natively with NEON when `cardboard_jni` is loaded, see
+ * [nativeConversion]. The Kotlin `Scalar` variants are the reference and the fallback, run in
+ * row stripes on a [ParallelYuvConverter] where possible; all give the same pixels.
+ */
 object ImageUtils {
     // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
     // are normalized to eight bits.
     const val kMaxChannelValue = 262143
 
+    /** Whether the native converters are available, otherwise the Kotlin loops run. */
+    val nativeConversion: Boolean by lazy {
+        try {
+            System.loadLibrary("cardboard_jni")
+            true
+        } catch (e: UnsatisfiedLinkError) {
+            false
+        }
+    }
+
     /**
      * Utility method to compute the allocated size in bytes of a YUV420SP image of the given
      * dimensions.
@@ -58,11 +75,30 @@ object ImageUtils {
         }
     }
 
+    /** Converts an NV21 frame, as delivered by the legacy camera. */
     fun convertYUV420SPToARGB8888(
         input: ByteArray,
         width: Int,
         height: Int,
         output: IntArray
+    ) {
+        val frameSize = width * height
+        if (nativeConversion && nativeConvertArrays(
+                input, 0, input, frameSize + 1, input, frameSize,
+                width, height, width, width, 2, output
+            )
+        ) {
+            return
+        }
+        convertYUV420SPToARGB8888Scalar(input, width, height, output)
+    }
+
+    /** Kotlin reference of [convertYUV420SPToARGB8888]. */
+    fun convertYUV420SPToARGB8888Scalar(
+        input: ByteArray,
+        width: Int,
+        height: Int,
+        output: IntArray
     ) {
         val frameSize = width * height
         var j = 0
@@ -126,8 +162,84 @@ object ImageUtils {
         uvPixelStride: Int,
         out: IntArray
     ) {
+        if (nativeConversion && nativeConvertArrays(
+                yData, 0, uData, 0, vData, 0,
+                width, height, yRowStride, uvRowStride, uvPixelStride, out
+            )
+        ) {
+            return
+        }
+        convertYUV420ToARGB8888Parallel(yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out)
+    }
+
+    /**
+     * Converts the planes of an `Image` in place, without copying them to arrays first. Direct
+     * buffers, like those of `Image.Plane`, are read natively; the positions are ignored.
+     */
+    fun convertYUV420ToARGB8888(
+        yBuffer: ByteBuffer,
+        uBuffer: ByteBuffer,
+        vBuffer: ByteBuffer,
+        width: Int,
+        height: Int,
+        yRowStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray
+    ) {
+        if (nativeConversion && yBuffer.isDirect && uBuffer.isDirect && vBuffer.isDirect &&
+            nativeConvertBuffers(yBuffer, uBuffer, vBuffer, width, height, yRowStride, uvRowStride, uvPixelStride, out)
+        ) {
+            return
+        }
         var yp = 0
         for (j in 0 until height) {
+            val pY = yRowStride * j
+            val pUV = uvRowStride * (j shr 1)
+            for (i in 0 until width) {
+                val uvOffset = pUV + (i shr 1) * uvPixelStride
+                out[yp++] = convertYUV2RGB(
+                    0xff and yBuffer.get(pY + i).toInt(),
+                    0xff and uBuffer.get(uvOffset).toInt(),
+                    0xff and vBuffer.get(uvOffset).toInt()
+                )
+            }
+        }
+    }
+
+    /** Kotlin reference of [convertYUV420ToARGB8888]. */
+    fun convertYUV420ToARGB8888Scalar(
+        yData: ByteArray,
+        uData: ByteArray,
+        vData: ByteArray,
+        width: Int,
+        height: Int,
+        yRowStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray
+    ) {
+        convertYUV420ToARGB8888Rows(yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, 0, height)
+    }
+
+    /**
+     * Converts the rows [fromRow] until [toRow] with the Kotlin reference, a stripe of
+     * [convertYUV420ToARGB8888Scalar]. [ParallelYuvConverter] runs stripes side by side.
+     */
+    internal fun convertYUV420ToARGB8888Rows(
+        yData: ByteArray,
+        uData: ByteArray,
+        vData: ByteArray,
+        width: Int,
+        yRowStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray,
+        fromRow: Int,
+        toRow: Int
+    ) {
+        var yp = fromRow * width
+        for (j in fromRow until toRow) {
             val pY = yRowStride * j
             val pUV = uvRowStride * (j shr 1)
             for (i in 0 until width) {
@@ -140,4 +252,36 @@ object ImageUtils {
             }
         }
     }
+
+    private val parallelConverter by lazy { ParallelYuvConverter() }
+
+    /**
+     * [convertYUV420ToARGB8888Scalar] on the shared [ParallelYuvConverter], for when the native
+     * converters are missing. Calls from several threads take turns.
+     */
+    fun convertYUV420ToARGB8888Parallel(
+        yData: ByteArray,
+        uData: ByteArray,
+        vData: ByteArray,
+        width: Int,
+        height: Int,
+        yRowStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray
+    ) {
+        parallelConverter.convert(yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out)
+    }
+
+    @JvmStatic
+    private external fun nativeConvertBuffers(
+        y: ByteBuffer, u: ByteBuffer, v: ByteBuffer, width: Int, height: Int,
+        yRowStride: Int, uvRowStride: Int, uvPixelStride: Int, out: IntArray
+    ): Boolean
+
+    @JvmStatic
+    private external fun nativeConvertArrays(
+        y: ByteArray, yOffset: Int, u: ByteArray, uOffset: Int, v: ByteArray, vOffset: Int,
+        width: Int, height: Int, yRowStride: Int, uvRowStride: Int, uvPixelStride: Int, out: IntArray
+    ): Boolean
 }
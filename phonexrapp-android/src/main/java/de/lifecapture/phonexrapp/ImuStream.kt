@@ -0,0 +1,114 @@
+package de.lifecapture.phonexrapp
+
+import de.lifecapture.phonexrapp.stream.StreamTransport
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Optional side channel streaming the raw accelerometer and gyroscope samples the head tracker
+ * consumes, so the receiver can run its own sensor fusion at sensor rate.
+ *
+ * Samples are batched natively into packets of [samplesPerPacket] samples. A packet is sent
+ * when it is full or its first sample is [maxAgeMs] old, so there is one write per packet and
+ * not per sample. Every packet has the same size, big endian like the frames:
+ *
+ * ```
+ *  0 u8  magic {16, 3}
+ *  2 u16 number of valid samples
+ *  4 u32 packet sequence number
+ *  8 u32 packets dropped so far because the sender fell behind
+ * 12 per sample: i64 sensor timestamp in ns (boot time), f32 x, y, z, u8 type, 3 reserved
+ * ```
+ *
+ * The sample type is 1 for the accelerometer (m/s²) and 2 for the gyroscope (rad/s); unused
+ * sample slots at the end of a packet are zero.
+ */
+class ImuStream(
+    private val tracker: HeadTracker,
+    private val transport: StreamTransport,
+    samplesPerPacket: Int = 32,
+    maxAgeMs: Int = 10,
+    private val onError: (IOException) -> Unit
+) : Thread("ImuStream") {
+    // 0 once destroyed, guarded by batcherLock against readers of [dropped].
+    private var nativeBatcher = nativeCreate(tracker.nativeHandle, samplesPerPacket, maxAgeMs * 1_000_000L)
+    private val packet = ByteBuffer.allocateDirect(nativePacketSize(nativeBatcher))
+    private val segments = arrayOf(packet)
+    private val batcherLock = Any()
+    private var finalDropped = 0L
+
+    @Volatile
+    private var running = true
+
+    /** Number of packets written. */
+    @Volatile
+    var sent = 0L
+        private set
+
+    /** Number of packets dropped because they were not written in time, final after [shutdown]. */
+    val dropped: Long
+        get() = synchronized(batcherLock) {
+            if (nativeBatcher != 0L) nativeDropped(nativeBatcher) else finalDropped
+        }
+
+    /**
+     * Stops sending and detaches from the head tracker. Call before closing [tracker], and close
+     * the transport first so a write to a receiver that stopped reading does not block. May be
+     * called from [onError].
+     */
+    fun shutdown() {
+        running = false
+        if (currentThread() !== this) {
+            join()
+        }
+        synchronized(batcherLock) {
+            if (nativeBatcher == 0L) {
+                return
+            }
+            finalDropped = nativeDropped(nativeBatcher)
+            nativeDestroy(tracker.nativeHandle, nativeBatcher)
+            nativeBatcher = 0
+        }
+    }
+
+    override fun run() {
+        try {
+            while (running) {
+                val size = nativeTake(nativeBatcher, packet)
+                if (size == 0) {
+                    continue
+                }
+                packet.clear()
+                packet.limit(size)
+                transport.write(segments, 1)
+                sent++
+            }
+        } catch (e: IOException) {
+            if (running) {
+                onError(e)
+            }
+        }
+    }
+
+    companion object {
+        init {
+            System.loadLibrary("cardboard_jni")
+        }
+
+        @JvmStatic
+        private external fun nativeCreate(tracker: Long, samplesPerPacket: Int, maxAgeNs: Long): Long
+
+        @JvmStatic
+        private external fun nativeDestroy(tracker: Long, batcher: Long)
+
+        @JvmStatic
+        private external fun nativePacketSize(batcher: Long): Int
+
+        /** Waits up to the max age for a packet and writes it to [packet], returns its size or 0. */
+        @JvmStatic
+        private external fun nativeTake(batcher: Long, packet: ByteBuffer): Int
+
+        @JvmStatic
+        private external fun nativeDropped(batcher: Long): Long
+    }
+}
@@ -0,0 +1,196 @@
+package de.lifecapture.phonexrapp
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Runs [ImageUtils.convertYUV420ToARGB8888Scalar] in row stripes on a fixed set of worker threads.
+ *
+ * Stripes cover whole chroma row pairs, so no two stripes share a chroma row. There are
+ * [STRIPES_PER_THREAD] times more stripes than threads and every thread, the caller included,
+ * claims the next free one until none are left. A little core that falls behind simply takes
+ * fewer stripes.
+ *
+ * A conversion is published through a generation counter and the threads are woken with
+ * `LockSupport`, so a call allocates nothing. One conversion runs at a time; concurrent calls
+ * wait for each other.
+ */
+class ParallelYuvConverter(val threads: Int = defaultThreads()) : AutoCloseable {
+    init {
+        require(threads >= 1) { "threads must be at least 1" }
+    }
+
+    // The conversion being run, written before it is published in claim.
+    private var yData = EMPTY_BYTES
+    private var uData = EMPTY_BYTES
+    private var vData = EMPTY_BYTES
+    private var out = EMPTY_INTS
+    private var width = 0
+    private var height = 0
+    private var yRowStride = 0
+    private var uvRowStride = 0
+    private var uvPixelStride = 0
+    private var stripes = 0
+    private var rowsPerStripe = 0
+    private var caller: Thread? = null
+    // First failure of a stripe, rethrown to the caller.
+    @Volatile
+    private var failure: RuntimeException? = null
+
+    // Generation in the upper, next unclaimed stripe in the lower half.
+    private val claim = AtomicLong()
+    private val remaining = AtomicInteger()
+    private var generation = 0L
+
+    @Volatile
+    private var closed = false
+
+    private val workers = Array(threads - 1) { index ->
+        Thread({ work() }, "YuvConverter-" + index).also {
+            it.isDaemon = true
+            it.start()
+        }
+    }
+
+    @Synchronized
+    fun convert(
+        yData: ByteArray,
+        uData: ByteArray,
+        vData: ByteArray,
+        width: Int,
+        height: Int,
+        yRowStride: Int,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        out: IntArray
+    ) {
+        check(!closed) { "Converter is closed" }
+        val rowPairs = (height + 1) / 2
+        val stripes = minOf(rowPairs, threads * STRIPES_PER_THREAD)
+        if (stripes <= 1 || workers.isEmpty()) {
+            ImageUtils.convertYUV420ToARGB8888Rows(
+                yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, 0, height
+            )
+            return
+        }
+        this.yData = yData
+        this.uData = uData
+        this.vData = vData
+        this.out = out
+        this.width = width
+        this.height = height
+        this.yRowStride = yRowStride
+        this.uvRowStride = uvRowStride
+        this.uvPixelStride = uvPixelStride
+        this.stripes = stripes
+        this.rowsPerStripe = (rowPairs + stripes - 1) / stripes * 2
+        caller = Thread.currentThread()
+        remaining.set(stripes)
+        val generation = ++generation
+        claim.set(generation shl 32)
+        for (worker in workers) {
+            LockSupport.unpark(worker)
+        }
+
+        runStripes(generation)
+        while (remaining.get() > 0) {
+            LockSupport.park(this)
+        }
+        // Do not keep the frame alive until the next call.
+        this.yData = EMPTY_BYTES
+        this.uData = EMPTY_BYTES
+        this.vData = EMPTY_BYTES
+        this.out = EMPTY_INTS
+        failure?.let {
+            failure = null
+            throw it
+        }
+    }
+
+    /** Stops the workers. */
+    override fun close() {
+        closed = true
+        for (worker in workers) {
+            LockSupport.unpark(worker)
+        }
+    }
+
+    /** Claims and converts stripes of [generation] until none are left. */
+    private fun runStripes(generation: Long) {
+        while (true) {
+            val current = claim.get()
+            val stripe = (current and 0xffffffffL).toInt()
+            // Reading the claim makes the fields of its generation visible.
+            if (current ushr 32 != generation || stripe >= stripes) {
+                return
+            }
+            if (!claim.compareAndSet(current, current + 1)) {
+                continue
+            }
+            val fromRow = stripe * rowsPerStripe
+            val toRow = minOf(fromRow + rowsPerStripe, height)
+            try {
+                if (fromRow < toRow) {
+                    ImageUtils.convertYUV420ToARGB8888Rows(
+                        yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, fromRow, toRow
+                    )
+                }
+            } catch (e: RuntimeException) {
+                failure = e
+            }
+            if (remaining.decrementAndGet() == 0) {
+                LockSupport.unpark(caller)
+            }
+        }
+    }
+
+    private fun work() {
+        var seen = 0L
+        while (!closed) {
+            val generation = claim.get() ushr 32
+            if (generation == seen) {
+                LockSupport.park(this)
+                continue
+            }
+            seen = generation
+            runStripes(generation)
+        }
+    }
+
+    companion object {
+        /** More stripes than threads, so faster cores can take more of them. */
+        const val STRIPES_PER_THREAD = 4
+
+        /** Beyond four threads the memory bandwidth of our phones is the limit. */
+        const val MAX_THREADS = 4
+
+        /** Cores within this share of the fastest maximum frequency count as big cores. */
+        private const val BIG_CORE_SHARE = 0.7
+
+        private val EMPTY_BYTES = ByteArray(0)
+        private val EMPTY_INTS = IntArray(0)
+
+        /**
+         * Threads for the big cores of a big.LITTLE CPU, told apart by their maximum frequency,
+         * at most [MAX_THREADS]. Without cpufreq every core counts.
+         */
+        fun defaultThreads(): Int {
+            val frequencies = (0 until Runtime.getRuntime().availableProcessors()).mapNotNull {
+                try {
+                    File("/sys/devices/system/cpu/cpu" + it + "/cpufreq/cpuinfo_max_freq").readText().trim().toLong()
+                } catch (e: Exception) {
+                    null
+                }
+            }
+            val cores = if (frequencies.isEmpty()) {
+                Runtime.getRuntime().availableProcessors()
+            } else {
+                val fastest = frequencies.maxOrNull()!!
+                frequencies.count { it >= fastest * BIG_CORE_SHARE }
+            }
+            return cores.coerceIn(1, MAX_THREADS)
+        }
+    }
+}
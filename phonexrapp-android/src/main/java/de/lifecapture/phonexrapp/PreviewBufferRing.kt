@@ -0,0 +1,79 @@
+package de.lifecapture.phonexrapp
+
+import android.graphics.ImageFormat
+import android.hardware.Camera
+import java.nio.ByteBuffer
+import java.util.IdentityHashMap
+
+/**
+ * Preallocated NV21 preview buffers for `Camera.setPreviewCallbackWithBuffer`, like
+ * `CameraSource.createPreviewBuffer` in the SDK.
+ *
+ * A filled buffer is sent in place: its [Buffer] is attached to the frame and goes back to the
+ * camera once the frame was written. So the legacy path neither allocates nor copies per frame.
+ * While all buffers are in flight the camera drops preview frames, just like an `ImageReader`
+ * that runs out of images.
+ */
+class PreviewBufferRing(
+    private val camera: Camera,
+    val width: Int,
+    val height: Int,
+    count: Int = BUFFER_COUNT
+) {
+    /** Bytes of one NV21 frame. */
+    val frameSize = (width.toLong() * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8).toInt()
+
+    // Filled once, only read afterwards.
+    private val buffers = IdentityHashMap<ByteArray, Buffer>(count)
+
+    @Volatile
+    private var released = false
+
+    init {
+        repeat(count) {
+            val buffer = Buffer(ByteArray(frameSize))
+            buffers[buffer.data] = buffer
+            camera.addCallbackBuffer(buffer.data)
+        }
+    }
+
+    /** The buffer the camera filled, or null if [data] is not from this ring. */
+    fun lookup(data: ByteArray): Buffer? {
+        return buffers[data]
+    }
+
+    /** Stops handing buffers back, call before the camera is released. */
+    fun release() {
+        released = true
+    }
+
+    inner class Buffer(val data: ByteArray) : AutoCloseable {
+        private val wrapped = ByteBuffer.wrap(data)
+
+        /** The frame bytes of [data], wrapped once and rewound for every frame. */
+        fun frame(): ByteBuffer {
+            wrapped.clear()
+            wrapped.limit(frameSize)
+            return wrapped
+        }
+
+        override fun close() {
+            if (released) {
+                return
+            }
+            try {
+                camera.addCallbackBuffer(data)
+            } catch (e: RuntimeException) {
+                // The camera was released while the frame was being sent.
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * One frame waits in the sender mailbox, one is written and the camera fills two more, as
+         * in `CameraSource`.
+         */
+        const val BUFFER_COUNT = 4
+    }
+}
@@ -0,0 +1,188 @@
+package de.lifecapture.phonexrapp
+
+import de.lifecapture.phonexrapp.CameraCapabilities.FpsRange
+import de.lifecapture.phonexrapp.CameraCapabilities.OutputConfig
+import de.lifecapture.phonexrapp.CameraCapabilities.StreamSize
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Chooses the capture size, format and frame rate of a camera from its [CameraCapabilities].
+ *
+ * The camera always runs two outputs of the same size: the on-screen preview and the stream
+ * (YUV_420_888 frames for the raw path, the encoder's private format otherwise). A candidate size
+ * is only considered when
+ *  - that pair is a guaranteed stream combination, which caps it at the PREVIEW size,
+ *  - both outputs together reach [Request.minFps], counting the minimum frame durations plus the
+ *    stall durations, and
+ *  - the stream fits [Request.linkBitRate].
+ *
+ * Candidates are scored by the pixel rate they deliver, counting pixels only up to the desired
+ * size and frames only up to the target rate, weighted by how well the aspect ratio matches. Ties
+ * go to the cheaper candidate. When nothing fits the link, the candidate that needs the least bit
+ * rate is returned and marked as over budget.
+ */
+class StreamConfigSelector(private val capabilities: CameraCapabilities) {
+
+    data class Request(
+        val desiredSize: StreamSize,
+        val targetFps: Int,
+        /** Frame rate floor, candidates below it are not used. */
+        val minFps: Int,
+        /** Bits per second the link carries. */
+        val linkBitRate: Long,
+        /** Whether the stream goes through the encoder instead of being sent raw. */
+        val encoded: Boolean,
+        /** Bits per pixel the encoder needs for acceptable quality. */
+        val encodedBitsPerPixel: Double = DEFAULT_ENCODED_BITS_PER_PIXEL
+    )
+
+    data class StreamConfig(
+        val size: StreamSize,
+        /** `ImageFormat` of the stream output. */
+        val format: Int,
+        /** AE target range to request, null when the camera reported none. */
+        val fpsRange: FpsRange?,
+        /** Frame rate the configuration is expected to run at. */
+        val fps: Int,
+        /** Bits per second the stream needs at [fps]. */
+        val bitRate: Long,
+        val withinBudget: Boolean,
+        val score: Double
+    )
+
+    fun select(request: Request): StreamConfig? {
+        val format = if (request.encoded) FORMAT_PRIVATE else FORMAT_YUV_420_888
+        val candidates = capabilities.outputSizes.filter {
+            min(it.width, it.height) >= MINIMUM_SIZE && isSupported(it, format) && isGuaranteed(it)
+        }.mapNotNull { evaluate(it, format, request) }
+        if (candidates.isEmpty()) {
+            return null
+        }
+        val affordable = candidates.filter { it.withinBudget }
+        if (affordable.isEmpty()) {
+            return candidates.minWithOrNull(compareBy({ it.bitRate }, { -it.score }))
+        }
+        return affordable.maxWithOrNull(compareBy({ it.score }, { -it.bitRate }))
+    }
+
+    /** The configuration for [size], or null if it does not reach the frame rate floor. */
+    fun evaluate(size: StreamSize, format: Int, request: Request): StreamConfig? {
+        val maxFps = maxFps(size, request.encoded)
+        val fpsRange = chooseFpsRange(min(request.targetFps, maxFps))
+        val fps = min(min(request.targetFps, maxFps), fpsRange?.upper ?: Int.MAX_VALUE)
+        if (fps < request.minFps) {
+            return null
+        }
+        val bitRate = bitRate(size, fps, request)
+        return StreamConfig(
+            size, format, fpsRange, fps, bitRate, bitRate <= request.linkBitRate,
+            score(size, fps, request)
+        )
+    }
+
+    /**
+     * Frame rate the preview and the stream output of [size] reach together, from the minimum
+     * frame durations plus the stall durations. Unknown durations do not limit the rate.
+     */
+    fun maxFps(size: StreamSize, encoded: Boolean): Int {
+        var frameDurationNs = 0L
+        val formats = if (encoded) intArrayOf(FORMAT_PRIVATE) else intArrayOf(FORMAT_PRIVATE, FORMAT_YUV_420_888)
+        for (format in formats) {
+            val config = findConfig(format, size) ?: continue
+            frameDurationNs = max(frameDurationNs, config.minFrameDurationNs + config.stallDurationNs)
+        }
+        return if (frameDurationNs <= 0L) Int.MAX_VALUE else (1_000_000_000L / frameDurationNs).toInt()
+    }
+
+    /**
+     * Whether a preview and a stream output of [size] are a guaranteed stream combination. The
+     * combinations are those of `CameraDevice.createCaptureSession` for two outputs. Higher
+     * hardware levels allow a larger second output (RECORD on LIMITED, MAXIMUM on FULL and
+     * LEVEL_3), but the preview is always bounded by the PREVIEW size, and here both outputs
+     * share one size. So on every level the pair is guaranteed up to the PREVIEW size only.
+     */
+    fun isGuaranteed(size: StreamSize): Boolean {
+        return fits(size, PREVIEW_SIZE) || fits(StreamSize(size.height, size.width), PREVIEW_SIZE)
+    }
+
+    /**
+     * The smallest guaranteed size of at least [MINIMUM_SIZE] the stream format supports, for
+     * when [select] finds nothing; null if there is none.
+     */
+    fun fallbackSize(encoded: Boolean): StreamSize? {
+        val format = if (encoded) FORMAT_PRIVATE else FORMAT_YUV_420_888
+        return capabilities.outputSizes.filter {
+            min(it.width, it.height) >= MINIMUM_SIZE && isSupported(it, format) && isGuaranteed(it)
+        }.minByOrNull { it.width.toLong() * it.height }
+    }
+
+    /** Whether the camera lists [size] for [format]; without durations every preview size counts. */
+    private fun isSupported(size: StreamSize, format: Int): Boolean {
+        return capabilities.outputConfigs.isEmpty() || findConfig(format, size) != null
+    }
+
+    /** Bits per second the stream of [size] needs at [fps]. */
+    fun bitRate(size: StreamSize, fps: Int, request: Request): Long {
+        val pixels = size.width.toLong() * size.height
+        if (request.encoded) {
+            return (pixels * fps * request.encodedBitsPerPixel).toLong()
+        }
+        // YUV 4:2:0 carries 12 bits per pixel.
+        return pixels * 12 * fps
+    }
+
+    private fun score(size: StreamSize, fps: Int, request: Request): Double {
+        val desired = request.desiredSize
+        val area = size.width.toDouble() * size.height
+        val desiredArea = desired.width.toDouble() * desired.height
+        val ratio = size.width.toDouble() / size.height
+        val desiredRatio = desired.width.toDouble() / desired.height
+        val aspectMatch = min(ratio, desiredRatio) / max(ratio, desiredRatio)
+        return min(area, desiredArea) * min(fps, request.targetFps) * aspectMatch
+    }
+
+    /**
+     * The AE target range for [fps]: the highest one not above it, preferring fixed ranges
+     * because they keep the frame interval steady.
+     */
+    fun chooseFpsRange(fps: Int): FpsRange? {
+        val ranges = capabilities.fpsRanges
+        val candidates = ranges.filter { it.upper <= fps }
+        if (candidates.isEmpty()) {
+            return ranges.minByOrNull { it.upper }
+        }
+        return candidates.maxWithOrNull(compareBy({ it.upper }, { it.lower }))
+    }
+
+    private fun findConfig(format: Int, size: StreamSize): OutputConfig? {
+        return capabilities.outputConfigs.firstOrNull { it.format == format && it.size == size }
+    }
+
+    private fun fits(size: StreamSize, bound: StreamSize): Boolean {
+        return size.width <= bound.width && size.height <= bound.height
+    }
+
+    companion object {
+        /** `ImageFormat.YUV_420_888`. */
+        const val FORMAT_YUV_420_888 = 0x23
+
+        /** `ImageFormat.PRIVATE`, what a `SurfaceTexture` or encoder surface receives. */
+        const val FORMAT_PRIVATE = 0x22
+
+        // CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_*
+        const val HARDWARE_LEVEL_LIMITED = 0
+        const val HARDWARE_LEVEL_FULL = 1
+        const val HARDWARE_LEVEL_LEGACY = 2
+        const val HARDWARE_LEVEL_3 = 3
+        const val HARDWARE_LEVEL_EXTERNAL = 4
+
+        /** Smallest side of a useful capture size. */
+        const val MINIMUM_SIZE = 320
+
+        /** The PREVIEW size of the guaranteed combinations: the display size capped at 1080p. */
+        private val PREVIEW_SIZE = StreamSize(1920, 1080)
+
+        const val DEFAULT_ENCODED_BITS_PER_PIXEL = 0.05
+    }
+}
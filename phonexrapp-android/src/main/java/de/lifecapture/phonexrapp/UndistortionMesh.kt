@@ -0,0 +1,129 @@
+package de.lifecapture.phonexrapp
+
+/**
+ * A grid that undistorts camera images when drawn, built from the lens calibration in
+ * [CameraCapabilities].
+ *
+ * Every vertex is a pixel of the rectified output. Its texture coordinate is where that pixel
+ * lands in the distorted camera image, following the model of `CameraCharacteristics.LENS_DISTORTION`:
+ *
+ * ```
+ * x_c = x_i * (1 + k1 * r^2 + k2 * r^4 + k3 * r^6) + p1 * (2 * x_i * y_i) + p2 * (r^2 + 2 * x_i^2)
+ * y_c = y_i * (1 + k1 * r^2 + k2 * r^4 + k3 * r^6) + p2 * (2 * x_i * y_i) + p1 * (r^2 + 2 * y_i^2)
+ * ```
+ *
+ * The camera image is taken to be the pre-correction active array, center-cropped to the aspect
+ * ratio of the output, which is what the camera delivers with distortion correction off. The
+ * rectified image keeps the same intrinsics, so it covers the same area.
+ *
+ * [vertices] holds x, y in clip space and u, v with v = 0 at the top of the image for every
+ * vertex, row by row; [indices] are triangles.
+ */
+class UndistortionMesh private constructor(
+    val columns: Int,
+    val rows: Int,
+    val vertices: FloatArray,
+    val indices: ShortArray
+) {
+    companion object {
+        const val DEFAULT_COLUMNS = 32
+        const val DEFAULT_ROWS = 24
+
+        /** Floats per vertex: position x, y and texture coordinate u, v. */
+        const val VERTEX_SIZE = 4
+
+        private val cache = HashMap<String, UndistortionMesh>()
+
+        /**
+         * The mesh of [cameraId] for [width] x [height] images, built on first use and kept for the
+         * lifetime of the process. Null if the camera has no calibration.
+         */
+        @Synchronized
+        fun forCamera(cameraId: String, capabilities: CameraCapabilities, width: Int, height: Int): UndistortionMesh? {
+            val key = cameraId + "/" + width + "x" + height
+            cache[key]?.let { return it }
+            val mesh = build(capabilities, width, height) ?: return null
+            cache[key] = mesh
+            return mesh
+        }
+
+        fun build(
+            capabilities: CameraCapabilities,
+            width: Int,
+            height: Int,
+            columns: Int = DEFAULT_COLUMNS,
+            rows: Int = DEFAULT_ROWS
+        ): UndistortionMesh? {
+            val intrinsics = capabilities.lensIntrinsics
+            val distortion = capabilities.lensDistortion
+            val array = capabilities.preCorrectionArray
+            if (intrinsics.size < 5 || distortion.size < 5 || array == null) {
+                return null
+            }
+            val fx = intrinsics[0]
+            val fy = intrinsics[1]
+            val cx = intrinsics[2]
+            val cy = intrinsics[3]
+            val skew = intrinsics[4]
+            val k1 = distortion[0]
+            val k2 = distortion[1]
+            val k3 = distortion[2]
+            val p1 = distortion[3]
+            val p2 = distortion[4]
+
+            // Part of the array the camera scales into the output.
+            val cropWidth: Float
+            val cropHeight: Float
+            if (width.toLong() * array.height > height.toLong() * array.width) {
+                cropWidth = array.width.toFloat()
+                cropHeight = array.width.toFloat() * height / width
+            } else {
+                cropHeight = array.height.toFloat()
+                cropWidth = array.height.toFloat() * width / height
+            }
+            val left = (array.width - cropWidth) / 2
+            val top = (array.height - cropHeight) / 2
+
+            val vertices = FloatArray((columns + 1) * (rows + 1) * VERTEX_SIZE)
+            var i = 0
+            for (row in 0..rows) {
+                val v = row.toFloat() / rows
+                for (column in 0..columns) {
+                    val u = column.toFloat() / columns
+                    // Ideal pixel in array coordinates, normalized with the intrinsics.
+                    val py = top + v * cropHeight
+                    val px = left + u * cropWidth
+                    val yi = (py - cy) / fy
+                    val xi = (px - cx - skew * yi) / fx
+                    val r2 = xi * xi + yi * yi
+                    val radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3))
+                    val xc = xi * radial + p1 * (2 * xi * yi) + p2 * (r2 + 2 * xi * xi)
+                    val yc = yi * radial + p2 * (2 * xi * yi) + p1 * (r2 + 2 * yi * yi)
+                    val dx = fx * xc + skew * yc + cx
+                    val dy = fy * yc + cy
+
+                    vertices[i++] = u * 2 - 1
+                    vertices[i++] = 1 - v * 2
+                    vertices[i++] = (dx - left) / cropWidth
+                    vertices[i++] = (dy - top) / cropHeight
+                }
+            }
+
+            val indices = ShortArray(columns * rows * 6)
+            var j = 0
+            for (row in 0 until rows) {
+                for (column in 0 until columns) {
+                    val topLeft = row * (columns + 1) + column
+                    val bottomLeft = topLeft + columns + 1
+                    indices[j++] = topLeft.toShort()
+                    indices[j++] = bottomLeft.toShort()
+                    indices[j++] = (topLeft + 1).toShort()
+                    indices[j++] = (topLeft + 1).toShort()
+                    indices[j++] = bottomLeft.toShort()
+                    indices[j++] = (bottomLeft + 1).toShort()
+                }
+            }
+            return UndistortionMesh(columns, rows, vertices, indices)
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package de.lifecapture.phonexrapp
+
+import android.opengl.GLES20
+import android.view.Surface
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * GLES stage between the camera and [output], usually the encoder's input surface.
+ *
+ * Every frame is drawn through the [UndistortionMesh] into [output] with the camera timestamp as
+ * presentation time, so the CPU cost per frame is one draw call.
+ */
+class UndistortionRenderer(
+    private val mesh: UndistortionMesh,
+    width: Int,
+    height: Int,
+    output: Surface
+) : GlStage("Undistortion", width, height) {
+    private var program = 0
+    private var vertexBuffer = 0
+    private var indexBuffer = 0
+    private var positionLocation = 0
+    private var texCoordLocation = 0
+    private var transformLocation = 0
+
+    init {
+        start(output)
+    }
+
+    override fun setUpGl() {
+        program = createProgram(VERTEX_SHADER, EXTERNAL_FRAGMENT_SHADER)
+        positionLocation = GLES20.glGetAttribLocation(program, "position")
+        texCoordLocation = GLES20.glGetAttribLocation(program, "texCoord")
+        transformLocation = GLES20.glGetUniformLocation(program, "transform")
+
+        // The mesh never changes, it goes to the GPU once.
+        val names = IntArray(2)
+        GLES20.glGenBuffers(2, names, 0)
+        vertexBuffer = names[0]
+        indexBuffer = names[1]
+        val vertices = ByteBuffer.allocateDirect(mesh.vertices.size * FLOAT_SIZE).order(ByteOrder.nativeOrder())
+        vertices.asFloatBuffer().put(mesh.vertices)
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer)
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.capacity(), vertices, GLES20.GL_STATIC_DRAW)
+        val indices = ByteBuffer.allocateDirect(mesh.indices.size * 2).order(ByteOrder.nativeOrder())
+        indices.asShortBuffer().put(mesh.indices)
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer)
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.capacity(), indices, GLES20.GL_STATIC_DRAW)
+    }
+
+    override fun draw(texture: Int, transform: FloatArray) {
+        GLES20.glUseProgram(program)
+        GLES20.glUniformMatrix4fv(transformLocation, 1, false, transform, 0)
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer)
+        GLES20.glEnableVertexAttribArray(positionLocation)
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 0)
+        GLES20.glEnableVertexAttribArray(texCoordLocation)
+        GLES20.glVertexAttribPointer(texCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 2 * FLOAT_SIZE)
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer)
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mesh.indices.size, GLES20.GL_UNSIGNED_SHORT, 0)
+    }
+
+    override fun tearDownGl() {
+        GLES20.glDeleteBuffers(2, intArrayOf(vertexBuffer, indexBuffer), 0)
+        GLES20.glDeleteProgram(program)
+    }
+
+    companion object {
+        private const val STRIDE = UndistortionMesh.VERTEX_SIZE * FLOAT_SIZE
+
+        // The mesh has v = 0 at the top of the image, texture coordinates at the bottom.
+        private const val VERTEX_SHADER = """
+            uniform mat4 transform;
+            attribute vec4 position;
+            attribute vec2 texCoord;
+            varying vec2 sourceCoord;
+            void main() {
+                gl_Position = position;
+                sourceCoord = (transform * vec4(texCoord.x, 1.0 - texCoord.y, 0.0, 1.0)).xy;
+            }
+        """
+    }
+}
@@ -0,0 +1,109 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * The capture results of the last [capacity] frames, matched to images by sensor timestamp.
+ *
+ * Capture results and images arrive independently, in either order. Results are kept in a ring
+ * of fixed slots guarded by sequence counters: [publish] overwrites the oldest slot and never
+ * waits, [putBlock] retries nothing and treats a slot that changes while it is read as missing.
+ * So a late or slow result callback can only cost a frame its metadata, never stall the image
+ * path. Nothing allocates.
+ *
+ * [publish] must be called from one thread, the camera callback thread; [putBlock] from any.
+ */
+class CaptureMetadataRing(val capacity: Int = DEFAULT_CAPACITY) {
+    // Per slot: sequence (odd while written), timestamp, exposure, frame duration, skew,
+    // focus distance bits and sensitivity.
+    private val slots = AtomicLongArray(capacity * SLOT_SIZE)
+    private var next = 0
+    private val publishedCount = AtomicLong()
+    private val matchedCount = AtomicLong()
+    private val missedCount = AtomicLong()
+
+    val published: Long
+        get() = publishedCount.get()
+
+    /** Frames that found their capture result. */
+    val matched: Long
+        get() = matchedCount.get()
+
+    /** Frames sent without capture metadata, because it came too late or was overwritten. */
+    val missed: Long
+        get() = missedCount.get()
+
+    fun publish(
+        timestampNs: Long,
+        exposureTimeNs: Long,
+        frameDurationNs: Long,
+        rollingShutterSkewNs: Long,
+        focusDistance: Float,
+        sensitivity: Int
+    ) {
+        val base = next * SLOT_SIZE
+        next = (next + 1) % capacity
+        val sequence = slots.get(base)
+        slots.set(base, sequence + 1)
+        slots.set(base + TIMESTAMP, timestampNs)
+        slots.set(base + EXPOSURE, exposureTimeNs)
+        slots.set(base + FRAME_DURATION, frameDurationNs)
+        slots.set(base + SKEW, rollingShutterSkewNs)
+        slots.set(base + FOCUS, focusDistance.toRawBits().toLong())
+        slots.set(base + SENSITIVITY, sensitivity.toLong())
+        slots.set(base, sequence + 2)
+        publishedCount.incrementAndGet()
+    }
+
+    /**
+     * Writes a [FrameFormat.BLOCK_CAPTURE] block for the frame captured at [timestampNs] to
+     * [buffer], which needs [FrameFormat.CAPTURE_BLOCK_SIZE] bytes of room. Returns false and
+     * writes nothing if the result is not known.
+     */
+    fun putBlock(buffer: ByteBuffer, timestampNs: Long): Boolean {
+        for (i in 0 until capacity) {
+            val base = i * SLOT_SIZE
+            val sequence = slots.get(base)
+            // Skip empty slots and those being written.
+            if (sequence == 0L || sequence and 1L != 0L || slots.get(base + TIMESTAMP) != timestampNs) {
+                continue
+            }
+            val exposure = slots.get(base + EXPOSURE)
+            val frameDuration = slots.get(base + FRAME_DURATION)
+            val skew = slots.get(base + SKEW)
+            val focus = slots.get(base + FOCUS)
+            val sensitivity = slots.get(base + SENSITIVITY)
+            if (slots.get(base) != sequence) {
+                // Overwritten while reading, the result is gone.
+                break
+            }
+            FrameFormat.putCaptureBlock(
+                buffer, timestampNs, exposure, frameDuration, skew,
+                Float.fromBits(focus.toInt()), sensitivity.toInt()
+            )
+            matchedCount.incrementAndGet()
+            return true
+        }
+        missedCount.incrementAndGet()
+        return false
+    }
+
+    override fun toString(): String {
+        return "capture results " + published + " matched " + matched + " missed " + missed
+    }
+
+    companion object {
+        /** Results the camera may run ahead of the images, a few frames of pipeline depth. */
+        const val DEFAULT_CAPACITY = 16
+
+        private const val SLOT_SIZE = 8
+        private const val TIMESTAMP = 1
+        private const val EXPOSURE = 2
+        private const val FRAME_DURATION = 3
+        private const val SKEW = 4
+        private const val FOCUS = 5
+        private const val SENSITIVITY = 6
+    }
+}
@@ -0,0 +1,204 @@
+package de.lifecapture.phonexrapp.stream
+
+/**
+ * Estimates the receiver's clock from NTP-style pings, so frames can carry their capture time in
+ * the receiver's clock.
+ *
+ * The phone sends a ping at local time t0 ([nextPing]). The receiver notes its time t1 when the
+ * ping arrives and answers with t1 and how long it held the ping, t2 - t1 ([ControlChannel]
+ * reads the answer). The answer arrives at local time t3 ([onPong]). One exchange gives
+ *
+ * ```
+ * offset = ((t1 - t0) + (t2 - t3)) / 2
+ * delay  = (t3 - t0) - (t2 - t1)
+ * ```
+ *
+ * The offset is off by at most half the delay, and queueing on the way out (pings wait behind
+ * frames) makes the delay asymmetric. So out of the last [FILTER_SIZE] exchanges only the one
+ * with the smallest delay counts. Once that many exchanges are in, the filtered samples go into
+ * a line fit over the last [HISTORY_SIZE] of them, whose slope is the drift between the two
+ * clocks and whose value at the newest sample is the offset.
+ *
+ * [receiverTime] is lock-free and may be called from any thread, the estimate is replaced as a
+ * whole after every exchange.
+ *
+ * @param localClock The clock frame timestamps are in, in nanoseconds
+ */
+class ClockSync(private val localClock: () -> Long = { System.nanoTime() }) {
+    /** Offset at [baseNs] and drift in nanoseconds per nanosecond after it. */
+    private class Estimate(val baseNs: Long, val offsetNs: Long, val drift: Double, val delayNs: Long)
+
+    @Volatile
+    private var estimate: Estimate? = null
+
+    private var pingCount = 0
+    private val pingIds = IntArray(PENDING_SIZE) { -1 }
+    private val pingTimes = LongArray(PENDING_SIZE)
+
+    // Recent exchanges, a ring of FILTER_SIZE.
+    private var exchangeCount = 0
+    private val exchangeTimes = LongArray(FILTER_SIZE)
+    private val exchangeOffsets = LongArray(FILTER_SIZE)
+    private val exchangeDelays = LongArray(FILTER_SIZE)
+
+    // Filtered samples, a ring of HISTORY_SIZE.
+    private var sampleCount = 0
+    private val sampleTimes = LongArray(HISTORY_SIZE)
+    private val sampleOffsets = LongArray(HISTORY_SIZE)
+
+    /** Whether [receiverTime] has an estimate. */
+    val synced: Boolean
+        get() = estimate != null
+
+    /** Current offset of the receiver's clock, 0 before the first exchange. */
+    val offsetNs: Long
+        get() {
+            val nowNs = localClock()
+            val receiverNs = receiverTime(nowNs)
+            return if (receiverNs == NO_TIME) 0 else receiverNs - nowNs
+        }
+
+    /** Drift of the receiver's clock against the local one, in parts per million. */
+    val driftPpm: Double
+        get() = (estimate?.drift ?: 0.0) * 1e6
+
+    /** Round trip time of the exchange the estimate relies on. */
+    val roundTripNs: Long
+        get() = estimate?.delayNs ?: 0
+
+    /** Answered pings. */
+    @Volatile
+    var exchanges = 0L
+        private set
+
+    fun nowNs(): Long {
+        return localClock()
+    }
+
+    /** Wait until the next ping: short until the filter is full, then [PING_INTERVAL_MS]. */
+    fun pingIntervalMs(): Long {
+        return if (exchanges < FILTER_SIZE) FAST_PING_INTERVAL_MS else PING_INTERVAL_MS
+    }
+
+    /** Returns the id for a ping sent now. */
+    @Synchronized
+    fun nextPing(): Int {
+        val id = pingCount++ and PING_ID_MASK
+        pingIds[id % PENDING_SIZE] = id
+        pingTimes[id % PENDING_SIZE] = localClock()
+        return id
+    }
+
+    /**
+     * Takes the answer to ping [id]: the receiver got it at [receivedNs] in its clock and held it
+     * for [heldNs]. [arrivedNs] is the local time the answer arrived. Returns false for answers
+     * to unknown or forgotten pings.
+     */
+    @Synchronized
+    fun onPong(id: Int, receivedNs: Long, heldNs: Long, arrivedNs: Long = localClock()): Boolean {
+        val slot = id % PENDING_SIZE
+        if (id < 0 || pingIds[slot] != id) {
+            return false
+        }
+        pingIds[slot] = -1
+        val sentNs = pingTimes[slot]
+        val delayNs = arrivedNs - sentNs - heldNs
+        if (delayNs < 0) {
+            return false
+        }
+        // Both halves as differences first, the clocks may be far apart.
+        val offsetNs = ((receivedNs - sentNs) + (receivedNs + heldNs - arrivedNs)) / 2
+        val index = exchangeCount++ % FILTER_SIZE
+        exchangeTimes[index] = sentNs + (arrivedNs - sentNs) / 2
+        exchangeOffsets[index] = offsetNs
+        exchangeDelays[index] = delayNs
+        exchanges++
+
+        var best = index
+        for (i in 0 until minOf(exchangeCount, FILTER_SIZE)) {
+            if (exchangeDelays[i] < exchangeDelays[best]) {
+                best = i
+            }
+        }
+        val bestTime = exchangeTimes[best]
+        if (exchangeCount < FILTER_SIZE) {
+            // The minimum of a few exchanges may still be a queued one, keep it out of the fit.
+            estimate = Estimate(bestTime, exchangeOffsets[best], 0.0, exchangeDelays[best])
+            return true
+        }
+        if (sampleCount == 0 || sampleTimes[(sampleCount - 1) % HISTORY_SIZE] != bestTime) {
+            sampleTimes[sampleCount % HISTORY_SIZE] = bestTime
+            sampleOffsets[sampleCount % HISTORY_SIZE] = exchangeOffsets[best]
+            sampleCount++
+        }
+        estimate = fit(exchangeDelays[best])
+        return true
+    }
+
+    /** Line fit over the filtered samples, relative to the newest one. */
+    private fun fit(delayNs: Long): Estimate {
+        val count = minOf(sampleCount, HISTORY_SIZE)
+        val newest = (sampleCount - 1) % HISTORY_SIZE
+        val baseNs = sampleTimes[newest]
+        val baseOffsetNs = sampleOffsets[newest]
+        val oldest = if (sampleCount > HISTORY_SIZE) sampleCount % HISTORY_SIZE else 0
+        if (count < MIN_FIT_SAMPLES || baseNs - sampleTimes[oldest] < MIN_FIT_SPAN_NS) {
+            return Estimate(baseNs, baseOffsetNs, 0.0, delayNs)
+        }
+        var meanX = 0.0
+        var meanY = 0.0
+        for (i in 0 until count) {
+            meanX += (sampleTimes[i] - baseNs).toDouble()
+            meanY += (sampleOffsets[i] - baseOffsetNs).toDouble()
+        }
+        meanX /= count
+        meanY /= count
+        var sxy = 0.0
+        var sxx = 0.0
+        for (i in 0 until count) {
+            val dx = (sampleTimes[i] - baseNs) - meanX
+            sxy += dx * ((sampleOffsets[i] - baseOffsetNs) - meanY)
+            sxx += dx * dx
+        }
+        val drift = (sxy / sxx).coerceIn(-MAX_DRIFT, MAX_DRIFT)
+        return Estimate(baseNs, baseOffsetNs + (meanY - drift * meanX).toLong(), drift, delayNs)
+    }
+
+    /** Converts [localNs] to the receiver's clock, [NO_TIME] before the first exchange. */
+    fun receiverTime(localNs: Long): Long {
+        val estimate = estimate ?: return NO_TIME
+        return localNs + estimate.offsetNs + (estimate.drift * (localNs - estimate.baseNs)).toLong()
+    }
+
+    override fun toString(): String {
+        return "offsetNs=" + offsetNs + " driftPpm=" + "%.2f".format(driftPpm) +
+                " roundTripNs=" + roundTripNs + " exchanges=" + exchanges
+    }
+
+    companion object {
+        /** Returned by [receiverTime] while there is no estimate. */
+        const val NO_TIME = Long.MIN_VALUE
+
+        /** Exchanges the one with the smallest delay is picked from. */
+        const val FILTER_SIZE = 8
+
+        /** Filtered samples in the line fit, about half a minute at [PING_INTERVAL_MS]. */
+        const val HISTORY_SIZE = 32
+
+        const val FAST_PING_INTERVAL_MS = 100L
+        const val PING_INTERVAL_MS = 1000L
+
+        /** Samples and time span the drift needs, before that the offset is taken as is. */
+        private const val MIN_FIT_SAMPLES = 4
+        private const val MIN_FIT_SPAN_NS = 2_000_000_000L
+
+        /** Crystals are good for some 100 ppm, more is noise. */
+        private const val MAX_DRIFT = 500e-6
+
+        /** Pings waiting for their answer; older ones are forgotten. */
+        private const val PENDING_SIZE = 16
+
+        /** Ping ids fit into the 16 bits the answer echoes. */
+        const val PING_ID_MASK = 0xffff
+    }
+}
@@ -0,0 +1,267 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.IOException
+import java.util.Random
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.min
+
+/**
+ * Keeps [sender] connected to the receiver, on its own thread so nobody else waits for the
+ * network.
+ *
+ * The manager connects through [connector], negotiates the protocol and attaches the transport
+ * to [sender]. When a write fails, the sender detaches the transport and the manager connects
+ * again. Failed attempts are retried with exponential backoff and jitter, so a restarting
+ * receiver is not hammered in lockstep. The sender, its thread and the frame pools stay alive in
+ * between: capture goes on, frames are dropped at the sender, and streaming resumes with the
+ * next frame once a new transport is attached.
+ *
+ * A version 1 receiver does not know the version 2 hello: it takes it for frame data and drops
+ * the connection, or answers with something else. Only then the manager connects again right
+ * away without a hello and sends version 1 for this connection; the next connection offers
+ * [maxVersion] again. A handshake that timed out or broke off tells nothing about the receiver,
+ * and neither does anything over a [DatagramTransport], so those count as failed attempts.
+ *
+ * When the receiver agreed to [FrameProtocol.CAP_CONTROL], a [ControlChannel] reads its requests
+ * for [control] as long as the connection lasts. With [FrameProtocol.CAP_CLOCK] the manager
+ * pings the receiver through that channel while it waits for the connection to break, so the
+ * protocol's [ClockSync] keeps up with the receiver's clock. With [FrameProtocol.CAP_RECEIPTS]
+ * the channel passes the receiver's receipts to the sender's [LatencyRecorder]. [localClock] is
+ * the clock the frame timestamps are in.
+ *
+ * Over a [DatagramTransport] writes only fail if the receiver's host answers with an ICMP error,
+ * so a version 2 connection always gets a channel and the manager watches it: the connection
+ * counts as broken when the channel fails, or when the receiver owes an answer for
+ * [receiverTimeoutMs], a pong or the receipt of a frame written since its last receipt. Without
+ * [FrameProtocol.CAP_CLOCK] the manager sends keepalive pings in place of the clock's.
+ */
+class ConnectionManager(
+    private val connector: Connector,
+    private val maxVersion: Int,
+    private val capabilities: Int,
+    private val listener: Listener,
+    private val random: Random = Random(),
+    private val control: ControlChannel.Listener? = null,
+    private val localClock: () -> Long = { System.nanoTime() },
+    private val receiverTimeoutMs: Long = RECEIVER_TIMEOUT_MS
+) : Thread("ConnectionManager") {
+    /** Opens a transport, giving up after a timeout. */
+    fun interface Connector {
+        @Throws(IOException::class)
+        fun connect(): FrameTransport
+    }
+
+    /** Called on the manager thread. */
+    interface Listener {
+        /** [sender] sends with [protocol] from now on. */
+        fun onConnected(protocol: FrameProtocol)
+
+        /** The connection broke with [error], frames are dropped until the next one. */
+        fun onDisconnected(error: IOException)
+
+        /** Connecting failed with [error], the next attempt follows in [retryInMs]. */
+        fun onConnectFailed(error: IOException, retryInMs: Long)
+    }
+
+    val sender = FrameSender { onSendError(it) }
+
+    @Volatile
+    private var running = true
+
+    @Volatile
+    private var transport: FrameTransport? = null
+
+    @Volatile
+    private var sendError: IOException? = null
+
+    /** Reads the receiver's requests and answers for the current connection. */
+    private var controlChannel: ControlChannel? = null
+
+    /** Whether the current connection is a [DatagramTransport], whose writes do not fail. */
+    private var datagram = false
+
+    /** Version offered on the current connection, [FrameProtocol.VERSION_1] after a fallback. */
+    @Volatile
+    var offeredVersion = maxVersion
+        private set
+
+    override fun start() {
+        sender.start()
+        super.start()
+    }
+
+    /** Stops reconnecting, closes the connection and the sender. */
+    fun shutdown() {
+        running = false
+        // A write stuck on a receiver that stopped reading only ends with the transport.
+        transport?.let {
+            sender.detach(it)
+            it.close()
+        }
+        LockSupport.unpark(this)
+        try {
+            join()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        sender.shutdown()
+    }
+
+    private fun onSendError(error: IOException) {
+        sendError = error
+        LockSupport.unpark(this)
+    }
+
+    override fun run() {
+        var attempt = 0
+        while (running) {
+            val error = try {
+                connect()
+                attempt = 0
+                awaitDisconnect()
+            } catch (e: IOException) {
+                e
+            }
+            val transport = transport
+            if (transport != null) {
+                sender.detach(transport)
+                transport.close()
+                this.transport = null
+                if (running) {
+                    listener.onDisconnected(error)
+                }
+                continue
+            }
+            if (!running) {
+                break
+            }
+            val delayMs = backoffMs(attempt++, random.nextDouble())
+            listener.onConnectFailed(error, delayMs)
+            sleepMs(delayMs)
+        }
+        transport?.close()
+    }
+
+    private fun connect() {
+        offeredVersion = maxVersion
+        var transport = connector.connect()
+        val protocol = try {
+            FrameProtocol.negotiate(transport, maxVersion, capabilities, localClock)
+        } catch (e: FrameProtocol.NotAHelloException) {
+            transport.close()
+            if (transport is DatagramTransport) {
+                throw e
+            }
+            // A version 1 receiver, which read the hello as a broken frame.
+            offeredVersion = FrameProtocol.VERSION_1
+            transport = connector.connect()
+            FrameProtocol.negotiate(transport, FrameProtocol.VERSION_1, capabilities, localClock)
+        } catch (e: IOException) {
+            transport.close()
+            throw e
+        }
+        sendError = null
+        this.transport = transport
+        sender.attach(transport, protocol)
+        controlChannel = null
+        datagram = transport is DatagramTransport
+        val agreed = protocol.capabilities
+        if (protocol.clock != null || agreed and FrameProtocol.CAP_RECEIPTS != 0 ||
+            control != null && agreed and FrameProtocol.CAP_CONTROL != 0 ||
+            datagram && protocol.version >= FrameProtocol.VERSION_2
+        ) {
+            // Closing the transport ends it.
+            controlChannel = ControlChannel(transport, sender, protocol, control).also { it.start() }
+        }
+        listener.onConnected(protocol)
+    }
+
+    /**
+     * Parks until the sender reports a failed write, a datagram receiver stops answering or the
+     * manager shuts down. Pings the receiver in the meantime, if the protocol keeps its clock or
+     * the receiver has to be watched.
+     */
+    private fun awaitDisconnect(): IOException {
+        val clock = sender.protocol.clock
+        val channel = controlChannel
+        val watched = if (datagram) channel else null
+        val receipts = sender.protocol.capabilities and FrameProtocol.CAP_RECEIPTS != 0
+        var nextPingNs = System.nanoTime()
+        var heardNs = watched?.lastHeardNs ?: 0L
+        var sentWhenHeard = sender.sent
+        while (running) {
+            sendError?.let { return it }
+            if (channel == null || clock == null && watched == null) {
+                LockSupport.park(this)
+                continue
+            }
+            val nowNs = System.nanoTime()
+            if (watched != null) {
+                watched.error?.let { return it }
+                val lastHeardNs = watched.lastHeardNs
+                if (lastHeardNs != heardNs) {
+                    heardNs = lastHeardNs
+                    sentWhenHeard = sender.sent
+                }
+                // Pings go out all the time, receipts are only owed for frames.
+                val owed = clock != null || receipts && sender.sent != sentWhenHeard
+                if (owed && nowNs - heardNs > receiverTimeoutMs * 1_000_000) {
+                    return IOException("Receiver stopped answering")
+                }
+            }
+            if (nowNs - nextPingNs >= 0) {
+                if (clock != null) {
+                    channel.ping()
+                    nextPingNs = nowNs + clock.pingIntervalMs() * 1_000_000
+                } else {
+                    channel.keepalive()
+                    nextPingNs = nowNs + KEEPALIVE_INTERVAL_MS * 1_000_000
+                }
+            }
+            var parkNs = nextPingNs - nowNs
+            if (watched != null) {
+                parkNs = min(parkNs, receiverTimeoutMs * 1_000_000 / 4)
+            }
+            LockSupport.parkNanos(this, parkNs)
+        }
+        return IOException("Shut down")
+    }
+
+    /** Sleeps [delayMs] unless the manager shuts down first. */
+    private fun sleepMs(delayMs: Long) {
+        val endNs = System.nanoTime() + delayMs * 1_000_000
+        while (running) {
+            val leftNs = endNs - System.nanoTime()
+            if (leftNs <= 0) {
+                return
+            }
+            LockSupport.parkNanos(this, leftNs)
+        }
+    }
+
+    companion object {
+        /** First retry delay, doubled with every failed attempt. */
+        const val BASE_BACKOFF_MS = 250L
+
+        /** Longest retry delay, a receiver that comes back is found within this time. */
+        const val MAX_BACKOFF_MS = 5000L
+
+        /** Connect timeout for the [Connector]s of the app. */
+        const val CONNECT_TIMEOUT_MS = 2000
+
+        /** Time a datagram receiver may owe its answer, a few [ClockSync.PING_INTERVAL_MS]. */
+        const val RECEIVER_TIMEOUT_MS = 3000L
+
+        /** Pings without [FrameProtocol.CAP_CLOCK] over UDP. */
+        const val KEEPALIVE_INTERVAL_MS = 1000L
+
+        /**
+         * Delay before retry [attempt], counted from 0. The delay doubles with every attempt up
+         * to [MAX_BACKOFF_MS], and [jitter] in [0, 1) picks a point in its upper half.
+         */
+        fun backoffMs(attempt: Int, jitter: Double): Long {
+            val delayMs = min(MAX_BACKOFF_MS, BASE_BACKOFF_MS shl min(attempt, 16))
+            return delayMs / 2 + (delayMs / 2 * jitter).toLong()
+        }
+    }
+}
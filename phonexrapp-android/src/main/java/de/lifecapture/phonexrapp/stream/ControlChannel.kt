@@ -0,0 +1,261 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Requests of the receiver, read from the connection the frames go out on, and their answers.
+ *
+ * With [FrameProtocol.CAP_CONTROL] the receiver may write requests of [REQUEST_SIZE] bytes to
+ * the phone, over TCP back to back and over UDP one per datagram:
+ *
+ * ```
+ *  0 u8  magic {16, 5}
+ *  2 u8  command, one of the COMMAND_ constants
+ *  3 u8  reserved
+ *  4 u32 request id, chosen by the receiver
+ *  8 i64 argument, depending on the command
+ * ```
+ *
+ * The channel reads them on its own thread and hands them to [listener], which applies them
+ * and calls [acknowledge] once they took effect, from any thread. The answer is a
+ * [FrameFormat.TYPE_CONTROL] frame queued with the other frames, so it carries the sequence
+ * number of the first frame the request applies to. Control frames take no sequence number of
+ * their own, their header repeats the one of the next frame, so the frames stay numbered without
+ * gaps. Answers for a connection that is gone are dropped. The channel stops when the transport
+ * is closed.
+ *
+ * With [FrameProtocol.CAP_CLOCK] the channel also sends the pings of the protocol's [ClockSync]
+ * ([ping]) and reads the answers, in the same size:
+ *
+ * ```
+ *  0 u8  magic {16, 6}
+ *  2 u16 ping id
+ *  4 u32 nanoseconds the receiver held the ping before answering
+ *  8 i64 receiver time the ping arrived, in nanoseconds
+ * ```
+ *
+ * With [FrameProtocol.CAP_RECEIPTS] the receiver confirms every frame it received, and the
+ * channel hands the receipts to the sender's [LatencyRecorder]:
+ *
+ * ```
+ *  0 u8  magic {16, 7}
+ *  2 u16 reserved
+ *  4 u32 sequence number of the frame
+ *  8 i64 receiver time the frame was complete, in nanoseconds
+ * ```
+ *
+ * Over UDP a receiver that went away goes unnoticed by the writes, so the [ConnectionManager]
+ * watches [lastHeardNs] and [error] instead. Without a clock it sends [keepalive] pings, which
+ * receivers may leave unanswered.
+ */
+class ControlChannel(
+    private val transport: FrameTransport,
+    private val sender: FrameSender,
+    private val protocol: FrameProtocol,
+    private val listener: Listener?
+) : Thread("ControlChannel") {
+    /** Called on the channel thread, [acknowledge] must follow for every request. */
+    fun interface Listener {
+        fun onRequest(channel: ControlChannel, requestId: Int, command: Int, argument: Long)
+    }
+
+    /** Large enough for an answer and for a ping. */
+    private val frameSize = FrameFormat.headerSizeV2(0, false) +
+            maxOf(FrameFormat.CONTROL_BLOCK_SIZE, FrameFormat.PING_BLOCK_SIZE)
+    private val framePool = FramePool(FRAME_POOL_SLOTS, frameSize)
+
+    private val clock = protocol.clock
+
+    /** Requests read so far. */
+    @Volatile
+    var requests = 0L
+        private set
+
+    /** When the receiver was last heard from, in [System.nanoTime]. */
+    @Volatile
+    var lastHeardNs = System.nanoTime()
+        private set
+
+    /** Why the channel stopped reading, null while it reads. */
+    @Volatile
+    var error: IOException? = null
+        private set
+
+    override fun run() {
+        val request = ByteBuffer.allocate(REQUEST_SIZE)
+        try {
+            while (true) {
+                request.clear()
+                transport.readFully(request, 0)
+                lastHeardNs = System.nanoTime()
+                if (request.get(0) == PONG_MAGIC[0] && request.get(1) == PONG_MAGIC[1]) {
+                    if (clock != null) {
+                        val arrivedNs = clock.nowNs()
+                        clock.onPong(
+                            request.getShort(2).toInt() and 0xffff, request.getLong(8),
+                            request.getInt(4).toLong() and 0xffffffffL, arrivedNs
+                        )
+                    }
+                    continue
+                }
+                if (request.get(0) == RECEIPT_MAGIC[0] && request.get(1) == RECEIPT_MAGIC[1]) {
+                    if (clock != null && sender.protocol === protocol) {
+                        sender.latencyRecorder?.onReceived(request.getInt(4), request.getLong(8), clock)
+                    }
+                    continue
+                }
+                if (request.get(0) != MAGIC[0] || request.get(1) != MAGIC[1]) {
+                    // Over TCP the following bytes cannot be trusted either.
+                    throw IOException("Lost control sync")
+                }
+                requests++
+                val requestId = request.getInt(4)
+                val command = request.get(2).toInt() and 0xff
+                if (command < COMMAND_SYNC_FRAME || command > COMMAND_LOCK_3A) {
+                    acknowledge(requestId, command, STATUS_INVALID, 0)
+                    continue
+                }
+                if (listener == null) {
+                    acknowledge(requestId, command, STATUS_UNSUPPORTED, 0)
+                    continue
+                }
+                listener.onRequest(this, requestId, command, request.getLong(8))
+            }
+        } catch (e: IOException) {
+            // The connection is gone. Over TCP the sender notices it with the next write.
+            error = e
+        }
+    }
+
+    /**
+     * Answers request [requestId] with [status] and the [value] in effect. [sequence] is the
+     * first frame the request applies to, by default the next one.
+     */
+    fun acknowledge(requestId: Int, command: Int, status: Int, value: Long, sequence: Int = protocol.peekSequence()) {
+        if (sender.protocol !== protocol) {
+            return
+        }
+        val frame = beginFrame(FrameFormat.CONTROL_BLOCK_SIZE)
+        FrameFormat.putControlBlock(frame.data, requestId, command, status, sequence, value)
+        send(frame)
+    }
+
+    /** Queues a ping of the protocol's [ClockSync], if there is one. */
+    fun ping() {
+        if (clock == null || sender.protocol !== protocol) {
+            return
+        }
+        val frame = beginFrame(FrameFormat.PING_BLOCK_SIZE)
+        FrameFormat.putPingBlock(frame.data, clock.nextPing())
+        send(frame)
+    }
+
+    /**
+     * Queues a ping that keeps no time, for a protocol without [ClockSync]. Over UDP it makes a
+     * receiver that is gone show up as an ICMP error on the channel.
+     */
+    fun keepalive() {
+        if (sender.protocol !== protocol) {
+            return
+        }
+        val frame = beginFrame(FrameFormat.PING_BLOCK_SIZE)
+        FrameFormat.putPingBlock(frame.data, 0)
+        send(frame)
+    }
+
+    /** A control frame with its header written, the trailer of [trailerLength] bytes follows. */
+    private fun beginFrame(trailerLength: Int): Frame {
+        val frame = framePool.acquire(frameSize)
+        val data = frame.data
+        val start = FrameFormat.beginHeaderV2(
+            data, FrameFormat.TYPE_CONTROL, protocol.peekSequence(), clock?.nowNs() ?: System.nanoTime(),
+            0, 0, 0, 0, 0, trailerLength
+        )
+        FrameFormat.endHeaderV2(data, start, 0)
+        return frame
+    }
+
+    private fun send(frame: Frame) {
+        val data = frame.data
+        data.flip()
+        frame.addSegment(data)
+        sender.queue(frame)
+    }
+
+    companion object {
+        val MAGIC = byteArrayOf(16, 5)
+        val PONG_MAGIC = byteArrayOf(16, 6)
+        val RECEIPT_MAGIC = byteArrayOf(16, 7)
+        const val REQUEST_SIZE = 16
+
+        /** Make the next frame a sync frame. The answer carries the sequence number of that frame. */
+        const val COMMAND_SYNC_FRAME = 1
+
+        /** Encoder bit rate in bits per second. */
+        const val COMMAND_BIT_RATE = 2
+
+        /** Capture frame rate in frames per second. */
+        const val COMMAND_FRAME_RATE = 3
+
+        /** Capture size, width in the upper and height in the lower 16 bits; see [captureSize]. */
+        const val COMMAND_CAPTURE_SIZE = 4
+
+        /** Locks auto exposure and auto focus, a combination of [LOCK_EXPOSURE] and [LOCK_FOCUS]. */
+        const val COMMAND_LOCK_3A = 5
+
+        const val LOCK_EXPOSURE = 1
+        const val LOCK_FOCUS = 2
+
+        const val STATUS_APPLIED = 0
+
+        /** The camera or the current session cannot do it, e.g. a bit rate for raw frames. */
+        const val STATUS_UNSUPPORTED = 1
+
+        /** Unknown command or argument out of range. */
+        const val STATUS_INVALID = 2
+
+        /** Applying it failed, e.g. because the capture session went away meanwhile. */
+        const val STATUS_FAILED = 3
+
+        /** Answers and pings in flight at once before the pool has to allocate. */
+        private const val FRAME_POOL_SLOTS = 4
+
+        fun captureSize(width: Int, height: Int): Long {
+            return (width.toLong() shl 16) or height.toLong()
+        }
+
+        fun captureWidth(argument: Long): Int {
+            return (argument shr 16).toInt() and 0xffff
+        }
+
+        fun captureHeight(argument: Long): Int {
+            return argument.toInt() and 0xffff
+        }
+
+        /** Writes the answer to ping [pingId] in the layout the channel reads, for receivers. */
+        fun putPong(buffer: ByteBuffer, pingId: Int, heldNs: Long, receivedNs: Long) {
+            buffer.put(PONG_MAGIC)
+            buffer.putShort(pingId.toShort())
+            buffer.putInt(heldNs.toInt())
+            buffer.putLong(receivedNs)
+        }
+
+        /** Writes the receipt for frame [sequence] in the layout the channel reads, for receivers. */
+        fun putReceipt(buffer: ByteBuffer, sequence: Int, receivedNs: Long) {
+            buffer.put(RECEIPT_MAGIC)
+            buffer.putShort(0)
+            buffer.putInt(sequence)
+            buffer.putLong(receivedNs)
+        }
+
+        /** Writes a request in the layout the channel reads, for receivers and tests. */
+        fun putRequest(buffer: ByteBuffer, requestId: Int, command: Int, argument: Long) {
+            buffer.put(MAGIC)
+            buffer.put(command.toByte())
+            buffer.put(0)
+            buffer.putInt(requestId)
+            buffer.putLong(argument)
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+
+/**
+ * CRC-32 (IEEE 802.3) over direct buffers without moving their position.
+ *
+ * `java.util.zip.CRC32.update(ByteBuffer)` needs API 26, this works on every supported level.
+ */
+object Crc32 {
+    private val TABLE = IntArray(256).also {
+        for (n in 0 until 256) {
+            var c = n
+            repeat(8) {
+                c = if (c and 1 != 0) (c ushr 1) xor 0xEDB88320.toInt() else c ushr 1
+            }
+            it[n] = c
+        }
+    }
+
+    /** Initial value for [update]. */
+    const val INITIAL = -1
+
+    /** Adds the remaining bytes of [buffer]. */
+    fun update(crc: Int, buffer: ByteBuffer): Int {
+        return update(crc, buffer, buffer.position(), buffer.limit())
+    }
+
+    /** Adds the bytes of [buffer] from index [from] up to [to]. */
+    fun update(crc: Int, buffer: ByteBuffer, from: Int, to: Int): Int {
+        var c = crc
+        for (i in from until to) {
+            c = update(c, buffer.get(i))
+        }
+        return c
+    }
+
+    /** Adds all of [bytes]. */
+    fun update(crc: Int, bytes: ByteArray): Int {
+        var c = crc
+        for (b in bytes) {
+            c = update(c, b)
+        }
+        return c
+    }
+
+    fun update(crc: Int, b: Byte): Int {
+        return TABLE[(crc xor b.toInt()) and 0xff] xor (crc ushr 8)
+    }
+
+    fun finish(crc: Int): Int {
+        return crc.inv()
+    }
+}
@@ -0,0 +1,227 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.IOException
+import java.net.DatagramPacket
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import kotlin.math.min
+
+/**
+ * UDP transport splitting every frame into datagrams that fit into [mtu], so a lost packet costs
+ * one frame instead of stalling every later one behind a TCP retransmission.
+ *
+ * Each datagram starts with a fragment header, big endian like the frames:
+ *
+ * ```
+ *  0 u8  magic {16, 4}
+ *  2 u8  fragment type, FRAGMENT_DATA or FRAGMENT_PARITY
+ *  3 u8  parity group size, 0 without parity fragments
+ *  4 u32 frame id, counting up by one per frame
+ *  8 u16 fragment index; the group index for parity fragments
+ * 10 u16 number of data fragments of the frame
+ * 12 u32 frame size
+ * 16 u16 payload size of all data fragments but the last
+ * 18 u16 reserved
+ * ```
+ *
+ * Data fragment `i` carries the frame bytes from `i * payload size`. With a [parityGroup] of
+ * `n`, every `n` data fragments are followed by a parity fragment holding their XOR, so the
+ * receiver can restore one lost fragment per group. A receiver drops frames it could not complete
+ * instead of waiting for them.
+ *
+ * Fragments are written with gathering writes straight from the frame segments, the only copy is
+ * the one into the kernel. The handshake reply of the receiver comes back as one datagram.
+ */
+class DatagramTransport(
+    private val channel: DatagramChannel,
+    mtu: Int = DEFAULT_MTU,
+    /** Data fragments per parity fragment, 0 sends no parity. */
+    val parityGroup: Int = 0
+) : FrameTransport {
+    /** Frame bytes per data fragment. */
+    val payloadSize = mtu - UDP_OVERHEAD - FRAGMENT_HEADER_SIZE
+
+    init {
+        require(payloadSize > 0) { "MTU too small" }
+        require(parityGroup in 0..MAX_PARITY_GROUP) { "parityGroup must be in 0.." + MAX_PARITY_GROUP }
+    }
+
+    private val header = ByteBuffer.allocateDirect(FRAGMENT_HEADER_SIZE)
+    private val parity = ByteBuffer.allocateDirect(payloadSize)
+    private val gather = Array(Frame.MAX_SEGMENTS + 1) { header }
+    private val gathered = IntArray(Frame.MAX_SEGMENTS + 1)
+    private val limits = IntArray(Frame.MAX_SEGMENTS)
+    private var nextFrameId = 0
+
+    /** Number of datagrams written, parity fragments included. */
+    @Volatile
+    var fragments = 0L
+        private set
+
+    /** Number of parity fragments written. */
+    @Volatile
+    var parityFragments = 0L
+        private set
+
+    override fun write(segments: Array<ByteBuffer>, count: Int) {
+        var frameSize = 0L
+        for (i in 0 until count) {
+            limits[i] = segments[i].limit()
+            frameSize += segments[i].remaining()
+        }
+        val fragmentCount = maxOf(1L, (frameSize + payloadSize - 1) / payloadSize)
+        if (fragmentCount > MAX_FRAGMENTS) {
+            throw IOException("Frame of " + frameSize + " bytes needs too many fragments")
+        }
+        val frameId = nextFrameId++
+        var segment = 0
+        var remaining = frameSize
+        for (index in 0 until fragmentCount.toInt()) {
+            if (parityGroup > 0 && index % parityGroup == 0) {
+                clearParity()
+            }
+
+            // Limit the segments to the bytes of this fragment.
+            var need = min(payloadSize.toLong(), remaining).toInt()
+            val length = need
+            var n = 1
+            while (need > 0) {
+                val buffer = segments[segment]
+                val take = min(need, limits[segment] - buffer.position())
+                if (take == 0) {
+                    segment++
+                    continue
+                }
+                buffer.limit(buffer.position() + take)
+                if (parityGroup > 0) {
+                    xorIntoParity(buffer, length - need)
+                }
+                gather[n] = buffer
+                gathered[n] = segment
+                n++
+                need -= take
+                if (buffer.limit() == limits[segment]) {
+                    segment++
+                }
+            }
+            putHeader(FRAGMENT_DATA, frameId, index, fragmentCount.toInt(), frameSize)
+            try {
+                send(n, FRAGMENT_HEADER_SIZE + length)
+            } finally {
+                for (i in 1 until n) {
+                    gather[i].limit(limits[gathered[i]])
+                    gather[i] = header
+                }
+            }
+            remaining -= length
+
+            if (parityGroup > 0 && (index == fragmentCount.toInt() - 1 || (index + 1) % parityGroup == 0)) {
+                // The first fragment of a group is never shorter than the others.
+                val group = index / parityGroup
+                val parityLength = min(payloadSize.toLong(), frameSize - group.toLong() * parityGroup * payloadSize).toInt()
+                parity.limit(parityLength)
+                parity.position(0)
+                putHeader(FRAGMENT_PARITY, frameId, group, fragmentCount.toInt(), frameSize)
+                gather[1] = parity
+                send(2, FRAGMENT_HEADER_SIZE + parityLength)
+                gather[1] = header
+                parityFragments++
+            }
+        }
+    }
+
+    private fun putHeader(type: Int, frameId: Int, index: Int, fragmentCount: Int, frameSize: Long) {
+        header.clear()
+        header.put(MAGIC)
+        header.put(type.toByte())
+        header.put(parityGroup.toByte())
+        header.putInt(frameId)
+        header.putShort(index.toShort())
+        header.putShort(fragmentCount.toShort())
+        header.putInt(frameSize.toInt())
+        header.putShort(payloadSize.toShort())
+        header.putShort(0)
+        header.flip()
+    }
+
+    private fun send(count: Int, size: Int) {
+        val written = channel.write(gather, 0, count)
+        if (written.toInt() != size) {
+            throw IOException("Datagram cut to " + written + " of " + size + " bytes")
+        }
+        fragments++
+    }
+
+    private fun clearParity() {
+        parity.clear()
+        while (parity.remaining() >= 8) {
+            parity.putLong(0)
+        }
+        while (parity.hasRemaining()) {
+            parity.put(0)
+        }
+    }
+
+    /** XORs the remaining bytes of [source] into the parity at [offset], source unchanged. */
+    private fun xorIntoParity(source: ByteBuffer, offset: Int) {
+        // Same byte order on both sides, so the longs line up byte for byte.
+        parity.order(source.order())
+        var i = source.position()
+        var o = offset
+        val end = source.limit()
+        while (i + 8 <= end) {
+            parity.putLong(o, parity.getLong(o) xor source.getLong(i))
+            i += 8
+            o += 8
+        }
+        while (i < end) {
+            parity.put(o, (parity.get(o).toInt() xor source.get(i).toInt()).toByte())
+            i++
+            o++
+        }
+    }
+
+    override fun readFully(buffer: ByteBuffer, timeoutMs: Int) {
+        val socket = channel.socket()
+        socket.soTimeout = timeoutMs
+        val packet = DatagramPacket(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+        socket.receive(packet)
+        if (packet.length < buffer.remaining()) {
+            throw IOException("Reply of " + packet.length + " bytes is too short")
+        }
+        buffer.position(buffer.position() + packet.length)
+        buffer.flip()
+    }
+
+    override fun close() {
+        channel.close()
+    }
+
+    companion object {
+        val MAGIC = byteArrayOf(16, 4)
+
+        const val FRAGMENT_DATA = 0
+        const val FRAGMENT_PARITY = 1
+        const val FRAGMENT_HEADER_SIZE = 20
+
+        /** Ethernet and most Wi-Fi networks. */
+        const val DEFAULT_MTU = 1500
+
+        /** IPv4 and UDP headers. */
+        const val UDP_OVERHEAD = 28
+
+        const val MAX_FRAGMENTS = 0xffff
+        const val MAX_PARITY_GROUP = 0xff
+
+        /** Room for a few raw frames, so a frame is handed to the kernel in one go. */
+        private const val SEND_BUFFER_SIZE = 4 shl 20
+
+        fun connect(hostname: String, port: Int, mtu: Int = DEFAULT_MTU, parityGroup: Int = 0): DatagramTransport {
+            val channel = DatagramChannel.open()
+            channel.socket().sendBufferSize = SEND_BUFFER_SIZE
+            channel.connect(InetSocketAddress(hostname, port))
+            return DatagramTransport(channel, mtu, parityGroup)
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+
+/**
+ * Layout of the frames on the wire. All values are big endian.
+ *
+ * Version 1 (compatibility mode), raw frames:
+ *
+ * magic `{16, 1}`, row stride, height and width as shorts, the plane size as int, the Y and UV
+ * planes and finally [SENSOR_SIZE] bytes of sensor data.
+ *
+ * Version 1, encoded access units:
+ *
+ * magic `{16, 2}`, flags as short, presentation time in microseconds as long, the payload size
+ * as int and the payload.
+ *
+ * Version 2, negotiated with [FrameProtocol], is length prefixed and self describing:
+ *
+ * ```
+ *  0 u32 frame length, not counting this field
+ *  4 u8  version (2)
+ *  5 u8  type, TYPE_RAW, TYPE_ENCODED or TYPE_CONTROL
+ *  6 u16 header length, including the frame length field
+ *  8 u32 sequence number; control frames repeat the one of the next frame
+ * 12 i64 capture timestamp in nanoseconds
+ * 20 u16 width
+ * 22 u16 height
+ * 24 i32 pixel format, an android.graphics.ImageFormat id (0 for encoded frames)
+ * 28 u16 flags
+ * 30 u8  plane count
+ * 31 u8  reserved
+ * 32 u32 trailer length
+ * 36 per plane: u32 size, u16 row stride, u16 pixel stride
+ *    i64 capture timestamp in the receiver's clock, if FLAG_RECEIVER_TIME is set
+ *    u32 CRC-32 of the plane data, if FLAG_CHECKSUM is set
+ * ```
+ *
+ * The CRC always ends the header, receivers that do not know a field still find it there.
+ *
+ * The planes follow back to back, then the trailer made of blocks: u8 block type, u8 reserved,
+ * u16 length and the block data.
+ *
+ * The sensor data, in both versions, is the head pose at the frame timestamp:
+ *
+ * ```
+ *  0 i64 timestamp the pose was sampled at, in the frame's time base
+ *  8 f32 orientation quaternion x, y, z, w
+ * 24 f32 position x, y, z in meters
+ * 36 u32 sensor flags, SENSOR_POSE_VALID when a head tracker provided the pose
+ * 40     reserved
+ * ```
+ *
+ * Raw version 2 frames may carry a [BLOCK_CAPTURE] block with the capture result of the frame,
+ * see [CaptureMetadataRing]:
+ *
+ * ```
+ *  0 i64 sensor timestamp in nanoseconds, equal to the frame's capture timestamp
+ *  8 i64 exposure time in nanoseconds
+ * 16 i64 frame duration in nanoseconds
+ * 24 i64 rolling shutter skew in nanoseconds, first to last row
+ * 32 f32 focus distance in diopters, 0 is infinity
+ * 36 i32 sensitivity (ISO)
+ * ```
+ *
+ * [TYPE_CONTROL] frames have no planes and a single [BLOCK_CONTROL] block, the answer to a
+ * request of the receiver, see [ControlChannel]:
+ *
+ * ```
+ *  0 u32 request id
+ *  4 u8  command
+ *  5 u8  status
+ *  6 u16 reserved
+ *  8 u32 sequence number of the first frame the request took effect with
+ * 12 i64 value in effect, depending on the command
+ * ```
+ *
+ * A [BLOCK_PING] block in a [TYPE_CONTROL] frame asks the receiver for the time, see
+ * [ClockSync]:
+ *
+ * ```
+ *  0 u32 ping id
+ *  4 u32 reserved
+ * ```
+ */
+object FrameFormat {
+    val MAGIC = byteArrayOf(16, 1)
+    val ENCODED_MAGIC = byteArrayOf(16, 2)
+
+    const val HEADER_SIZE = 12
+    const val SENSOR_SIZE = 4 * 4 * 3
+    const val ENCODED_HEADER_SIZE = 16
+
+    /** The access unit starts a new group of pictures. */
+    const val FLAG_KEY_FRAME = 1
+
+    /** The payload is codec configuration data (e.g. SPS/PPS), not a picture. */
+    const val FLAG_CODEC_CONFIG = 2
+
+    /** A version 2 header ends with a CRC-32 of the plane data. */
+    const val FLAG_CHECKSUM = 4
+
+    /** A version 2 header holds the capture timestamp converted to the receiver's clock. */
+    const val FLAG_RECEIVER_TIME = 8
+
+    const val VERSION_2 = 2
+    const val TYPE_RAW = 1
+    const val TYPE_ENCODED = 2
+    const val TYPE_CONTROL = 3
+    const val V2_FIXED_HEADER_SIZE = 36
+    const val V2_PLANE_SIZE = 8
+
+    /** Trailer block with [SENSOR_SIZE] bytes of sensor data. */
+    const val BLOCK_SENSOR = 1
+    const val BLOCK_HEADER_SIZE = 4
+    const val SENSOR_BLOCK_SIZE = BLOCK_HEADER_SIZE + SENSOR_SIZE
+
+    /** Trailer block with [CAPTURE_SIZE] bytes of capture metadata. */
+    const val BLOCK_CAPTURE = 2
+    const val CAPTURE_SIZE = 40
+    const val CAPTURE_BLOCK_SIZE = BLOCK_HEADER_SIZE + CAPTURE_SIZE
+
+    /** Trailer block with [CONTROL_SIZE] bytes acknowledging a control request. */
+    const val BLOCK_CONTROL = 3
+    const val CONTROL_SIZE = 20
+    const val CONTROL_BLOCK_SIZE = BLOCK_HEADER_SIZE + CONTROL_SIZE
+
+    /** Trailer block with [PING_SIZE] bytes asking the receiver for its clock. */
+    const val BLOCK_PING = 4
+    const val PING_SIZE = 8
+    const val PING_BLOCK_SIZE = BLOCK_HEADER_SIZE + PING_SIZE
+
+    /** The sensor data holds a pose from the head tracker, otherwise it is all zeros. */
+    const val SENSOR_POSE_VALID = 1
+
+    /** Sensor data sent while there is no [PoseSource]. */
+    private val EMPTY_SENSOR = ByteArray(SENSOR_SIZE)
+
+    private val ZEROS = ByteArray(256)
+
+    /** Bytes needed for a whole frame carrying [planeSize] bytes of image data. */
+    fun frameSize(planeSize: Int): Int {
+        return HEADER_SIZE + planeSize + SENSOR_SIZE
+    }
+
+    /**
+     * Estimated frame size for a NV12 image of the given dimensions. Row padding of the camera
+     * buffers can make the real frames somewhat larger.
+     */
+    fun frameSize(width: Int, height: Int): Int {
+        return frameSize(width * height + (height shr 1) * width)
+    }
+
+    fun putHeader(buffer: ByteBuffer, rowStride: Int, height: Int, width: Int, planeSize: Int) {
+        buffer.put(MAGIC)
+        buffer.putShort(rowStride.toShort())
+        buffer.putShort(height.toShort())
+        buffer.putShort(width.toShort())
+        buffer.putInt(planeSize)
+    }
+
+    fun encodedFrameSize(payloadSize: Int): Int {
+        return ENCODED_HEADER_SIZE + payloadSize
+    }
+
+    fun putEncodedHeader(buffer: ByteBuffer, flags: Int, presentationTimeUs: Long, payloadSize: Int) {
+        buffer.put(ENCODED_MAGIC)
+        buffer.putShort(flags.toShort())
+        buffer.putLong(presentationTimeUs)
+        buffer.putInt(payloadSize)
+    }
+
+    /** Writes the sensor data for a frame taken at [timestampNs], zeros without a [pose]. */
+    fun putSensor(buffer: ByteBuffer, pose: PoseSource? = null, timestampNs: Long = 0) {
+        if (pose == null) {
+            buffer.put(EMPTY_SENSOR)
+        } else {
+            pose.putPose(buffer, timestampNs)
+        }
+    }
+
+    fun headerSizeV2(planeCount: Int, checksum: Boolean, receiverTime: Boolean = false): Int {
+        return V2_FIXED_HEADER_SIZE + planeCount * V2_PLANE_SIZE + (if (receiverTime) 8 else 0) +
+                if (checksum) 4 else 0
+    }
+
+    /**
+     * Starts a version 2 header at the buffer position and returns that position. Follow with
+     * [planeCount] calls of [putPlaneV2] and one of [endHeaderV2].
+     */
+    fun beginHeaderV2(
+        buffer: ByteBuffer,
+        type: Int,
+        sequence: Int,
+        timestampNs: Long,
+        width: Int,
+        height: Int,
+        format: Int,
+        flags: Int,
+        planeCount: Int,
+        trailerLength: Int
+    ): Int {
+        val start = buffer.position()
+        buffer.putInt(0)
+        buffer.put(VERSION_2.toByte())
+        buffer.put(type.toByte())
+        buffer.putShort(0)
+        buffer.putInt(sequence)
+        buffer.putLong(timestampNs)
+        buffer.putShort(width.toShort())
+        buffer.putShort(height.toShort())
+        buffer.putInt(format)
+        buffer.putShort(flags.toShort())
+        buffer.put(planeCount.toByte())
+        buffer.put(0)
+        buffer.putInt(trailerLength)
+        return start
+    }
+
+    fun putPlaneV2(buffer: ByteBuffer, size: Int, rowStride: Int, pixelStride: Int) {
+        buffer.putInt(size)
+        buffer.putShort(rowStride.toShort())
+        buffer.putShort(pixelStride.toShort())
+    }
+
+    /**
+     * Finishes the header started at [start]. [receiverTimeNs] is only written with
+     * FLAG_RECEIVER_TIME, [checksum] only with FLAG_CHECKSUM.
+     */
+    fun endHeaderV2(buffer: ByteBuffer, start: Int, checksum: Int, receiverTimeNs: Long = 0) {
+        val flags = buffer.getShort(start + 28).toInt()
+        if (flags and FLAG_RECEIVER_TIME != 0) {
+            buffer.putLong(receiverTimeNs)
+        }
+        if (flags and FLAG_CHECKSUM != 0) {
+            buffer.putInt(checksum)
+        }
+        val headerLength = buffer.position() - start
+        val planeCount = buffer.get(start + 30).toInt() and 0xff
+        var length = headerLength - 4 + buffer.getInt(start + 32)
+        for (i in 0 until planeCount) {
+            length += buffer.getInt(start + V2_FIXED_HEADER_SIZE + i * V2_PLANE_SIZE)
+        }
+        buffer.putInt(start, length)
+        buffer.putShort(start + 6, headerLength.toShort())
+    }
+
+    fun putSensorBlock(buffer: ByteBuffer, pose: PoseSource? = null, timestampNs: Long = 0) {
+        buffer.put(BLOCK_SENSOR.toByte())
+        buffer.put(0)
+        buffer.putShort(SENSOR_SIZE.toShort())
+        putSensor(buffer, pose, timestampNs)
+    }
+
+    fun putCaptureBlock(
+        buffer: ByteBuffer,
+        timestampNs: Long,
+        exposureTimeNs: Long,
+        frameDurationNs: Long,
+        rollingShutterSkewNs: Long,
+        focusDistance: Float,
+        sensitivity: Int
+    ) {
+        buffer.put(BLOCK_CAPTURE.toByte())
+        buffer.put(0)
+        buffer.putShort(CAPTURE_SIZE.toShort())
+        buffer.putLong(timestampNs)
+        buffer.putLong(exposureTimeNs)
+        buffer.putLong(frameDurationNs)
+        buffer.putLong(rollingShutterSkewNs)
+        buffer.putFloat(focusDistance)
+        buffer.putInt(sensitivity)
+    }
+
+    fun putControlBlock(buffer: ByteBuffer, requestId: Int, command: Int, status: Int, sequence: Int, value: Long) {
+        buffer.put(BLOCK_CONTROL.toByte())
+        buffer.put(0)
+        buffer.putShort(CONTROL_SIZE.toShort())
+        buffer.putInt(requestId)
+        buffer.put(command.toByte())
+        buffer.put(status.toByte())
+        buffer.putShort(0)
+        buffer.putInt(sequence)
+        buffer.putLong(value)
+    }
+
+    fun putPingBlock(buffer: ByteBuffer, pingId: Int) {
+        buffer.put(BLOCK_PING.toByte())
+        buffer.put(0)
+        buffer.putShort(PING_SIZE.toShort())
+        buffer.putInt(pingId)
+        buffer.putInt(0)
+    }
+
+    /** Writes [count] zero bytes, e.g. for missing row padding. */
+    fun putPadding(buffer: ByteBuffer, count: Int) {
+        var remaining = count
+        while (remaining > 0) {
+            val chunk = minOf(remaining, ZEROS.size)
+            buffer.put(ZEROS, 0, chunk)
+            remaining -= chunk
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package de.lifecapture.phonexrapp.stream
+
+import kotlin.math.sqrt
+
+/**
+ * Achieved frame rate and frame interval jitter, from the sensor timestamps of consecutive
+ * frames. Not thread safe: record and read on the camera thread.
+ */
+class FrameIntervalMonitor {
+    private var lastNs = 0L
+    private var firstNs = 0L
+    private var count = 0L
+    private var sum = 0.0
+    private var sumOfSquares = 0.0
+
+    /** Frame intervals in microseconds. */
+    val intervals = LatencyHistogram()
+
+    /** Number of intervals recorded since the last [reset]. */
+    val intervalCount: Long
+        get() = count
+
+    fun record(timestampNs: Long) {
+        if (lastNs == 0L || timestampNs <= lastNs) {
+            // First frame, or a new capture session.
+            reset()
+            firstNs = timestampNs
+        } else {
+            val interval = (timestampNs - lastNs).toDouble()
+            sum += interval
+            sumOfSquares += interval * interval
+            count++
+            intervals.record((timestampNs - lastNs) / 1000)
+        }
+        lastNs = timestampNs
+    }
+
+    /** Frames per second over the intervals recorded since the last [reset]. */
+    val fps: Double
+        get() = if (count == 0L) 0.0 else count * 1e9 / (lastNs - firstNs)
+
+    /** Standard deviation of the frame interval in microseconds. */
+    val jitterUs: Double
+        get() {
+            if (count < 2) {
+                return 0.0
+            }
+            val mean = sum / count
+            return sqrt(maxOf(0.0, sumOfSquares / count - mean * mean)) / 1000
+        }
+
+    /** Starts a new measurement window, continuing from the last frame. */
+    fun reset() {
+        firstNs = lastNs
+        count = 0
+        sum = 0.0
+        sumOfSquares = 0.0
+        intervals.reset()
+    }
+
+    override fun toString(): String {
+        return String.format(
+            "fps %.1f jitter us %.0f interval us p50 %d p99 %d max %d",
+            fps, jitterUs, intervals.valueAtPercentile(50.0), intervals.valueAtPercentile(99.0), intervals.max
+        )
+    }
+}
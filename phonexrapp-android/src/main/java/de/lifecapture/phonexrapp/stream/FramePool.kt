@@ -0,0 +1,155 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+/**
+ * A frame handed out by [FramePool].
+ *
+ * A frame is sent as the list of [segments] with one gathering write, so image planes can go to
+ * the socket without being copied. Frames that need repacking use [data] as their only segment.
+ * Call [release] once the frame was sent: it closes the attached image and returns the frame to
+ * its pool.
+ */
+class Frame internal constructor(private val pool: FramePool) {
+    /** Packed frame data; allocated on first use, so zero-copy frames never pay for it. */
+    var data: ByteBuffer = EMPTY
+        internal set
+
+    /** Small buffer for the frame header. */
+    val header: ByteBuffer = ByteBuffer.allocateDirect(HEADER_CAPACITY)
+
+    private var trailer: ByteBuffer = ByteBuffer.allocateDirect(TRAILER_CAPACITY)
+
+    val segments = Array(MAX_SEGMENTS) { EMPTY }
+    var segmentCount = 0
+        private set
+
+    private var image: AutoCloseable? = null
+
+    /** When and with how many bytes the frame was handed to the [FrameSender]. */
+    internal var queuedAtNs = 0L
+    internal var queuedBytes = 0L
+
+    /** Sequence number in the frame header, -1 for frames without one. */
+    var sequence = -1
+
+    /** Exposure start and packing time for the [LatencyRecorder], 0 where unknown. */
+    internal var captureNs = 0L
+    internal var packedNs = 0L
+
+    /** Bytes left to send in all segments. */
+    fun remaining(): Long {
+        var bytes = 0L
+        for (i in 0 until segmentCount) {
+            bytes += segments[i].remaining()
+        }
+        return bytes
+    }
+
+    /** Returns the cleared trailer buffer, which follows the image data on the wire. */
+    fun trailer(size: Int): ByteBuffer {
+        if (trailer.capacity() < size) {
+            trailer = ByteBuffer.allocateDirect(size)
+        }
+        trailer.clear()
+        trailer.limit(size)
+        return trailer
+    }
+
+    fun addSegment(buffer: ByteBuffer) {
+        segments[segmentCount++] = buffer
+    }
+
+    /** Keeps [image] open until the frame was written, its planes are sent in place. */
+    fun attach(image: AutoCloseable) {
+        this.image = image
+    }
+
+    fun release() {
+        image?.close()
+        image = null
+        for (i in 0 until segmentCount) {
+            segments[i] = EMPTY
+        }
+        segmentCount = 0
+        sequence = -1
+        captureNs = 0
+        packedNs = 0
+        pool.recycle(this)
+    }
+
+    companion object {
+        const val MAX_SEGMENTS = 8
+        private const val HEADER_CAPACITY = 128
+        private const val TRAILER_CAPACITY = 256
+        private val EMPTY: ByteBuffer = ByteBuffer.allocateDirect(0)
+    }
+}
+
+/**
+ * Fixed number of recycled frames.
+ *
+ * The pool is sized from the negotiated preview size. A frame's [Frame.data] is allocated with
+ * the slot capacity the first time it is needed; frames that need more room (because of row
+ * padding) grow the slot capacity once. Afterwards the capture -> send path does not allocate
+ * anymore. If all frames are in flight an extra one is allocated and counted as a miss; it is
+ * kept only if there is room in the pool when it is released.
+ */
+class FramePool(val slots: Int, slotCapacity: Int) {
+    private val free = ArrayBlockingQueue<Frame>(slots)
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+
+    @Volatile
+    var slotCapacity = slotCapacity
+        private set
+
+    /** Number of [acquire] calls served without allocating. */
+    val hits: Long
+        get() = hitCount.get()
+
+    /** Number of [acquire] calls that had to allocate. */
+    val misses: Long
+        get() = missCount.get()
+
+    init {
+        repeat(slots) {
+            free.offer(Frame(this))
+        }
+    }
+
+    /**
+     * Returns a frame without segments. If [size] is not 0 its [Frame.data] is cleared and limited
+     * to [size] bytes.
+     */
+    fun acquire(size: Int = 0): Frame {
+        var frame = free.poll()
+        var allocated = false
+        if (frame == null) {
+            frame = Frame(this)
+            allocated = true
+        }
+        if (size > 0) {
+            if (frame.data.capacity() < size) {
+                slotCapacity = max(size, slotCapacity)
+                frame.data = ByteBuffer.allocateDirect(slotCapacity)
+                allocated = true
+            }
+            frame.data.clear()
+            frame.data.limit(size)
+        }
+        if (allocated) {
+            missCount.incrementAndGet()
+        } else {
+            hitCount.incrementAndGet()
+        }
+        return frame
+    }
+
+    internal fun recycle(frame: Frame) {
+        free.offer(frame)
+    }
+}
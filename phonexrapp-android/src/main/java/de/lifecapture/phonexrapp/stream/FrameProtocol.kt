@@ -0,0 +1,121 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+
+/**
+ * The frame protocol negotiated with the receiver, see [FrameFormat] for the layouts.
+ *
+ * Version 1 needs no handshake and is kept for receivers that only know the old format. For
+ * version 2 the phone sends a hello on connect: magic `PXRH`, the highest version it speaks, a
+ * reserved byte and its capabilities as short. The receiver answers in the same layout with the
+ * version and the capabilities it wants.
+ *
+ * With [CAP_CLOCK] agreed, the protocol keeps a [clock] estimate of the receiver's clock against
+ * [localClock], the clock the frame timestamps are in.
+ */
+class FrameProtocol(val version: Int, val capabilities: Int, localClock: () -> Long = { System.nanoTime() }) {
+    private val sequence = AtomicInteger()
+
+    /** Estimate of the receiver's clock, null unless [CAP_CLOCK] was agreed. */
+    val clock: ClockSync? = if (version >= VERSION_2 && capabilities and CAP_CLOCK != 0) ClockSync(localClock) else null
+
+    /** Whether version 2 headers carry a CRC-32 of the plane data. */
+    val checksums: Boolean
+        get() = version >= FrameFormat.VERSION_2 && capabilities and CAP_CHECKSUM != 0
+
+    /** Sequence number for the next frame. Frames dropped later leave a gap the receiver sees. */
+    fun nextSequence(): Int {
+        return sequence.getAndIncrement()
+    }
+
+    /**
+     * Capture timestamp [timestampNs] in the receiver's clock, for the header of a version 2
+     * frame. [ClockSync.NO_TIME] while there is no estimate; the frame goes without.
+     */
+    fun receiverTime(timestampNs: Long): Long {
+        return clock?.receiverTime(timestampNs) ?: ClockSync.NO_TIME
+    }
+
+    /** Sequence number the next frame will get, without taking it. */
+    fun peekSequence(): Int {
+        return sequence.get()
+    }
+
+    /**
+     * The receiver answered the hello with something other than a hello, or closed a stream
+     * connection right after it: it does not speak version 2. Timeouts and resets are plain
+     * [IOException]s, they say nothing about the receiver's version.
+     */
+    class NotAHelloException(message: String) : IOException(message)
+
+    companion object {
+        const val VERSION_1 = 1
+        const val VERSION_2 = FrameFormat.VERSION_2
+
+        /** The phone can add a CRC-32 of the plane data to each frame. */
+        const val CAP_CHECKSUM = 1
+
+        /** The receiver may send requests on the connection, see [ControlChannel]. */
+        const val CAP_CONTROL = 2
+
+        /**
+         * The receiver answers pings on the connection and frames carry their capture time in
+         * its clock, see [ClockSync].
+         */
+        const val CAP_CLOCK = 4
+
+        /**
+         * The receiver confirms every frame with the time it had it complete, in its clock, see
+         * [LatencyRecorder].
+         */
+        const val CAP_RECEIPTS = 8
+
+        private val HELLO_MAGIC = byteArrayOf('P'.code.toByte(), 'X'.code.toByte(), 'R'.code.toByte(), 'H'.code.toByte())
+        private const val HELLO_SIZE = 8
+        private const val HANDSHAKE_TIMEOUT_MS = 3000
+
+        /**
+         * Agrees on a protocol with the receiver behind [transport]. With a [maxVersion] of 1
+         * nothing is exchanged, so old receivers keep working. [localClock] is the clock the frame
+         * timestamps are in.
+         */
+        fun negotiate(
+            transport: FrameTransport,
+            maxVersion: Int,
+            capabilities: Int,
+            localClock: () -> Long = { System.nanoTime() }
+        ): FrameProtocol {
+            if (maxVersion < VERSION_2) {
+                return FrameProtocol(VERSION_1, 0)
+            }
+            val hello = ByteBuffer.allocate(HELLO_SIZE)
+            hello.put(HELLO_MAGIC)
+            hello.put(maxVersion.toByte())
+            hello.put(0)
+            hello.putShort(capabilities.toShort())
+            hello.flip()
+            transport.write(arrayOf(hello), 1)
+
+            val reply = ByteBuffer.allocate(HELLO_SIZE)
+            try {
+                transport.readFully(reply, HANDSHAKE_TIMEOUT_MS)
+            } catch (e: EOFException) {
+                throw NotAHelloException("Receiver closed the connection on the hello")
+            }
+            for (i in HELLO_MAGIC.indices) {
+                if (reply.get(i) != HELLO_MAGIC[i]) {
+                    throw NotAHelloException("Unexpected handshake reply")
+                }
+            }
+            val version = min(reply.get(4).toInt(), maxVersion)
+            if (version < VERSION_1) {
+                throw IOException("Receiver rejected protocol version $maxVersion")
+            }
+            return FrameProtocol(version, reply.getShort(6).toInt() and capabilities, localClock)
+        }
+    }
+}
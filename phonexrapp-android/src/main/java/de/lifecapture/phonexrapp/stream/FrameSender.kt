@@ -0,0 +1,231 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.IOException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.LockSupport
+
+/** Why a captured frame never made it onto the network. */
+enum class DropReason {
+    /** A newer frame replaced it in the mailbox before the sender picked it up. */
+    MAILBOX_OVERWRITE,
+
+    /** The camera had no free image, because earlier images were not closed in time. */
+    SLOW_IMAGE_CLOSE,
+
+    /** The encoded frame queue was full, or the encoder waits for the next key frame. */
+    QUEUE_FULL,
+
+    /** There was no connection to the receiver. */
+    DISCONNECTED
+}
+
+/**
+ * Single long-lived network sender.
+ *
+ * The capture thread hands frames over through a one slot mailbox: [offer] atomically replaces a
+ * frame that was not sent yet, so capture never waits on the network. Only the sender thread
+ * writes to the transport; a frame is released, closing its image, as soon as its write finished.
+ *
+ * Encoded frames depend on each other and cannot replace one another. They go through a bounded
+ * queue instead ([queue]), which the sender drains before it looks at the mailbox.
+ *
+ * The sender outlives its connections: a [ConnectionManager] [attach]es every new transport. A
+ * failed write detaches the transport and reports the error through [onError]. Until the next
+ * transport is attached, frames are released right away and counted as
+ * [DropReason.DISCONNECTED].
+ */
+class FrameSender(
+    private val onError: (IOException) -> Unit
+) : Thread("FrameSender") {
+    @Volatile
+    private var transport: FrameTransport? = null
+
+    /**
+     * Protocol negotiated on the current transport, frame producers take their sequence numbers
+     * from it. Producers that depend on it should check [connections] for a new connection.
+     */
+    @Volatile
+    var protocol = FrameProtocol(FrameProtocol.VERSION_1, 0)
+        private set
+
+    /** Number of transports attached so far; changes with every new connection. */
+    @Volatile
+    var connections = 0
+        private set
+
+    /** Whether a transport is attached, frames are dropped otherwise. */
+    val connected: Boolean
+        get() = transport != null
+
+    private val mailbox = AtomicReference<Frame?>()
+    private val ordered = ArrayBlockingQueue<Frame>(QUEUE_CAPACITY)
+    private val dropCounts = AtomicLongArray(DropReason.values().size)
+    private val sentCount = AtomicLong()
+    private val sentBytesCount = AtomicLong()
+    private val inFlight = AtomicLong()
+    private val latencySum = AtomicLong()
+
+    @Volatile
+    private var running = true
+
+    /** Number of frames written completely. */
+    val sent: Long
+        get() = sentCount.get()
+
+    /** Number of bytes written. */
+    val sentBytes: Long
+        get() = sentBytesCount.get()
+
+    /** Bytes handed to the sender and not written or dropped yet. */
+    val bytesInFlight: Long
+        get() = inFlight.get()
+
+    /** Sum of all [sendLatency] samples, for averages over a time window. */
+    val sendLatencySumUs: Long
+        get() = latencySum.get()
+
+    /** Time in microseconds from handing a frame to the sender until it was written. */
+    val sendLatency = LatencyHistogram()
+
+    /** Learns when the producer's frames were written, see [LatencyRecorder.onSending]. */
+    @Volatile
+    var latencyRecorder: LatencyRecorder? = null
+
+    fun drops(reason: DropReason): Long {
+        return dropCounts.get(reason.ordinal)
+    }
+
+    fun countDrop(reason: DropReason) {
+        dropCounts.incrementAndGet(reason.ordinal)
+    }
+
+    /** A sender for one fixed connection. */
+    constructor(transport: FrameTransport, protocol: FrameProtocol, onError: (IOException) -> Unit) : this(onError) {
+        attach(transport, protocol)
+    }
+
+    /** Starts sending to [transport], which speaks [protocol]. */
+    fun attach(transport: FrameTransport, protocol: FrameProtocol) {
+        this.protocol = protocol
+        connections++
+        this.transport = transport
+    }
+
+    /** Stops sending to [transport], if it is still the current one. Waiting frames are dropped. */
+    fun detach(transport: FrameTransport) {
+        if (this.transport !== transport) {
+            return
+        }
+        this.transport = null
+        LockSupport.unpark(this)
+    }
+
+    /** Hands [frame] to the sender. Ownership moves to the sender, which releases it. */
+    fun offer(frame: Frame) {
+        if (!running) {
+            frame.release()
+            return
+        }
+        if (transport == null) {
+            frame.release()
+            countDrop(DropReason.DISCONNECTED)
+            return
+        }
+        enqueued(frame)
+        val previous = mailbox.getAndSet(frame)
+        if (previous != null) {
+            inFlight.addAndGet(-previous.queuedBytes)
+            previous.release()
+            countDrop(DropReason.MAILBOX_OVERWRITE)
+        }
+        LockSupport.unpark(this)
+    }
+
+    /**
+     * Appends [frame] to the queue of frames that must be sent in order. Returns false and
+     * releases the frame if the queue is full; the producer should then skip to a key frame.
+     */
+    fun queue(frame: Frame): Boolean {
+        if (transport == null) {
+            frame.release()
+            countDrop(DropReason.DISCONNECTED)
+            return false
+        }
+        enqueued(frame)
+        if (!running || !ordered.offer(frame)) {
+            inFlight.addAndGet(-frame.queuedBytes)
+            frame.release()
+            countDrop(DropReason.QUEUE_FULL)
+            return false
+        }
+        LockSupport.unpark(this)
+        return true
+    }
+
+    private fun enqueued(frame: Frame) {
+        frame.queuedAtNs = System.nanoTime()
+        frame.queuedBytes = frame.remaining()
+        inFlight.addAndGet(frame.queuedBytes)
+    }
+
+    /**
+     * Stops the sender thread and waits for it to finish the current write. The write may wait
+     * for a receiver that stopped reading, close the transport first to fail it.
+     */
+    fun shutdown() {
+        running = false
+        LockSupport.unpark(this)
+        try {
+            join()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        mailbox.getAndSet(null)?.release()
+        while (true) {
+            val frame = ordered.poll() ?: break
+            frame.release()
+        }
+    }
+
+    override fun run() {
+        while (running) {
+            val frame = ordered.poll() ?: mailbox.getAndSet(null)
+            if (frame == null) {
+                LockSupport.park(this)
+                continue
+            }
+            val transport = transport
+            if (transport == null) {
+                // Handed over before the connection broke, it would be stale by the next one.
+                inFlight.addAndGet(-frame.queuedBytes)
+                frame.release()
+                countDrop(DropReason.DISCONNECTED)
+                continue
+            }
+            try {
+                latencyRecorder?.onSending(frame)
+                transport.write(frame.segments, frame.segmentCount)
+                val latencyUs = (System.nanoTime() - frame.queuedAtNs) / 1000
+                sendLatency.record(latencyUs)
+                latencySum.addAndGet(latencyUs)
+                latencyRecorder?.onWritten(frame)
+                sentBytesCount.addAndGet(frame.queuedBytes)
+                sentCount.incrementAndGet()
+            } catch (e: IOException) {
+                detach(transport)
+                onError(e)
+            } finally {
+                inFlight.addAndGet(-frame.queuedBytes)
+                frame.release()
+            }
+        }
+    }
+
+    companion object {
+        /** Encoded frames that may wait for the network, about a second of video. */
+        const val QUEUE_CAPACITY = 32
+    }
+}
@@ -0,0 +1,20 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.Closeable
+import java.nio.ByteBuffer
+
+/**
+ * Connection the [FrameSender] writes frames to, either a TCP stream ([StreamTransport]) or
+ * fragmented datagrams ([DatagramTransport]).
+ */
+interface FrameTransport : Closeable {
+    /** Writes the frame made of [count] segments, blocking until the kernel took all of it. */
+    fun write(segments: Array<ByteBuffer>, count: Int)
+
+    /**
+     * Reads until the heap buffer [buffer] is full. Used for the handshake, before frames flow.
+     *
+     * @throws java.net.SocketTimeoutException if the receiver does not answer in [timeoutMs]
+     */
+    fun readFully(buffer: ByteBuffer, timeoutMs: Int)
+}
@@ -0,0 +1,97 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of HdrHistogram.
+ *
+ * Values are counted exactly below `2 * 2^SUB_BUCKET_BITS`; above that every power of two is split
+ * into `2^SUB_BUCKET_BITS` buckets, which keeps the relative error below about 3%. [record] never
+ * allocates and can be called from any thread.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val total = AtomicLong()
+    private val maxValue = AtomicLong()
+
+    val count: Long
+        get() = total.get()
+
+    val max: Long
+        get() = maxValue.get()
+
+    fun record(value: Long) {
+        val v = if (value < 0) 0 else value
+        counts.incrementAndGet(bucketIndex(v))
+        total.incrementAndGet()
+        var current = maxValue.get()
+        while (v > current && !maxValue.compareAndSet(current, v)) {
+            current = maxValue.get()
+        }
+    }
+
+    /** Returns the lowest value of the bucket holding the given percentile (0..100). */
+    fun valueAtPercentile(percentile: Double): Long {
+        val n = total.get()
+        if (n == 0L) {
+            return 0
+        }
+        val target = maxOf(1L, Math.ceil(n * percentile / 100.0).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += counts.get(i)
+            if (seen >= target) {
+                return bucketValue(i)
+            }
+        }
+        return max
+    }
+
+    /** Copies the bucket counts into [out], which needs [BUCKET_COUNT] entries. */
+    fun copyCounts(out: LongArray) {
+        for (i in 0 until BUCKET_COUNT) {
+            out[i] = counts.get(i)
+        }
+    }
+
+    /** Clears all counts. Values recorded concurrently may or may not survive. */
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) {
+            counts.set(i, 0)
+        }
+        total.set(0)
+        maxValue.set(0)
+    }
+
+    override fun toString(): String {
+        return "n=" + count + " p50=" + valueAtPercentile(50.0) + " p90=" + valueAtPercentile(90.0) +
+                " p99=" + valueAtPercentile(99.0) + " max=" + max
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 5
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val MAX_SHIFT = 40
+        const val BUCKET_COUNT = (MAX_SHIFT + 2) * SUB_BUCKETS
+
+        fun bucketIndex(value: Long): Int {
+            if (value < 2 * SUB_BUCKETS) {
+                return value.toInt()
+            }
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+            if (shift > MAX_SHIFT) {
+                return BUCKET_COUNT - 1
+            }
+            return (shift + 1) * SUB_BUCKETS + (value ushr shift).toInt() - SUB_BUCKETS
+        }
+
+        fun bucketValue(index: Int): Long {
+            if (index < 2 * SUB_BUCKETS) {
+                return index.toLong()
+            }
+            val shift = index / SUB_BUCKETS - 1
+            return (index % SUB_BUCKETS + SUB_BUCKETS).toLong() shl shift
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/** A leg of a frame's way from the sensor to the receiver, see [LatencyRecorder]. */
+enum class LatencyStage {
+    /** Start of exposure (`SENSOR_TIMESTAMP`) until the image reached the app. */
+    CAPTURE,
+
+    /** Image delivery until the frame was packed. */
+    PACK,
+
+    /** Packed until written to the transport, including the wait for the sender. */
+    SEND,
+
+    /** Written until the receiver had the frame complete, by its receipt. */
+    NETWORK,
+
+    /** Start of exposure until the receiver had the frame complete: glass to receiver. */
+    TOTAL
+}
+
+/**
+ * Latency histograms per [LatencyStage], in microseconds, for every frame that goes out.
+ *
+ * The producer calls [onPacked] with the frame's exposure start and the time its image arrived,
+ * the [FrameSender] calls [onSending] right before and [onWritten] right after the write, and with
+ * [FrameProtocol.CAP_RECEIPTS] the [ControlChannel] hands the receiver's receipts to
+ * [onReceived]. Receipts carry the receiver's clock, so [LatencyStage.NETWORK] and
+ * [LatencyStage.TOTAL] need the [ClockSync] of [FrameProtocol.CAP_CLOCK] as well. Stages whose
+ * start is unknown are skipped, e.g. the exposure start of images in a monotonic clock.
+ *
+ * Recording is lock-free and does not allocate. Frames wait for their receipt in a ring indexed by
+ * sequence number, which only the sender thread claims. They are claimed before the write, so a
+ * receipt that beats the end of the write is kept until the write time is known. [export] swaps
+ * the histograms for a second set, so each export covers the time since the previous one.
+ *
+ * @param localClock The clock of the frame timestamps, the same one the [ClockSync] reads
+ */
+class LatencyRecorder(private val localClock: () -> Long = { System.nanoTime() }) {
+    /** The histograms of one export interval, valid until the next [export]. */
+    class Interval internal constructor(private val histograms: Array<LatencyHistogram>) {
+        var startNs = 0L
+            internal set
+        var endNs = 0L
+            internal set
+
+        operator fun get(stage: LatencyStage): LatencyHistogram {
+            return histograms[stage.ordinal]
+        }
+
+        override fun toString(): String {
+            val builder = StringBuilder()
+            for (stage in LatencyStage.values()) {
+                if (builder.isNotEmpty()) {
+                    builder.append(' ')
+                }
+                builder.append(stage.name.lowercase()).append(" {").append(get(stage)).append('}')
+            }
+            return builder.toString()
+        }
+    }
+
+    @Volatile
+    private var active = Interval(Array(LatencyStage.values().size) { LatencyHistogram() })
+    private var exported = Interval(Array(LatencyStage.values().size) { LatencyHistogram() })
+
+    // Frames waiting for their receipt, a ring of PENDING_SIZE. A slot's sequence is -1 while the
+    // sender rewrites it; whoever completes the slot, the write or the receipt, sets it to -1. The
+    // written time is 0 and the received time NO_TIME until known.
+    private val pendingSequences = AtomicLongArray(PENDING_SIZE)
+    private val pendingCaptured = AtomicLongArray(PENDING_SIZE)
+    private val pendingWritten = AtomicLongArray(PENDING_SIZE)
+    private val pendingReceived = AtomicLongArray(PENDING_SIZE)
+
+    /** The clock of the latest receipt, for receipts that arrive before the write finished. */
+    @Volatile
+    private var receiptClock: ClockSync? = null
+
+    init {
+        for (i in 0 until PENDING_SIZE) {
+            pendingSequences.set(i, -1)
+        }
+        active.startNs = localClock()
+    }
+
+    fun nowNs(): Long {
+        return localClock()
+    }
+
+    /**
+     * [frame] was packed just now from an image exposed at [captureNs] that arrived at
+     * [deliveredNs], 0 where unknown.
+     */
+    fun onPacked(frame: Frame, captureNs: Long, deliveredNs: Long) {
+        val packedNs = localClock()
+        frame.captureNs = captureNs
+        frame.packedNs = packedNs
+        val interval = active
+        if (deliveredNs != 0L) {
+            if (captureNs != 0L) {
+                interval[LatencyStage.CAPTURE].record((deliveredNs - captureNs) / 1000)
+            }
+            interval[LatencyStage.PACK].record((packedNs - deliveredNs) / 1000)
+        }
+    }
+
+    /** [frame] is about to be written. Called on the sender thread only. */
+    fun onSending(frame: Frame) {
+        val sequence = frame.sequence
+        if (frame.packedNs == 0L || sequence < 0) {
+            return
+        }
+        val slot = sequence and (PENDING_SIZE - 1)
+        pendingSequences.set(slot, -1)
+        pendingCaptured.set(slot, frame.captureNs)
+        pendingWritten.set(slot, 0)
+        pendingReceived.set(slot, ClockSync.NO_TIME)
+        pendingSequences.set(slot, sequence.toLong())
+    }
+
+    /** [frame] was written just now. Called on the sender thread only, after [onSending]. */
+    fun onWritten(frame: Frame) {
+        if (frame.packedNs == 0L) {
+            // Not one of the producer's frames, e.g. a control answer.
+            return
+        }
+        val writtenNs = localClock()
+        active[LatencyStage.SEND].record((writtenNs - frame.packedNs) / 1000)
+        val sequence = frame.sequence
+        if (sequence < 0) {
+            return
+        }
+        val slot = sequence and (PENDING_SIZE - 1)
+        if (pendingSequences.get(slot) != sequence.toLong()) {
+            return
+        }
+        pendingWritten.set(slot, writtenNs)
+        val receivedNs = pendingReceived.get(slot)
+        val clock = receiptClock
+        if (receivedNs != ClockSync.NO_TIME && clock != null &&
+            pendingSequences.compareAndSet(slot, sequence.toLong(), -1)
+        ) {
+            record(writtenNs, pendingCaptured.get(slot), receivedNs, clock)
+        }
+    }
+
+    /**
+     * The receiver had frame [sequence] complete at [receivedNs] in its clock, which [clock]
+     * estimates. Returns false for unknown, repeated or too old receipts and while [clock] has no
+     * estimate yet. A receipt for a frame still being written counts once the write finished.
+     */
+    fun onReceived(sequence: Int, receivedNs: Long, clock: ClockSync): Boolean {
+        val slot = sequence and (PENDING_SIZE - 1)
+        if (sequence < 0 || !clock.synced || pendingSequences.get(slot) != sequence.toLong() ||
+            pendingReceived.get(slot) != ClockSync.NO_TIME
+        ) {
+            return false
+        }
+        receiptClock = clock
+        pendingReceived.set(slot, receivedNs)
+        val writtenNs = pendingWritten.get(slot)
+        val captureNs = pendingCaptured.get(slot)
+        // Fails if the write finished meanwhile and took the slot, or if the sender reused it.
+        if (writtenNs != 0L && pendingSequences.compareAndSet(slot, sequence.toLong(), -1)) {
+            record(writtenNs, captureNs, receivedNs, clock)
+        }
+        return true
+    }
+
+    private fun record(writtenNs: Long, captureNs: Long, receivedNs: Long, clock: ClockSync) {
+        val interval = active
+        interval[LatencyStage.NETWORK].record((receivedNs - clock.receiverTime(writtenNs)) / 1000)
+        if (captureNs != 0L) {
+            interval[LatencyStage.TOTAL].record((receivedNs - clock.receiverTime(captureNs)) / 1000)
+        }
+    }
+
+    /**
+     * Returns the histograms recorded since the previous export and starts a new interval. Values
+     * recorded while the intervals are swapped may be missed.
+     */
+    @Synchronized
+    fun export(): Interval {
+        val next = exported
+        for (stage in LatencyStage.values()) {
+            next[stage].reset()
+        }
+        val nowNs = localClock()
+        next.startNs = nowNs
+        val interval = active
+        active = next
+        interval.endNs = nowNs
+        exported = interval
+        return interval
+    }
+
+    companion object {
+        /** Frames that wait for their receipt, about a second at 240 frames per second. */
+        private const val PENDING_SIZE = 256
+    }
+}
@@ -0,0 +1,134 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+
+/**
+ * Packs [YuvPlanes] of any 4:2:0 layout into NV12 for frames that cannot be sent in place.
+ *
+ * The packed image is the Y plane followed by one interleaved UV plane, both with a row stride of
+ * [stride]: the width rounded up to even, so that odd widths keep their last chroma sample. Rows
+ * are moved with bulk copies; chroma rows go through two scratch rows, which makes planar,
+ * semi-planar and any other pixel stride work the same way. The scratch rows grow with the
+ * widest image seen, afterwards packing allocates nothing.
+ *
+ * The crop of [YuvPlanes] is honored, its origin is rounded down to even so it starts on a chroma
+ * sample.
+ */
+class Nv12Packer {
+    enum class Layout {
+        /** Separate U and V planes, pixel stride 1 (I420). */
+        PLANAR,
+
+        /** U and V interleaved, pixel stride 2 (NV12 or NV21). */
+        SEMI_PLANAR,
+
+        /** Any other pixel stride. */
+        OTHER
+    }
+
+    private var uRow = ByteArray(0)
+    private var vRow = ByteArray(0)
+    private var uvRow = ByteArray(0)
+
+    /**
+     * Writes the packed image of [planes] to [destination] at its position, which needs
+     * [packedSize] bytes of room. The positions and limits of the plane buffers are used and
+     * restored.
+     */
+    fun pack(planes: YuvPlanes, destination: ByteBuffer) {
+        val width = planes.width
+        val height = planes.height
+        val stride = stride(width)
+        val left = planes.cropLeft and 1.inv()
+        val top = planes.cropTop and 1.inv()
+
+        val y = planes.buffers[0]!!
+        val yLimit = y.limit()
+        val yRowStride = planes.rowStrides[0]
+        if (width == stride && yRowStride == width && left == 0 && planes.pixelStrides[0] == 1) {
+            // Unpadded rows of even width, one copy for the whole plane. An odd width with one
+            // byte of padding has the same stride, but its last row ends without the padding.
+            y.limit(top * yRowStride + height * stride)
+            y.position(top * yRowStride)
+            destination.put(y)
+        } else {
+            for (row in 0 until height) {
+                val start = (top + row) * yRowStride + left
+                y.limit(start + width)
+                y.position(start)
+                destination.put(y)
+                if (stride != width) {
+                    // Odd width, repeat the last pixel.
+                    destination.put(y.get(start + width - 1))
+                }
+            }
+        }
+        y.limit(yLimit)
+        y.rewind()
+
+        val u = planes.buffers[1]!!
+        val v = planes.buffers[2]!!
+        val pixelStride = planes.pixelStrides[1]
+        val chromaWidth = (width + 1) shr 1
+        val rowBytes = (chromaWidth - 1) * pixelStride + 1
+        if (uRow.size < rowBytes) {
+            uRow = ByteArray(rowBytes)
+            vRow = ByteArray(rowBytes)
+        }
+        if (uvRow.size < stride) {
+            uvRow = ByteArray(stride)
+        }
+        val uRowStride = planes.rowStrides[1]
+        val vRowStride = planes.rowStrides[2]
+        val vPixelStride = planes.pixelStrides[2]
+        val offset = (left shr 1) * pixelStride
+        val vOffset = (left shr 1) * vPixelStride
+        val chromaHeight = (height + 1) shr 1
+        for (row in 0 until chromaHeight) {
+            val chromaRow = (top shr 1) + row
+            u.position(chromaRow * uRowStride + offset)
+            u.get(uRow, 0, rowBytes)
+            v.position(chromaRow * vRowStride + vOffset)
+            v.get(vRow, 0, (chromaWidth - 1) * vPixelStride + 1)
+            var s = 0
+            var d = 0
+            var sv = 0
+            while (d < stride) {
+                uvRow[d++] = uRow[s]
+                uvRow[d++] = vRow[sv]
+                s += pixelStride
+                sv += vPixelStride
+            }
+            destination.put(uvRow, 0, stride)
+        }
+        u.rewind()
+        v.rewind()
+    }
+
+    companion object {
+        /** Row stride of the packed planes. */
+        fun stride(width: Int): Int {
+            return (width + 1) and 1.inv()
+        }
+
+        /** Bytes of the packed image. */
+        fun packedSize(width: Int, height: Int): Int {
+            return stride(width) * (height + ((height + 1) shr 1))
+        }
+
+        fun layout(planes: YuvPlanes): Layout {
+            val uStride = planes.pixelStrides[1]
+            return when {
+                uStride != planes.pixelStrides[2] -> Layout.OTHER
+                uStride == 1 -> Layout.PLANAR
+                uStride == 2 -> Layout.SEMI_PLANAR
+                else -> Layout.OTHER
+            }
+        }
+
+        /** Whether the luma rows of [planes] are wider than the image. */
+        fun isPadded(planes: YuvPlanes): Boolean {
+            return planes.rowStrides[0] > planes.width
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+
+/** Provides the head pose sent as sensor data with every frame, see [FrameFormat]. */
+interface PoseSource {
+    /**
+     * Writes [FrameFormat.SENSOR_SIZE] bytes with the pose at [timestampNs] to [buffer]. Called
+     * for every frame, so it must not allocate.
+     */
+    fun putPose(buffer: ByteBuffer, timestampNs: Long)
+}
@@ -0,0 +1,175 @@
+package de.lifecapture.phonexrapp.stream
+
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Adapts the encoder bit rate and the capture size to what the link carries.
+ *
+ * [update] is called periodically. It looks at the [FrameSender] statistics of the last window:
+ * bytes in flight, the average send latency and the drop rate. A congested window cuts the bit
+ * rate multiplicatively, several clear windows raise it additively. When the bit rate is already
+ * at its minimum (or there is no encoder) and the link stays congested, the capture size is
+ * stepped down; after a long clear period at full bit rate it is stepped up again. Only steps the
+ * listener could take count, at the ends of the size ladder nothing changes.
+ *
+ * @param encoded Whether a bit rate can be set at all; in raw mode only the size is adapted
+ * @param latencyTargetUs Average send latency above which a window counts as congested
+ */
+class RateController(
+    private val sender: FrameSender,
+    private val listener: Listener,
+    private val encoded: Boolean,
+    private val minBitRate: Int,
+    maxBitRate: Int,
+    private val latencyTargetUs: Long = 66_000
+) {
+    interface Listener {
+        fun onBitRateChanged(bitRate: Int)
+
+        /**
+         * [step] is -1 for the next smaller capture size and +1 for the next larger one. Returns
+         * false if there is no such size.
+         */
+        fun onCaptureSizeStep(step: Int): Boolean
+    }
+
+    /** Highest bit rate the controller goes up to, see [limitBitRate]. */
+    var maxBitRate = maxBitRate
+        private set
+
+    var bitRate = maxBitRate
+        private set
+
+    // Statistics of the last window, for logging.
+    var throughput = 0L
+        private set
+    var averageLatencyUs = 0L
+        private set
+    var dropRate = 0.0
+        private set
+    var bytesInFlight = 0L
+        private set
+
+    /** Number of decisions taken, per kind. */
+    var bitRateDecreases = 0
+        private set
+    var bitRateIncreases = 0
+        private set
+    var sizeSteps = 0
+        private set
+
+    private var lastUpdateNs = 0L
+    private var lastSent = 0L
+    private var lastSentBytes = 0L
+    private var lastDrops = 0L
+    private var lastLatencySum = 0L
+    private var congestedWindows = 0
+    private var clearWindows = 0
+
+    /** Evaluates the window since the last call. Returns true if a decision was taken. */
+    fun update(nowNs: Long): Boolean {
+        val sent = sender.sent
+        val sentBytes = sender.sentBytes
+        val drops = sender.drops(DropReason.MAILBOX_OVERWRITE) + sender.drops(DropReason.QUEUE_FULL)
+        val latencySum = sender.sendLatencySumUs
+        val windowNs = nowNs - lastUpdateNs
+        val first = lastUpdateNs == 0L
+
+        val sentDelta = sent - lastSent
+        val dropDelta = drops - lastDrops
+        throughput = if (windowNs > 0) (sentBytes - lastSentBytes) * 1_000_000_000L / windowNs else 0
+        averageLatencyUs = if (sentDelta > 0) (latencySum - lastLatencySum) / sentDelta else 0
+        dropRate = if (sentDelta + dropDelta > 0) dropDelta.toDouble() / (sentDelta + dropDelta) else 0.0
+        bytesInFlight = sender.bytesInFlight
+
+        lastUpdateNs = nowNs
+        lastSent = sent
+        lastSentBytes = sentBytes
+        lastDrops = drops
+        lastLatencySum = latencySum
+        if (first) {
+            return false
+        }
+
+        // More data waiting than the link moves within the latency target means congestion as
+        // well, even before the latency of the frames still in flight shows it.
+        val backlogged = bytesInFlight > throughput * latencyTargetUs / 1_000_000
+        val congested = dropRate > MAX_DROP_RATE || averageLatencyUs > latencyTargetUs || backlogged
+        if (congested) {
+            clearWindows = 0
+            congestedWindows++
+            if (encoded && bitRate > minBitRate) {
+                bitRate = max(minBitRate, (bitRate * DECREASE_FACTOR).toInt())
+                bitRateDecreases++
+                listener.onBitRateChanged(bitRate)
+                return true
+            }
+            if (congestedWindows >= STEP_DOWN_WINDOWS) {
+                congestedWindows = 0
+                if (!listener.onCaptureSizeStep(-1)) {
+                    // Already the smallest size.
+                    return false
+                }
+                sizeSteps++
+                if (encoded) {
+                    // A smaller picture needs fewer bits, start again from the middle.
+                    bitRate = (minBitRate + maxBitRate) / 2
+                    listener.onBitRateChanged(bitRate)
+                }
+                return true
+            }
+            return false
+        }
+
+        congestedWindows = 0
+        clearWindows++
+        if (encoded && bitRate < maxBitRate && clearWindows % INCREASE_WINDOWS == 0) {
+            bitRate = min(maxBitRate, bitRate + maxBitRate / INCREASE_STEPS)
+            bitRateIncreases++
+            listener.onBitRateChanged(bitRate)
+            return true
+        }
+        if ((!encoded || bitRate >= maxBitRate) && clearWindows >= STEP_UP_WINDOWS) {
+            clearWindows = 0
+            if (!listener.onCaptureSizeStep(1)) {
+                // Already the size chosen initially.
+                return false
+            }
+            sizeSteps++
+            return true
+        }
+        return false
+    }
+
+    /**
+     * Makes [bitRate] the new maximum, e.g. on request of the receiver, and switches to it right
+     * away. The controller still lowers it on congestion but never goes above it. Returns the bit
+     * rate in effect, which is at least the minimum.
+     */
+    fun limitBitRate(bitRate: Int): Int {
+        maxBitRate = max(minBitRate, bitRate)
+        this.bitRate = maxBitRate
+        clearWindows = 0
+        listener.onBitRateChanged(maxBitRate)
+        return maxBitRate
+    }
+
+    override fun toString(): String {
+        return "bitRate=" + bitRate + " throughput=" + throughput + " latencyUs=" + averageLatencyUs +
+                " dropRate=" + "%.3f".format(dropRate) + " inFlight=" + bytesInFlight +
+                " decreases=" + bitRateDecreases + " increases=" + bitRateIncreases + " sizeSteps=" + sizeSteps
+    }
+
+    companion object {
+        /** Interval in which [update] should be called. */
+        const val UPDATE_INTERVAL_MS = 500L
+
+        private const val MAX_DROP_RATE = 0.05
+        private const val DECREASE_FACTOR = 0.7
+        private const val INCREASE_STEPS = 20
+        private const val INCREASE_WINDOWS = 2
+        private const val STEP_DOWN_WINDOWS = 4
+        private const val STEP_UP_WINDOWS = 20
+    }
+}
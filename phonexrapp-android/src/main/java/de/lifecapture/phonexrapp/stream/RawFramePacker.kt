@@ -0,0 +1,278 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+
+/**
+ * Packs raw YUV 4:2:0 images into frames of the negotiated [FrameProtocol].
+ *
+ * Plane buffers are sent in place wherever the layout allows it. Version 1 only knows one
+ * interleaved UV plane, so planar images are copied. Version 2 describes every plane with its
+ * strides: semi-planar images go out as Y and interleaved UV plane, planar ones as three planes.
+ * Legacy NV21 buffers are sent in place as well. Cropped images and unusual pixel strides are
+ * packed into NV12 by [Nv12Packer].
+ *
+ * Not thread safe, images are packed on the camera's image thread.
+ */
+class RawFramePacker(private val protocol: FrameProtocol) {
+    private val nv12 = Nv12Packer()
+
+    /** Head pose sent with every frame, zeros are sent while this is null. */
+    @Volatile
+    var poseSource: PoseSource? = null
+
+    /** Capture results attached to version 2 frames by timestamp, none while this is null. */
+    @Volatile
+    var captureMetadata: CaptureMetadataRing? = null
+
+    /**
+     * Whether the image timestamps are in the clock the protocol's [ClockSync] reads. Only then
+     * version 2 frames carry their capture time in the receiver's clock.
+     */
+    @Volatile
+    var syncableTimestamps = true
+
+    /**
+     * Packs [planes] into a frame from [pool]. Takes ownership of [image]: it is attached to the
+     * frame when the planes are sent in place and closed right away otherwise.
+     */
+    fun pack(pool: FramePool, planes: YuvPlanes, image: AutoCloseable?): Frame {
+        for (i in 0 until 3) {
+            planes.buffers[i]!!.rewind()
+        }
+        val layout = Nv12Packer.layout(planes)
+        if (layout == Nv12Packer.Layout.OTHER || planes.cropLeft != 0 || planes.cropTop != 0) {
+            try {
+                return if (protocol.version >= FrameFormat.VERSION_2) packV2Copy(pool, planes) else packV1Copy(pool, planes)
+            } finally {
+                image?.close()
+            }
+        }
+        return if (protocol.version >= FrameFormat.VERSION_2) {
+            packV2(pool, planes, image)
+        } else {
+            packV1(pool, planes, image)
+        }
+    }
+
+    /**
+     * Packs a NV21 image from the legacy camera API. The [data] between its position and limit is
+     * sent in place; [image] is attached to the frame and closed once the frame was written.
+     */
+    fun packNv21(
+        pool: FramePool,
+        data: ByteBuffer,
+        width: Int,
+        height: Int,
+        timestampNs: Long,
+        format: Int,
+        image: AutoCloseable?
+    ): Frame {
+        val size = data.remaining()
+        val frame = pool.acquire()
+        if (image != null) {
+            frame.attach(image)
+        }
+        val header = frame.header
+        header.clear()
+        val trailer: ByteBuffer
+        if (protocol.version >= FrameFormat.VERSION_2) {
+            val checksum = protocol.checksums
+            val receiverTimeNs = receiverTime(timestampNs)
+            val crc = if (checksum) Crc32.finish(Crc32.update(Crc32.INITIAL, data)) else 0
+            frame.sequence = protocol.nextSequence()
+            val start = FrameFormat.beginHeaderV2(
+                header, FrameFormat.TYPE_RAW, frame.sequence, timestampNs, width, height,
+                format, flagsV2(checksum, receiverTimeNs), 2, FrameFormat.SENSOR_BLOCK_SIZE
+            )
+            val ySize = width * height
+            FrameFormat.putPlaneV2(header, ySize, width, 1)
+            FrameFormat.putPlaneV2(header, size - ySize, width, 2)
+            FrameFormat.endHeaderV2(header, start, crc, receiverTimeNs)
+            trailer = frame.trailer(FrameFormat.SENSOR_BLOCK_SIZE)
+            FrameFormat.putSensorBlock(trailer, poseSource, timestampNs)
+        } else {
+            FrameFormat.putHeader(header, width, height, width, size)
+            trailer = frame.trailer(FrameFormat.SENSOR_SIZE)
+            FrameFormat.putSensor(trailer, poseSource, timestampNs)
+        }
+        header.flip()
+        trailer.flip()
+        frame.addSegment(header)
+        frame.addSegment(data)
+        frame.addSegment(trailer)
+        return frame
+    }
+
+    private fun packV1(pool: FramePool, planes: YuvPlanes, image: AutoCloseable?): Frame {
+        val width = planes.rowStrides[0]
+        val height = planes.height
+        val bY = planes.buffers[0]!!
+        val bU = planes.buffers[1]!!
+        val bV = planes.buffers[2]!!
+
+        // The U plane of a semi-planar image already holds the interleaved UV data, only the
+        // last V byte and the row padding behind it are missing.
+        val uvSize = (height shr 1) * width
+        val uvPadding = uvSize - bU.remaining() - 1
+        if (planes.pixelStrides[1] != 2 || uvPadding < 0) {
+            try {
+                return packV1Copy(pool, planes)
+            } finally {
+                image?.close()
+            }
+        }
+
+        val planeSize = bY.remaining() + uvSize
+        val frame = pool.acquire()
+        if (image != null) {
+            frame.attach(image)
+        }
+        val header = frame.header
+        header.clear()
+        FrameFormat.putHeader(header, width, height, planes.width, planeSize)
+        header.flip()
+        val trailer = frame.trailer(1 + uvPadding + FrameFormat.SENSOR_SIZE)
+        trailer.put(bV.get(bV.limit() - 1))
+        FrameFormat.putPadding(trailer, uvPadding)
+        FrameFormat.putSensor(trailer, poseSource, planes.timestampNs)
+        trailer.flip()
+
+        frame.addSegment(header)
+        frame.addSegment(bY)
+        frame.addSegment(bU)
+        frame.addSegment(trailer)
+        return frame
+    }
+
+    /** Copies an image that cannot be sent in place as version 1 frame, packed into NV12. */
+    private fun packV1Copy(pool: FramePool, planes: YuvPlanes): Frame {
+        val planeSize = Nv12Packer.packedSize(planes.width, planes.height)
+        val frame = pool.acquire(FrameFormat.frameSize(planeSize))
+        val buffer = frame.data
+        FrameFormat.putHeader(buffer, Nv12Packer.stride(planes.width), planes.height, planes.width, planeSize)
+        nv12.pack(planes, buffer)
+        FrameFormat.putSensor(buffer, poseSource, planes.timestampNs)
+        buffer.flip()
+        frame.addSegment(buffer)
+        return frame
+    }
+
+    /** Copies an image that cannot be sent in place as version 2 frame with NV12 planes. */
+    private fun packV2Copy(pool: FramePool, planes: YuvPlanes): Frame {
+        val stride = Nv12Packer.stride(planes.width)
+        val frame = pool.acquire(Nv12Packer.packedSize(planes.width, planes.height))
+        val data = frame.data
+        nv12.pack(planes, data)
+        data.flip()
+
+        val metadata = captureMetadata
+        val trailer = frame.trailer(
+            FrameFormat.SENSOR_BLOCK_SIZE + if (metadata != null) FrameFormat.CAPTURE_BLOCK_SIZE else 0
+        )
+        FrameFormat.putSensorBlock(trailer, poseSource, planes.timestampNs)
+        metadata?.putBlock(trailer, planes.timestampNs)
+        val trailerLength = trailer.position()
+        trailer.flip()
+
+        val checksum = protocol.checksums
+        val receiverTimeNs = receiverTime(planes.timestampNs)
+        val header = frame.header
+        header.clear()
+        frame.sequence = protocol.nextSequence()
+        val start = FrameFormat.beginHeaderV2(
+            header, FrameFormat.TYPE_RAW, frame.sequence, planes.timestampNs,
+            planes.width, planes.height, planes.format, flagsV2(checksum, receiverTimeNs), 2, trailerLength
+        )
+        val ySize = stride * planes.height
+        FrameFormat.putPlaneV2(header, ySize, stride, 1)
+        FrameFormat.putPlaneV2(header, data.remaining() - ySize, stride, 2)
+        val crc = if (checksum) Crc32.finish(Crc32.update(Crc32.INITIAL, data)) else 0
+        FrameFormat.endHeaderV2(header, start, crc, receiverTimeNs)
+        header.flip()
+
+        frame.addSegment(header)
+        frame.addSegment(data)
+        frame.addSegment(trailer)
+        return frame
+    }
+
+    private fun packV2(pool: FramePool, planes: YuvPlanes, image: AutoCloseable?): Frame {
+        val bY = planes.buffers[0]!!
+        val bU = planes.buffers[1]!!
+        val bV = planes.buffers[2]!!
+        val uvRowStride = planes.rowStrides[1]
+        val semiPlanar = planes.pixelStrides[1] == 2 && planes.pixelStrides[2] == 2
+        val checksum = protocol.checksums
+
+        val frame = pool.acquire()
+        if (image != null) {
+            frame.attach(image)
+        }
+
+        // A semi-planar U plane usually stops one byte short of the interleaved UV data, the
+        // last V byte goes at the start of the trailer.
+        var lastV = false
+        if (semiPlanar) {
+            val chromaHeight = (planes.height + 1) shr 1
+            val chromaWidth = (planes.width + 1) shr 1
+            lastV = bU.remaining() < (chromaHeight - 1) * uvRowStride + chromaWidth * 2
+        }
+        val metadata = captureMetadata
+        val trailer = frame.trailer(
+            (if (lastV) 1 else 0) + FrameFormat.SENSOR_BLOCK_SIZE +
+                    if (metadata != null) FrameFormat.CAPTURE_BLOCK_SIZE else 0
+        )
+        if (lastV) {
+            trailer.put(bV.get(bV.limit() - 1))
+        }
+        FrameFormat.putSensorBlock(trailer, poseSource, planes.timestampNs)
+        metadata?.putBlock(trailer, planes.timestampNs)
+        val trailerLength = trailer.position() - if (lastV) 1 else 0
+        trailer.flip()
+
+        var crc = 0
+        if (checksum) {
+            crc = Crc32.update(Crc32.INITIAL, bY)
+            crc = Crc32.update(crc, bU)
+            crc = if (!semiPlanar) Crc32.update(crc, bV) else if (lastV) Crc32.update(crc, trailer.get(0)) else crc
+            crc = Crc32.finish(crc)
+        }
+
+        val receiverTimeNs = receiverTime(planes.timestampNs)
+        val header = frame.header
+        header.clear()
+        frame.sequence = protocol.nextSequence()
+        val start = FrameFormat.beginHeaderV2(
+            header, FrameFormat.TYPE_RAW, frame.sequence, planes.timestampNs,
+            planes.width, planes.height, planes.format, flagsV2(checksum, receiverTimeNs),
+            if (semiPlanar) 2 else 3, trailerLength
+        )
+        FrameFormat.putPlaneV2(header, bY.remaining(), planes.rowStrides[0], planes.pixelStrides[0])
+        if (semiPlanar) {
+            FrameFormat.putPlaneV2(header, bU.remaining() + if (lastV) 1 else 0, uvRowStride, 2)
+        } else {
+            FrameFormat.putPlaneV2(header, bU.remaining(), uvRowStride, planes.pixelStrides[1])
+            FrameFormat.putPlaneV2(header, bV.remaining(), planes.rowStrides[2], planes.pixelStrides[2])
+        }
+        FrameFormat.endHeaderV2(header, start, crc, receiverTimeNs)
+        header.flip()
+
+        frame.addSegment(header)
+        frame.addSegment(bY)
+        frame.addSegment(bU)
+        if (!semiPlanar) {
+            frame.addSegment(bV)
+        }
+        frame.addSegment(trailer)
+        return frame
+    }
+
+    private fun receiverTime(timestampNs: Long): Long {
+        return if (syncableTimestamps) protocol.receiverTime(timestampNs) else ClockSync.NO_TIME
+    }
+
+    private fun flagsV2(checksum: Boolean, receiverTimeNs: Long): Int {
+        val flags = if (checksum) FrameFormat.FLAG_CHECKSUM else 0
+        return if (receiverTimeNs != ClockSync.NO_TIME) flags or FrameFormat.FLAG_RECEIVER_TIME else flags
+    }
+}
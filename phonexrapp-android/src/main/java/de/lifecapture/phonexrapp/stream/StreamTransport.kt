@@ -0,0 +1,61 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.io.EOFException
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+
+/**
+ * TCP transport writing frames with gathering writes, so the only copy of the image planes is
+ * the one into the kernel's socket buffer.
+ */
+class StreamTransport(private val channel: SocketChannel) : FrameTransport {
+
+    /** Writes [count] segments completely, blocking until the kernel took all of them. */
+    override fun write(segments: Array<ByteBuffer>, count: Int) {
+        var remaining = 0L
+        for (i in 0 until count) {
+            remaining += segments[i].remaining()
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(segments, 0, count)
+        }
+    }
+
+    override fun readFully(buffer: ByteBuffer, timeoutMs: Int) {
+        val socket = channel.socket()
+        socket.soTimeout = timeoutMs
+        val input = socket.getInputStream()
+        while (buffer.hasRemaining()) {
+            val n = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+            if (n < 0) {
+                throw EOFException("Connection closed by receiver")
+            }
+            buffer.position(buffer.position() + n)
+        }
+        buffer.flip()
+    }
+
+    override fun close() {
+        channel.close()
+    }
+
+    companion object {
+        /**
+         * @throws java.net.SocketTimeoutException if the receiver does not accept in [timeoutMs],
+         * 0 waits as long as the system does
+         */
+        fun connect(hostname: String, port: Int, timeoutMs: Int = 0): StreamTransport {
+            val channel = SocketChannel.open()
+            try {
+                channel.socket().connect(InetSocketAddress(hostname, port), timeoutMs)
+                channel.socket().tcpNoDelay = true
+            } catch (e: IOException) {
+                channel.close()
+                throw e
+            }
+            return StreamTransport(channel)
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.lifecapture.phonexrapp.stream
+
+import java.nio.ByteBuffer
+
+/**
+ * The planes of a YUV 4:2:0 image, as delivered by `android.media.Image` or a synthetic source.
+ * One instance is reused for every frame, so handing an image to [RawFramePacker] allocates
+ * nothing.
+ */
+class YuvPlanes {
+    /** Size of the crop rectangle, which is the whole image unless [cropLeft] or [cropTop] is set. */
+    var width = 0
+    var height = 0
+
+    /** Origin of the crop rectangle, `Image.getCropRect`, in the plane buffers. */
+    var cropLeft = 0
+    var cropTop = 0
+
+    var timestampNs = 0L
+
+    /** Pixel format of the source, an `android.graphics.ImageFormat` id. */
+    var format = 0
+
+    val buffers = arrayOfNulls<ByteBuffer>(3)
+    val rowStrides = IntArray(3)
+    val pixelStrides = IntArray(3)
+
+    fun setPlane(index: Int, buffer: ByteBuffer, rowStride: Int, pixelStride: Int) {
+        buffers[index] = buffer
+        rowStrides[index] = rowStride
+        pixelStrides[index] = pixelStride
+    }
+
+    /** Drops the buffer references once the image was packed and resets the crop. */
+    fun clear() {
+        buffers.fill(null)
+        cropLeft = 0
+        cropTop = 0
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * JNI bridge from de.lifecapture.phonexrapp.HeadTracker to the Cardboard SDK
+ * head tracker. Poses are written into a direct buffer owned by the caller, so
+ * sampling a pose per frame allocates nothing on either side.
+ */
+#include <jni.h>
+
+#include "cardboard.h"
+
+#define JNI_METHOD(return_type, method_name) \
+  JNIEXPORT return_type JNICALL              \
+      Java_de_lifecapture_phonexrapp_HeadTracker_##method_name
+
+namespace {
+
+inline CardboardHeadTracker* native(jlong tracker) {
+  return reinterpret_cast<CardboardHeadTracker*>(tracker);
+}
+
+}  // anonymous namespace
+
+extern "C" {
+
+JNI_METHOD(jlong, nativeCreate)
+(JNIEnv* env, jclass /*clazz*/, jobject context) {
+  JavaVM* vm;
+  env->GetJavaVM(&vm);
+  Cardboard_initializeAndroid(vm, context);
+  return reinterpret_cast<jlong>(CardboardHeadTracker_create());
+}
+
+JNI_METHOD(void, nativeDestroy)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong tracker) {
+  CardboardHeadTracker_destroy(native(tracker));
+}
+
+JNI_METHOD(void, nativeResume)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong tracker) {
+  CardboardHeadTracker_resume(native(tracker));
+}
+
+JNI_METHOD(void, nativePause)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong tracker) {
+  CardboardHeadTracker_pause(native(tracker));
+}
+
+JNI_METHOD(void, nativeRecenter)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong tracker) {
+  CardboardHeadTracker_recenter(native(tracker));
+}
+
+// Writes the orientation quaternion (x, y, z, w) followed by the position
+// (x, y, z) as native order floats to |pose|, which holds at least 7 floats.
+JNI_METHOD(void, nativeGetPose)
+(JNIEnv* env, jclass /*clazz*/, jlong tracker, jlong timestamp_ns,
+ jint orientation, jobject pose) {
+  float* out = static_cast<float*>(env->GetDirectBufferAddress(pose));
+  if (out == nullptr) {
+    return;
+  }
+  CardboardHeadTracker_getPose(
+      native(tracker), timestamp_ns,
+      static_cast<CardboardViewportOrientation>(orientation), out + 4, out);
+}
+
+}  // extern "C"
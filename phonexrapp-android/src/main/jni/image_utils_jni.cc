@@ -0,0 +1,250 @@
+/*
+ * Native backend of de.lifecapture.phonexrapp.ImageUtils. Converts YUV 4:2:0
+ * images with any row and pixel strides to ARGB, 16 pixels per step with NEON
+ * for the planar (I420) and semi-planar (NV12, NV21) layouts. The results are
+ * bit-identical to the Kotlin implementation, which stays the fallback.
+ */
+#include <jni.h>
+
+#include <cstdint>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define PHONEXR_NEON 1
+#endif
+
+#define JNI_METHOD(return_type, method_name) \
+  JNIEXPORT return_type JNICALL              \
+      Java_de_lifecapture_phonexrapp_ImageUtils_##method_name
+
+namespace {
+
+// 2 ^ 18 - 1, the channel values are clamped to it before they are scaled to
+// eight bits. Same fixed point math as ImageUtils.convertYUV2RGB.
+constexpr int32_t kMaxChannelValue = 262143;
+
+struct YuvImage {
+  const uint8_t* y;
+  const uint8_t* u;
+  const uint8_t* v;
+  int width;
+  int height;
+  int y_row_stride;
+  int uv_row_stride;
+  int uv_pixel_stride;
+};
+
+inline int32_t Clamp(int32_t value) {
+  return value > kMaxChannelValue ? kMaxChannelValue : value < 0 ? 0 : value;
+}
+
+inline uint32_t ConvertPixel(int y, int u, int v) {
+  y = y < 16 ? 0 : y - 16;
+  u -= 128;
+  v -= 128;
+  const int32_t y1192 = 1192 * y;
+  const int32_t r = Clamp(y1192 + 1634 * v);
+  const int32_t g = Clamp(y1192 - 833 * v - 400 * u);
+  const int32_t b = Clamp(y1192 + 2066 * u);
+  return 0xff000000u | static_cast<uint32_t>(r >> 10) << 16 |
+         static_cast<uint32_t>(g >> 10) << 8 | static_cast<uint32_t>(b >> 10);
+}
+
+// Converts the pixels [from, to) of one row.
+void ConvertRowScalar(const uint8_t* y_row, const uint8_t* u_row,
+                      const uint8_t* v_row, int pixel_stride, int from, int to,
+                      uint32_t* out) {
+  for (int x = from; x < to; ++x) {
+    const int uv = (x >> 1) * pixel_stride;
+    out[x] = ConvertPixel(y_row[x], u_row[uv], v_row[uv]);
+  }
+}
+
+#ifdef PHONEXR_NEON
+
+// Converts 8 pixels, |u| and |v| already duplicated per pixel and centered.
+inline void ConvertEight(uint8x8_t y, int16x8_t u, int16x8_t v,
+                         uint32_t* out) {
+  const int16x8_t luma = vreinterpretq_s16_u16(vmovl_u8(vqsub_u8(y, vdup_n_u8(16))));
+  const int32x4_t zero = vdupq_n_s32(0);
+  const int32x4_t max = vdupq_n_s32(kMaxChannelValue);
+  const uint32x4_t alpha = vdupq_n_u32(0xff000000u);
+  for (int half = 0; half < 2; ++half) {
+    const int16x4_t l = half == 0 ? vget_low_s16(luma) : vget_high_s16(luma);
+    const int16x4_t cu = half == 0 ? vget_low_s16(u) : vget_high_s16(u);
+    const int16x4_t cv = half == 0 ? vget_low_s16(v) : vget_high_s16(v);
+    const int32x4_t y1192 = vmull_n_s16(l, 1192);
+    int32x4_t r = vmlal_n_s16(y1192, cv, 1634);
+    int32x4_t g = vmlal_n_s16(vmlal_n_s16(y1192, cv, -833), cu, -400);
+    int32x4_t b = vmlal_n_s16(y1192, cu, 2066);
+    r = vshrq_n_s32(vminq_s32(vmaxq_s32(r, zero), max), 10);
+    g = vshrq_n_s32(vminq_s32(vmaxq_s32(g, zero), max), 10);
+    b = vshrq_n_s32(vminq_s32(vmaxq_s32(b, zero), max), 10);
+    uint32x4_t argb = vorrq_u32(alpha, vshlq_n_u32(vreinterpretq_u32_s32(r), 16));
+    argb = vorrq_u32(argb, vshlq_n_u32(vreinterpretq_u32_s32(g), 8));
+    argb = vorrq_u32(argb, vreinterpretq_u32_s32(b));
+    vst1q_u32(out + half * 4, argb);
+  }
+}
+
+// Converts 16 pixels from 8 chroma samples each of |u| and |v|.
+inline void ConvertSixteen(const uint8_t* y, uint8x8_t u, uint8x8_t v,
+                           uint32_t* out) {
+  const uint8x16_t luma = vld1q_u8(y);
+  const int16x8_t bias = vdupq_n_s16(128);
+  const uint8x8x2_t uu = vzip_u8(u, u);
+  const uint8x8x2_t vv = vzip_u8(v, v);
+  for (int half = 0; half < 2; ++half) {
+    const int16x8_t cu =
+        vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(uu.val[half])), bias);
+    const int16x8_t cv =
+        vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vv.val[half])), bias);
+    ConvertEight(half == 0 ? vget_low_u8(luma) : vget_high_u8(luma), cu, cv,
+                 out + half * 8);
+  }
+}
+
+// Converts the leading pixels of a row a vector step at a time and returns
+// where the scalar tail starts. Steps stop short of the last pixel, so no load
+// reads past the end of a plane, even one cut after its last sample.
+int ConvertRowNeon(const uint8_t* y_row, const uint8_t* u_row,
+                   const uint8_t* v_row, int pixel_stride, int width,
+                   uint32_t* out) {
+  int x = 0;
+  if (pixel_stride == 2) {
+    for (; x + 16 < width; x += 16) {
+      ConvertSixteen(y_row + x, vld2_u8(u_row + x).val[0],
+                     vld2_u8(v_row + x).val[0], out + x);
+    }
+  } else if (pixel_stride == 1) {
+    for (; x + 16 < width; x += 16) {
+      ConvertSixteen(y_row + x, vld1_u8(u_row + x / 2), vld1_u8(v_row + x / 2),
+                     out + x);
+    }
+  }
+  return x;
+}
+
+#endif  // PHONEXR_NEON
+
+void Convert(const YuvImage& image, uint32_t* out) {
+  for (int row = 0; row < image.height; ++row) {
+    const uint8_t* y_row = image.y + row * image.y_row_stride;
+    const uint8_t* u_row = image.u + (row >> 1) * image.uv_row_stride;
+    const uint8_t* v_row = image.v + (row >> 1) * image.uv_row_stride;
+    uint32_t* out_row = out + row * image.width;
+    int x = 0;
+#ifdef PHONEXR_NEON
+    x = ConvertRowNeon(y_row, u_row, v_row, image.uv_pixel_stride, image.width,
+                       out_row);
+#endif
+    ConvertRowScalar(y_row, u_row, v_row, image.uv_pixel_stride, x,
+                     image.width, out_row);
+  }
+}
+
+// Bytes a plane needs so that |rows| rows of |samples| samples can be read.
+int64_t PlaneSize(int rows, int samples, int row_stride, int pixel_stride) {
+  return static_cast<int64_t>(rows - 1) * row_stride +
+         static_cast<int64_t>(samples - 1) * pixel_stride + 1;
+}
+
+bool IsValid(const YuvImage& image, int64_t y_size, int64_t u_size,
+             int64_t v_size, int64_t out_size) {
+  if (image.y == nullptr || image.u == nullptr || image.v == nullptr ||
+      image.width <= 0 || image.height <= 0 || image.uv_pixel_stride <= 0 ||
+      image.y_row_stride < image.width || image.uv_row_stride <= 0) {
+    return false;
+  }
+  const int chroma_rows = (image.height + 1) / 2;
+  const int chroma_samples = (image.width + 1) / 2;
+  const int64_t uv_size = PlaneSize(chroma_rows, chroma_samples,
+                                    image.uv_row_stride, image.uv_pixel_stride);
+  return y_size >= PlaneSize(image.height, image.width, image.y_row_stride, 1) &&
+         u_size >= uv_size && v_size >= uv_size &&
+         out_size >= static_cast<int64_t>(image.width) * image.height;
+}
+
+}  // anonymous namespace
+
+extern "C" {
+
+// Converts the planes in the direct buffers |y|, |u| and |v|, as handed out by
+// Image.Plane, to |out|. Returns false without touching |out| if a buffer is
+// not direct or too small, the caller then falls back to Kotlin.
+JNI_METHOD(jboolean, nativeConvertBuffers)
+(JNIEnv* env, jclass /*clazz*/, jobject y, jobject u, jobject v, jint width,
+ jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+ jintArray out) {
+  YuvImage image = {
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(y)),
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(u)),
+      static_cast<const uint8_t*>(env->GetDirectBufferAddress(v)),
+      width,
+      height,
+      y_row_stride,
+      uv_row_stride,
+      uv_pixel_stride};
+  if (!IsValid(image, env->GetDirectBufferCapacity(y),
+               env->GetDirectBufferCapacity(u), env->GetDirectBufferCapacity(v),
+               env->GetArrayLength(out))) {
+    return JNI_FALSE;
+  }
+  void* pixels = env->GetPrimitiveArrayCritical(out, nullptr);
+  if (pixels == nullptr) {
+    return JNI_FALSE;
+  }
+  Convert(image, static_cast<uint32_t*>(pixels));
+  env->ReleasePrimitiveArrayCritical(out, pixels, 0);
+  return JNI_TRUE;
+}
+
+// Same for planes in byte arrays, starting at the given offsets. The arrays may
+// be the same, as for NV21 preview frames.
+JNI_METHOD(jboolean, nativeConvertArrays)
+(JNIEnv* env, jclass /*clazz*/, jbyteArray y, jint y_offset, jbyteArray u,
+ jint u_offset, jbyteArray v, jint v_offset, jint width, jint height,
+ jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride, jintArray out) {
+  const jsize y_length = env->GetArrayLength(y);
+  const jsize u_length = env->GetArrayLength(u);
+  const jsize v_length = env->GetArrayLength(v);
+  if (y_offset < 0 || u_offset < 0 || v_offset < 0 || y_offset > y_length ||
+      u_offset > u_length || v_offset > v_length) {
+    return JNI_FALSE;
+  }
+  // Only the sizes are checked here, the addresses are filled in below.
+  const uint8_t kNotNull = 0;
+  YuvImage image = {&kNotNull,    &kNotNull,     &kNotNull,      width, height,
+                    y_row_stride, uv_row_stride, uv_pixel_stride};
+  if (!IsValid(image, y_length - y_offset, u_length - u_offset,
+               v_length - v_offset, env->GetArrayLength(out))) {
+    return JNI_FALSE;
+  }
+  auto* y_data = static_cast<uint8_t*>(env->GetPrimitiveArrayCritical(y, nullptr));
+  auto* u_data = static_cast<uint8_t*>(env->GetPrimitiveArrayCritical(u, nullptr));
+  auto* v_data = static_cast<uint8_t*>(env->GetPrimitiveArrayCritical(v, nullptr));
+  void* pixels = env->GetPrimitiveArrayCritical(out, nullptr);
+  const bool ok = y_data != nullptr && u_data != nullptr && v_data != nullptr &&
+                  pixels != nullptr;
+  if (ok) {
+    image.y = y_data + y_offset;
+    image.u = u_data + u_offset;
+    image.v = v_data + v_offset;
+    Convert(image, static_cast<uint32_t*>(pixels));
+  }
+  if (pixels != nullptr) {
+    env->ReleasePrimitiveArrayCritical(out, pixels, ok ? 0 : JNI_ABORT);
+  }
+  if (v_data != nullptr) {
+    env->ReleasePrimitiveArrayCritical(v, v_data, JNI_ABORT);
+  }
+  if (u_data != nullptr) {
+    env->ReleasePrimitiveArrayCritical(u, u_data, JNI_ABORT);
+  }
+  if (y_data != nullptr) {
+    env->ReleasePrimitiveArrayCritical(y, y_data, JNI_ABORT);
+  }
+  return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+}  // extern "C"
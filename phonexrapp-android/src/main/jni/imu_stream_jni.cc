@@ -0,0 +1,223 @@
+/*
+ * JNI side of de.lifecapture.phonexrapp.ImuStream. Raw IMU samples arrive on
+ * the SDK sensor threads and are batched into fixed-size packets here, so the
+ * Java sender thread wakes up once per packet instead of once per sample.
+ */
+#include <jni.h>
+#include <time.h>
+
+#include <chrono>              // NOLINT
+#include <condition_variable>  // NOLINT
+#include <cstdint>
+#include <cstring>
+#include <mutex>  // NOLINT
+#include <vector>
+
+#include "cardboard.h"
+
+#define JNI_METHOD(return_type, method_name) \
+  JNIEXPORT return_type JNICALL              \
+      Java_de_lifecapture_phonexrapp_ImuStream_##method_name
+
+namespace {
+
+// Packet layout, big endian like the frame stream. See ImuStream.kt.
+constexpr int kPacketHeaderSize = 12;
+constexpr int kSampleSize = 24;
+// Packets waiting for the sender before the oldest one is dropped.
+constexpr int kPacketSlots = 8;
+
+uint8_t* PutU16(uint8_t* out, uint16_t value) {
+  out[0] = static_cast<uint8_t>(value >> 8);
+  out[1] = static_cast<uint8_t>(value);
+  return out + 2;
+}
+
+uint8_t* PutU32(uint8_t* out, uint32_t value) {
+  out = PutU16(out, static_cast<uint16_t>(value >> 16));
+  return PutU16(out, static_cast<uint16_t>(value));
+}
+
+uint8_t* PutI64(uint8_t* out, int64_t value) {
+  const uint64_t bits = static_cast<uint64_t>(value);
+  out = PutU32(out, static_cast<uint32_t>(bits >> 32));
+  return PutU32(out, static_cast<uint32_t>(bits));
+}
+
+uint8_t* PutF32(uint8_t* out, float value) {
+  uint32_t bits;
+  std::memcpy(&bits, &value, sizeof(bits));
+  return PutU32(out, bits);
+}
+
+// Sensor timestamps are in the boot time base.
+int64_t NowNs() {
+  timespec now;
+  clock_gettime(CLOCK_BOOTTIME, &now);
+  return static_cast<int64_t>(now.tv_sec) * 1000000000LL + now.tv_nsec;
+}
+
+class ImuBatcher {
+ public:
+  ImuBatcher(int samples_per_packet, int64_t max_age_ns)
+      : samples_per_packet_(samples_per_packet),
+        max_age_ns_(max_age_ns),
+        packets_(kPacketSlots) {
+    for (Packet& packet : packets_) {
+      packet.samples.resize(samples_per_packet);
+    }
+  }
+
+  int PacketSize() const {
+    return kPacketHeaderSize + samples_per_packet_ * kSampleSize;
+  }
+
+  // Called on the sensor threads with the samples of one poll.
+  void Add(const CardboardImuSample* samples, int32_t count) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    const int ready_before = ready_;
+    for (int32_t i = 0; i < count; ++i) {
+      Packet* packet = &packets_[FillingIndex()];
+      if (packet->count > 0 &&
+          samples[i].timestamp_ns - packet->first_ns >= max_age_ns_) {
+        Seal();
+        packet = &packets_[FillingIndex()];
+      }
+      if (packet->count == 0) {
+        packet->first_ns = samples[i].timestamp_ns;
+      }
+      packet->samples[packet->count++] = samples[i];
+      if (packet->count == samples_per_packet_) {
+        Seal();
+      }
+    }
+    if (ready_ != ready_before) {
+      ready_cv_.notify_one();
+    }
+  }
+
+  // Called on the sender thread. Waits up to the max age for a packet, writes
+  // it to |out| and returns its size, or 0 if there was none.
+  int Take(uint8_t* out) {
+    std::unique_lock<std::mutex> lock(mutex_);
+    if (ready_ == 0) {
+      ready_cv_.wait_for(lock, std::chrono::nanoseconds(max_age_ns_));
+    }
+    if (ready_ == 0) {
+      // Sensors slowed down, send what is there once it reached its max age.
+      const Packet& filling = packets_[FillingIndex()];
+      if (filling.count == 0 || NowNs() - filling.first_ns < max_age_ns_) {
+        return 0;
+      }
+      Seal();
+    }
+    const Packet& packet = packets_[head_];
+    uint8_t* pos = out;
+    *pos++ = 16;
+    *pos++ = 3;
+    pos = PutU16(pos, static_cast<uint16_t>(packet.count));
+    pos = PutU32(pos, packet.sequence);
+    pos = PutU32(pos, dropped_);
+    for (int i = 0; i < packet.count; ++i) {
+      const CardboardImuSample& sample = packet.samples[i];
+      pos = PutI64(pos, sample.timestamp_ns);
+      pos = PutF32(pos, sample.x);
+      pos = PutF32(pos, sample.y);
+      pos = PutF32(pos, sample.z);
+      *pos++ = static_cast<uint8_t>(sample.type);
+      *pos++ = 0;
+      *pos++ = 0;
+      *pos++ = 0;
+    }
+    std::memset(pos, 0, (samples_per_packet_ - packet.count) * kSampleSize);
+    head_ = (head_ + 1) % kPacketSlots;
+    --ready_;
+    return PacketSize();
+  }
+
+  uint32_t Dropped() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return dropped_;
+  }
+
+ private:
+  struct Packet {
+    std::vector<CardboardImuSample> samples;
+    int count = 0;
+    int64_t first_ns = 0;
+    uint32_t sequence = 0;
+  };
+
+  int FillingIndex() const { return (head_ + ready_) % kPacketSlots; }
+
+  // Hands the filling packet to the sender. When the sender fell behind, the
+  // oldest waiting packet makes room for a new filling one.
+  void Seal() {
+    packets_[FillingIndex()].sequence = sequence_++;
+    if (++ready_ == kPacketSlots) {
+      head_ = (head_ + 1) % kPacketSlots;
+      --ready_;
+      ++dropped_;
+    }
+    packets_[FillingIndex()].count = 0;
+  }
+
+  const int samples_per_packet_;
+  const int64_t max_age_ns_;
+  std::mutex mutex_;
+  std::condition_variable ready_cv_;
+  std::vector<Packet> packets_;
+  // Oldest packet waiting for the sender and number of waiting packets. The
+  // packet being filled follows them.
+  int head_ = 0;
+  int ready_ = 0;
+  uint32_t sequence_ = 0;
+  uint32_t dropped_ = 0;
+};
+
+void OnImuSamples(void* user_data, const CardboardImuSample* samples,
+                  int32_t count) {
+  static_cast<ImuBatcher*>(user_data)->Add(samples, count);
+}
+
+}  // anonymous namespace
+
+extern "C" {
+
+JNI_METHOD(jlong, nativeCreate)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong tracker, jint samples_per_packet,
+ jlong max_age_ns) {
+  ImuBatcher* batcher = new ImuBatcher(samples_per_packet, max_age_ns);
+  CardboardHeadTracker_setImuSampleListener(
+      reinterpret_cast<CardboardHeadTracker*>(tracker), OnImuSamples, batcher);
+  return reinterpret_cast<jlong>(batcher);
+}
+
+JNI_METHOD(void, nativeDestroy)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong tracker, jlong batcher) {
+  // No sensor thread uses the batcher once the listener is removed.
+  CardboardHeadTracker_setImuSampleListener(
+      reinterpret_cast<CardboardHeadTracker*>(tracker), nullptr, nullptr);
+  delete reinterpret_cast<ImuBatcher*>(batcher);
+}
+
+JNI_METHOD(jint, nativePacketSize)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong batcher) {
+  return reinterpret_cast<ImuBatcher*>(batcher)->PacketSize();
+}
+
+JNI_METHOD(jint, nativeTake)
+(JNIEnv* env, jclass /*clazz*/, jlong batcher, jobject packet) {
+  uint8_t* out = static_cast<uint8_t*>(env->GetDirectBufferAddress(packet));
+  if (out == nullptr) {
+    return 0;
+  }
+  return reinterpret_cast<ImuBatcher*>(batcher)->Take(out);
+}
+
+JNI_METHOD(jlong, nativeDropped)
+(JNIEnv* /*env*/, jclass /*clazz*/, jlong batcher) {
+  return reinterpret_cast<ImuBatcher*>(batcher)->Dropped();
+}
+
+}  // extern "C"
@@ -0,0 +1,66 @@
+package de.lifecapture.phonexrapp
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.File
+
+class CameraCapabilityCacheTest {
+    private val capabilities = CameraCapabilities(
+        sensorOrientation = 90,
+        realtimeTimestamps = true,
+        hardwareLevel = 1,
+        capabilities = listOf(0, 9),
+        outputSizes = listOf(CameraCapabilities.StreamSize(1920, 1080), CameraCapabilities.StreamSize(640, 480)),
+        fpsRanges = listOf(CameraCapabilities.FpsRange(15, 30), CameraCapabilities.FpsRange(30, 30)),
+        highSpeedConfigs = listOf(
+            CameraCapabilities.HighSpeedConfig(
+                CameraCapabilities.StreamSize(1280, 720), CameraCapabilities.FpsRange(120, 120)
+            )
+        ),
+        outputConfigs = listOf(
+            CameraCapabilities.OutputConfig(0x23, CameraCapabilities.StreamSize(1920, 1080), 33_333_333L, 0L)
+        ),
+        lensIntrinsics = listOf(3000f, 3000f, 2016f, 1512f, 0f),
+        lensDistortion = listOf(0.1f, -0.05f, 0f, 0.001f, 0f),
+        preCorrectionArray = CameraCapabilities.StreamSize(4032, 3024)
+    )
+
+    private fun tempFile(): File {
+        val file = File.createTempFile("capabilities", null)
+        file.delete()
+        file.deleteOnExit()
+        return file
+    }
+
+    @Test
+    fun storedCapabilities_surviveRestart() {
+        val file = tempFile()
+        CameraCapabilityCache(file, "build/1").put(CameraCapabilityCache.API_CAMERA2, "0", capabilities)
+
+        val cache = CameraCapabilityCache(file, "build/1")
+        assertEquals(capabilities, cache.get(CameraCapabilityCache.API_CAMERA2, "0"))
+        assertNull(cache.get(CameraCapabilityCache.API_CAMERA1, "0"))
+        assertNull(cache.get(CameraCapabilityCache.API_CAMERA2, "1"))
+    }
+
+    @Test
+    fun newBuild_probesAgain() {
+        val file = tempFile()
+        CameraCapabilityCache(file, "build/1").put(CameraCapabilityCache.API_CAMERA2, "0", capabilities)
+
+        val cache = CameraCapabilityCache(file, "build/2")
+        assertNull(cache.get(CameraCapabilityCache.API_CAMERA2, "0"))
+        cache.put(CameraCapabilityCache.API_CAMERA2, "1", capabilities)
+        assertNull(CameraCapabilityCache(file, "build/2").get(CameraCapabilityCache.API_CAMERA2, "0"))
+    }
+
+    @Test
+    fun corruptFile_probesAgain() {
+        val file = tempFile()
+        CameraCapabilityCache(file, "build/1").put(CameraCapabilityCache.API_CAMERA2, "0", capabilities)
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() / 2))
+
+        assertNull(CameraCapabilityCache(file, "build/1").get(CameraCapabilityCache.API_CAMERA2, "0"))
+    }
+}
@@ -0,0 +1,96 @@
+package de.lifecapture.phonexrapp
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.lang.management.ManagementFactory
+import java.util.Random
+
+/**
+ * Checks [ParallelYuvConverter] against the Kotlin reference. How it scales is measured on the
+ * phones, see `ParallelYuvConverterBenchmark`.
+ */
+class ParallelYuvConverterTest {
+    private class Planes(val width: Int, val height: Int, val uvPixelStride: Int) {
+        val yRowStride = width + 16
+        val uvRowStride = (width + 1) / 2 * uvPixelStride + 8
+        val y = ByteArray(yRowStride * height)
+        val u = ByteArray(uvRowStride * ((height + 1) / 2))
+        val v = ByteArray(u.size)
+
+        init {
+            val random = Random(width.toLong() * height)
+            random.nextBytes(y)
+            random.nextBytes(u)
+            random.nextBytes(v)
+        }
+
+        fun reference(): IntArray {
+            val out = IntArray(width * height)
+            ImageUtils.convertYUV420ToARGB8888Scalar(y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, out)
+            return out
+        }
+
+        fun convert(converter: ParallelYuvConverter, out: IntArray) {
+            converter.convert(y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, out)
+        }
+    }
+
+    @Test
+    fun oddSizes_matchReference() {
+        ParallelYuvConverter(3).use { converter ->
+            for (planes in listOf(Planes(37, 11, 1), Planes(64, 1, 2), Planes(101, 77, 2), Planes(640, 480, 1))) {
+                val out = IntArray(planes.width * planes.height)
+                planes.convert(converter, out)
+                assertArrayEquals(planes.reference(), out)
+            }
+        }
+    }
+
+    @Test
+    fun failingStripe_reachesCaller() {
+        ParallelYuvConverter(2).use { converter ->
+            val planes = Planes(64, 48, 2)
+            try {
+                planes.convert(converter, IntArray(10))
+                fail("Converted into a short output")
+            } catch (e: IndexOutOfBoundsException) {
+                // The caller or a worker ran into the end of the output.
+            }
+            val out = IntArray(64 * 48)
+            planes.convert(converter, out)
+            assertArrayEquals(planes.reference(), out)
+        }
+    }
+
+    @Test
+    fun conversion_allocatesNothing() {
+        val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean ?: return
+        ParallelYuvConverter(4).use { converter ->
+            val planes = Planes(320, 240, 2)
+            val out = IntArray(320 * 240)
+            // Until everything is compiled, the JVM itself allocates now and then.
+            repeat(500) { planes.convert(converter, out) }
+            val id = Thread.currentThread().id
+            val allocated = (1..5).minOf {
+                val before = threads.getThreadAllocatedBytes(id)
+                repeat(100) { planes.convert(converter, out) }
+                threads.getThreadAllocatedBytes(id) - before
+            }
+            assertEquals(0L, allocated)
+        }
+    }
+
+    @Test
+    fun fullHd_matchesReferenceWithEveryThreadCount() {
+        val planes = Planes(1920, 1080, 2)
+        val expected = planes.reference()
+        for (threads in 1..ParallelYuvConverter.MAX_THREADS) {
+            ParallelYuvConverter(threads).use { converter ->
+                val out = IntArray(1920 * 1080)
+                planes.convert(converter, out)
+                assertArrayEquals(expected, out)
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package de.lifecapture.phonexrapp
+
+import de.lifecapture.phonexrapp.CameraCapabilities.FpsRange
+import de.lifecapture.phonexrapp.CameraCapabilities.OutputConfig
+import de.lifecapture.phonexrapp.CameraCapabilities.StreamSize
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class StreamConfigSelectorTest {
+    private val sizes = listOf(
+        StreamSize(4032, 3024), StreamSize(2048, 1536), StreamSize(1920, 1080),
+        StreamSize(1280, 720), StreamSize(640, 480)
+    )
+
+    private fun capabilities(
+        hardwareLevel: Int = StreamConfigSelector.HARDWARE_LEVEL_FULL,
+        yuvStallNs: (StreamSize) -> Long = { 0L }
+    ): CameraCapabilities {
+        val configs = ArrayList<OutputConfig>()
+        for (size in sizes) {
+            // The full sensor size only runs at 20 fps.
+            val frameDurationNs = if (size.width == 4032) 50_000_000L else 33_333_333L
+            configs.add(OutputConfig(StreamConfigSelector.FORMAT_PRIVATE, size, frameDurationNs, 0L))
+            configs.add(OutputConfig(StreamConfigSelector.FORMAT_YUV_420_888, size, frameDurationNs, yuvStallNs(size)))
+        }
+        return CameraCapabilities(
+            sensorOrientation = 90,
+            hardwareLevel = hardwareLevel,
+            outputSizes = sizes,
+            fpsRanges = listOf(FpsRange(15, 30), FpsRange(30, 30), FpsRange(7, 60)),
+            outputConfigs = configs
+        )
+    }
+
+    private fun request(linkBitRate: Long, encoded: Boolean = false) = StreamConfigSelector.Request(
+        desiredSize = StreamSize(2048, 1536),
+        targetFps = 30,
+        minFps = 24,
+        linkBitRate = linkBitRate,
+        encoded = encoded
+    )
+
+    @Test
+    fun fastLink_getsLargestGuaranteedSizeAtFixedRange() {
+        // 2048x1536 is nearer the desired size, but the preview of that size is not guaranteed.
+        val config = StreamConfigSelector(capabilities()).select(request(2_000_000_000L))!!
+        assertEquals(StreamSize(1920, 1080), config.size)
+        assertEquals(StreamConfigSelector.FORMAT_YUV_420_888, config.format)
+        assertEquals(FpsRange(30, 30), config.fpsRange)
+        assertEquals(30L, config.fps.toLong())
+        assertTrue(config.withinBudget)
+    }
+
+    @Test
+    fun slowerLink_stepsDownToWhatFits() {
+        val config = StreamConfigSelector(capabilities()).select(request(500_000_000L))!!
+        assertEquals(StreamSize(1280, 720), config.size)
+        assertTrue(config.bitRate <= 500_000_000L)
+    }
+
+    @Test
+    fun everyLevel_staysWithinPreviewSize() {
+        for (level in intArrayOf(
+            StreamConfigSelector.HARDWARE_LEVEL_LEGACY, StreamConfigSelector.HARDWARE_LEVEL_LIMITED,
+            StreamConfigSelector.HARDWARE_LEVEL_FULL, StreamConfigSelector.HARDWARE_LEVEL_3
+        )) {
+            val selector = StreamConfigSelector(capabilities(level))
+            assertEquals(StreamSize(1920, 1080), selector.select(request(Long.MAX_VALUE))!!.size)
+            assertFalse(selector.isGuaranteed(StreamSize(2048, 1536)))
+        }
+    }
+
+    @Test
+    fun frameRateFloor_skipsSlowSizes() {
+        val selector = StreamConfigSelector(capabilities())
+        assertEquals(20L, selector.maxFps(StreamSize(4032, 3024), false).toLong())
+        val request = request(Long.MAX_VALUE).copy(desiredSize = StreamSize(4032, 3024))
+        assertNull(selector.evaluate(StreamSize(4032, 3024), StreamConfigSelector.FORMAT_YUV_420_888, request))
+        assertNotNull(selector.evaluate(StreamSize(1920, 1080), StreamConfigSelector.FORMAT_YUV_420_888, request))
+    }
+
+    @Test
+    fun yuvStall_onlyLimitsRawStreams() {
+        val selector = StreamConfigSelector(capabilities(yuvStallNs = {
+            if (it.width == 1920) 20_000_000L else 0L
+        }))
+        assertEquals(StreamSize(1280, 720), selector.select(request(Long.MAX_VALUE))!!.size)
+        val encoded = selector.select(request(8_000_000L, encoded = true))!!
+        assertEquals(StreamSize(1920, 1080), encoded.size)
+        assertEquals(StreamConfigSelector.FORMAT_PRIVATE, encoded.format)
+    }
+
+    @Test
+    fun nothingFits_returnsCheapestOverBudget() {
+        val config = StreamConfigSelector(capabilities()).select(request(1_000_000L))!!
+        assertEquals(StreamSize(640, 480), config.size)
+        assertFalse(config.withinBudget)
+    }
+
+    @Test
+    fun fallbackSize_isSmallestGuaranteedUseful() {
+        val selector = StreamConfigSelector(
+            CameraCapabilities(
+                sensorOrientation = 90,
+                outputSizes = listOf(StreamSize(4032, 3024), StreamSize(176, 144), StreamSize(1280, 720), StreamSize(640, 480))
+            )
+        )
+        assertEquals(StreamSize(640, 480), selector.fallbackSize(false))
+        assertNull(StreamConfigSelector(CameraCapabilities(sensorOrientation = 90)).fallbackSize(false))
+    }
+
+    @Test
+    fun camera1WithoutDurations_usesFpsRanges() {
+        val selector = StreamConfigSelector(
+            CameraCapabilities(
+                sensorOrientation = 90,
+                outputSizes = listOf(StreamSize(1280, 960), StreamSize(640, 480)),
+                fpsRanges = listOf(FpsRange(10, 20))
+            )
+        )
+        assertNull(selector.select(request(Long.MAX_VALUE)))
+        val config = selector.select(request(Long.MAX_VALUE).copy(minFps = 15))!!
+        assertEquals(StreamSize(1280, 960), config.size)
+        assertEquals(20L, config.fps.toLong())
+    }
+}
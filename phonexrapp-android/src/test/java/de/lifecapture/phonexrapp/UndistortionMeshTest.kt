@@ -0,0 +1,52 @@
+package de.lifecapture.phonexrapp
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class UndistortionMeshTest {
+    private fun capabilities(distortion: List<Float>) = CameraCapabilities(
+        sensorOrientation = 90,
+        outputSizes = listOf(CameraCapabilities.StreamSize(1920, 1080)),
+        fpsRanges = emptyList(),
+        lensIntrinsics = listOf(2000f, 2000f, 2000f, 1500f, 0f),
+        lensDistortion = distortion,
+        preCorrectionArray = CameraCapabilities.StreamSize(4000, 3000)
+    )
+
+    private fun texCoord(mesh: UndistortionMesh, column: Int, row: Int): Pair<Float, Float> {
+        val base = (row * (mesh.columns + 1) + column) * UndistortionMesh.VERTEX_SIZE
+        return Pair(mesh.vertices[base + 2], mesh.vertices[base + 3])
+    }
+
+    @Test
+    fun noDistortion_mapsPixelsOntoThemselves() {
+        val mesh = UndistortionMesh.build(capabilities(listOf(0f, 0f, 0f, 0f, 0f)), 1600, 1200, 4, 3)!!
+        for (row in 0..3) {
+            for (column in 0..4) {
+                val (u, v) = texCoord(mesh, column, row)
+                assertEquals(column / 4.0, u.toDouble(), 1e-5)
+                assertEquals(row / 3.0, v.toDouble(), 1e-5)
+            }
+        }
+        assertEquals(4 * 3 * 6L, mesh.indices.size.toLong())
+    }
+
+    @Test
+    fun barrelDistortion_pullsCornersInwards() {
+        val mesh = UndistortionMesh.build(capabilities(listOf(-0.2f, 0f, 0f, 0f, 0f)), 1920, 1080, 4, 4)!!
+        val (u, v) = texCoord(mesh, 0, 0)
+        assertTrue(u > 0f)
+        assertTrue(v > 0f)
+        // The center stays where it is.
+        val (cu, cv) = texCoord(mesh, 2, 2)
+        assertEquals(0.5, cu.toDouble(), 1e-5)
+        assertEquals(0.5, cv.toDouble(), 1e-5)
+    }
+
+    @Test
+    fun missingCalibration_buildsNoMesh() {
+        assertNull(UndistortionMesh.build(capabilities(emptyList()), 1920, 1080))
+        assertNull(UndistortionMesh.forCamera("0", capabilities(emptyList()), 1920, 1080))
+    }
+}
@@ -0,0 +1,69 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.nio.ByteBuffer
+
+class CaptureMetadataRingTest {
+    private fun publish(ring: CaptureMetadataRing, timestampNs: Long) {
+        // Every field is derived from the timestamp, so torn reads show.
+        ring.publish(timestampNs, timestampNs + 1, timestampNs + 2, timestampNs + 3, timestampNs.toFloat(), timestampNs.toInt())
+    }
+
+    @Test
+    fun publishedResult_isFoundByTimestamp() {
+        val ring = CaptureMetadataRing(4)
+        publish(ring, 1000)
+        publish(ring, 2000)
+        val buffer = ByteBuffer.allocate(FrameFormat.CAPTURE_BLOCK_SIZE)
+
+        assertTrue(ring.putBlock(buffer, 1000))
+        assertEquals(FrameFormat.CAPTURE_BLOCK_SIZE.toLong(), buffer.position().toLong())
+        assertEquals(FrameFormat.BLOCK_CAPTURE.toLong(), buffer.get(0).toLong())
+        assertEquals(1000L, buffer.getLong(4))
+        assertEquals(1001L, buffer.getLong(12))
+        assertEquals(1002L, buffer.getLong(20))
+        assertEquals(1003L, buffer.getLong(28))
+        assertEquals(1000L, buffer.getInt(40).toLong())
+    }
+
+    @Test
+    fun unknownOrOverwrittenResult_isMissed() {
+        val ring = CaptureMetadataRing(2)
+        publish(ring, 1000)
+        publish(ring, 2000)
+        publish(ring, 3000)
+        val buffer = ByteBuffer.allocate(FrameFormat.CAPTURE_BLOCK_SIZE)
+
+        assertFalse(ring.putBlock(buffer, 1000))
+        assertFalse(ring.putBlock(buffer, 4000))
+        assertEquals(0L, buffer.position().toLong())
+        assertEquals(2L, ring.missed)
+        assertTrue(ring.putBlock(buffer, 3000))
+    }
+
+    @Test
+    fun concurrentPublish_neverTearsAResult() {
+        val ring = CaptureMetadataRing(4)
+        val writer = Thread {
+            for (t in 1L..200_000L) {
+                publish(ring, t)
+            }
+        }
+        writer.start()
+        val buffer = ByteBuffer.allocate(FrameFormat.CAPTURE_BLOCK_SIZE)
+        var t = 1L
+        while (writer.isAlive) {
+            buffer.clear()
+            if (ring.putBlock(buffer, t)) {
+                assertEquals(t + 1, buffer.getLong(12))
+                assertEquals(t + 2, buffer.getLong(20))
+                assertEquals(t + 3, buffer.getLong(28))
+                assertEquals(t.toInt().toLong(), buffer.getInt(40).toLong())
+            }
+            t = ring.published
+        }
+        writer.join()
+    }
+}
@@ -0,0 +1,78 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.Random
+import kotlin.math.abs
+import kotlin.math.ln
+
+/**
+ * Runs exchanges against a simulated receiver whose clock is offset and drifts, over a link that
+ * queues the pings now and then.
+ */
+class ClockSyncTest {
+    private var localNs = 5_000_000_000L
+    private val sync = ClockSync { localNs }
+
+    /** The receiver's clock at local time [t]. */
+    private fun receiverNs(t: Long): Long {
+        return RECEIVER_OFFSET_NS + t + (t * DRIFT).toLong()
+    }
+
+    /** One exchange: [outNs] on the way to the receiver, [backNs] on the way back. */
+    private fun exchange(outNs: Long, backNs: Long) {
+        val id = sync.nextPing()
+        val receivedNs = receiverNs(localNs + outNs)
+        val heldNs = 20_000L
+        localNs += outNs + heldNs + backNs
+        assertTrue(sync.onPong(id, receivedNs, heldNs))
+    }
+
+    @Test
+    fun beforeFirstExchange_noTime() {
+        assertFalse(sync.synced)
+        assertEquals(ClockSync.NO_TIME, sync.receiverTime(localNs))
+        assertEquals(ClockSync.FAST_PING_INTERVAL_MS, sync.pingIntervalMs())
+    }
+
+    @Test
+    fun symmetricLink_offsetIsExact() {
+        exchange(300_000, 300_000)
+        assertTrue(sync.synced)
+        assertEquals(600_000L, sync.roundTripNs)
+        assertTrue(abs(sync.receiverTime(localNs) - receiverNs(localNs)) < 1000)
+    }
+
+    @Test
+    fun queuedPings_areFilteredAndDriftIsFound() {
+        val random = Random(7)
+        repeat(60) {
+            // A millisecond each way, and every other ping waits behind a frame for up to 10 ms.
+            val queuedNs = if (random.nextBoolean()) (-ln(1 - random.nextDouble()) * 3_000_000).toLong() else 0
+            val jitterNs = random.nextInt(100_000).toLong()
+            exchange(1_000_000 + queuedNs + jitterNs, 1_000_000L + random.nextInt(100_000))
+            localNs += ClockSync.PING_INTERVAL_MS * 1_000_000
+        }
+        assertEquals(ClockSync.PING_INTERVAL_MS, sync.pingIntervalMs())
+        assertEquals(DRIFT * 1e6, sync.driftPpm, 2.0)
+        // Good for a frame captured a second from now, without a new exchange.
+        val laterNs = localNs + 1_000_000_000L
+        assertEquals(receiverNs(laterNs).toDouble(), sync.receiverTime(laterNs).toDouble(), 100_000.0)
+    }
+
+    @Test
+    fun unknownOrRepeatedAnswers_areIgnored() {
+        val id = sync.nextPing()
+        localNs += 1_000_000
+        assertFalse(sync.onPong(id + 1, 0, 0))
+        assertTrue(sync.onPong(id, receiverNs(localNs - 500_000), 0))
+        assertFalse(sync.onPong(id, receiverNs(localNs - 500_000), 0))
+        assertEquals(1L, sync.exchanges)
+    }
+
+    companion object {
+        private const val RECEIVER_OFFSET_NS = -3_700_000_123_456L
+        private const val DRIFT = 40e-6
+    }
+}
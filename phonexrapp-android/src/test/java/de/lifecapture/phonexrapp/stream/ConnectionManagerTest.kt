@@ -0,0 +1,271 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.DataInputStream
+import java.io.IOException
+import java.net.ConnectException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.util.Random
+import java.util.concurrent.atomic.AtomicInteger
+
+class ConnectionManagerTest {
+    private class Events : ConnectionManager.Listener {
+        val connected = AtomicInteger()
+        val disconnected = AtomicInteger()
+        val failed = AtomicInteger()
+
+        override fun onConnected(protocol: FrameProtocol) {
+            connected.incrementAndGet()
+        }
+
+        override fun onDisconnected(error: IOException) {
+            disconnected.incrementAndGet()
+        }
+
+        override fun onConnectFailed(error: IOException, retryInMs: Long) {
+            failed.incrementAndGet()
+        }
+    }
+
+    private val pool = FramePool(2, FRAME_SIZE)
+
+    private fun frame(): Frame {
+        val frame = pool.acquire(FRAME_SIZE)
+        frame.data.position(FRAME_SIZE)
+        frame.data.flip()
+        frame.addSegment(frame.data)
+        return frame
+    }
+
+    private fun waitFor(what: String, condition: () -> Boolean) {
+        val deadline = System.nanoTime() + 10_000_000_000L
+        while (!condition()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for " + what)
+            }
+            Thread.sleep(5)
+        }
+    }
+
+    @Test
+    fun backoff_doublesWithJitterUpToMax() {
+        assertEquals(ConnectionManager.BASE_BACKOFF_MS / 2, ConnectionManager.backoffMs(0, 0.0))
+        assertEquals(ConnectionManager.BASE_BACKOFF_MS, ConnectionManager.backoffMs(1, 0.0))
+        assertEquals(ConnectionManager.MAX_BACKOFF_MS / 2, ConnectionManager.backoffMs(100, 0.0))
+        for (attempt in 0 until 40) {
+            val delayMs = minOf(ConnectionManager.MAX_BACKOFF_MS, ConnectionManager.BASE_BACKOFF_MS shl minOf(attempt, 16))
+            for (jitter in doubleArrayOf(0.0, 0.5, 0.999)) {
+                val backoffMs = ConnectionManager.backoffMs(attempt, jitter)
+                assertTrue(backoffMs >= delayMs / 2)
+                assertTrue(backoffMs <= delayMs)
+            }
+        }
+    }
+
+    @Test
+    fun receiverRestart_reconnects() {
+        val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        server.soTimeout = 10_000
+        val events = Events()
+        val manager = ConnectionManager(
+            ConnectionManager.Connector {
+                StreamTransport.connect(server.inetAddress.hostAddress, server.localPort, 1000)
+            },
+            FrameProtocol.VERSION_1, 0, events, Random(1)
+        )
+        manager.start()
+        val sender = manager.sender
+        try {
+            server.accept().close()
+            // The phone notices the restart with one of the next writes.
+            waitFor("the broken connection") {
+                sender.offer(frame())
+                events.disconnected.get() > 0
+            }
+            server.accept().use { socket ->
+                waitFor("the new connection") { sender.connected }
+                assertEquals(2L, sender.connections.toLong())
+                assertEquals(2L, events.connected.get().toLong())
+                sender.offer(frame())
+                DataInputStream(socket.getInputStream()).readFully(ByteArray(FRAME_SIZE))
+            }
+        } finally {
+            manager.shutdown()
+            server.close()
+        }
+    }
+
+    @Test
+    fun version1Receiver_getsVersion1Frames() {
+        val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        server.soTimeout = 10_000
+        val events = Events()
+        val manager = ConnectionManager(
+            ConnectionManager.Connector {
+                StreamTransport.connect(server.inetAddress.hostAddress, server.localPort, 1000)
+            },
+            FrameProtocol.VERSION_2, FrameProtocol.CAP_CLOCK, events, Random(3)
+        )
+        manager.start()
+        val sender = manager.sender
+        try {
+            // An old receiver takes the hello for a broken frame and gives up on the connection.
+            server.accept().use { DataInputStream(it.getInputStream()).readFully(ByteArray(8)) }
+            server.accept().use { socket ->
+                waitFor("the version 1 connection") { sender.connected }
+                assertEquals(FrameProtocol.VERSION_1.toLong(), sender.protocol.version.toLong())
+                assertEquals(FrameProtocol.VERSION_1.toLong(), manager.offeredVersion.toLong())
+                assertEquals(0L, events.failed.get().toLong())
+                sender.offer(frame())
+                val received = ByteArray(FRAME_SIZE)
+                DataInputStream(socket.getInputStream()).readFully(received)
+                assertEquals(0L, received[0].toLong())
+            }
+        } finally {
+            manager.shutdown()
+            server.close()
+        }
+    }
+
+    @Test
+    fun brokenHandshake_staysOnVersion2() {
+        val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        server.soTimeout = 10_000
+        val events = Events()
+        val manager = ConnectionManager(
+            ConnectionManager.Connector {
+                StreamTransport.connect(server.inetAddress.hostAddress, server.localPort, 1000)
+            },
+            FrameProtocol.VERSION_2, FrameProtocol.CAP_CHECKSUM, events, Random(6)
+        )
+        manager.start()
+        val sender = manager.sender
+        try {
+            // A version 2 receiver that restarts while it reads the hello resets the connection.
+            server.accept().use {
+                DataInputStream(it.getInputStream()).readFully(ByteArray(8))
+                it.setSoLinger(true, 0)
+            }
+            server.accept().use { socket ->
+                DataInputStream(socket.getInputStream()).readFully(ByteArray(8))
+                val reply = ByteBuffer.allocate(8)
+                reply.put("PXRH".toByteArray(Charsets.US_ASCII))
+                reply.put(FrameProtocol.VERSION_2.toByte())
+                reply.put(0)
+                reply.putShort(FrameProtocol.CAP_CHECKSUM.toShort())
+                socket.getOutputStream().write(reply.array())
+                waitFor("the version 2 connection") { sender.connected }
+                assertEquals(FrameProtocol.VERSION_2.toLong(), sender.protocol.version.toLong())
+                assertEquals(FrameProtocol.VERSION_2.toLong(), manager.offeredVersion.toLong())
+                assertEquals(1L, events.failed.get().toLong())
+            }
+        } finally {
+            manager.shutdown()
+            server.close()
+        }
+    }
+
+    @Test
+    fun silentDatagramReceiver_disconnects() {
+        val receiver = DatagramChannel.open().bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        val events = Events()
+        val manager = ConnectionManager(
+            ConnectionManager.Connector {
+                DatagramTransport.connect(InetAddress.getLoopbackAddress().hostAddress, receiver.socket().localPort)
+            },
+            FrameProtocol.VERSION_2, FrameProtocol.CAP_CLOCK, events, Random(4),
+            receiverTimeoutMs = 300
+        )
+        manager.start()
+        try {
+            // Agrees to the clock, then never answers a ping.
+            val hello = ByteBuffer.allocate(64)
+            val phone = receiver.receive(hello)
+            val reply = ByteBuffer.allocate(8)
+            reply.put("PXRH".toByteArray(Charsets.US_ASCII))
+            reply.put(FrameProtocol.VERSION_2.toByte())
+            reply.put(0)
+            reply.putShort(FrameProtocol.CAP_CLOCK.toShort())
+            reply.flip()
+            receiver.send(reply, phone)
+            waitFor("the connection") { events.connected.get() > 0 }
+            assertTrue(manager.sender.protocol.clock != null)
+            // No write fails, the missing pongs give the receiver away.
+            waitFor("the disconnect") { events.disconnected.get() > 0 }
+        } finally {
+            manager.shutdown()
+            receiver.close()
+        }
+    }
+
+    @Test
+    fun stalledReceiver_doesNotBlockShutdown() {
+        val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        server.soTimeout = 10_000
+        val manager = ConnectionManager(
+            ConnectionManager.Connector {
+                StreamTransport.connect(server.inetAddress.hostAddress, server.localPort, 1000)
+            },
+            FrameProtocol.VERSION_1, 0, Events(), Random(5)
+        )
+        manager.start()
+        val sender = manager.sender
+        val largePool = FramePool(2, LARGE_FRAME_SIZE)
+        server.accept().use {
+            // The receiver never reads, so the socket buffers fill up and a write gets stuck.
+            var sent = -1L
+            waitFor("a stuck write") {
+                val frame = largePool.acquire(LARGE_FRAME_SIZE)
+                frame.data.position(LARGE_FRAME_SIZE)
+                frame.data.flip()
+                frame.addSegment(frame.data)
+                sender.offer(frame)
+                Thread.sleep(100)
+                val stuck = sender.connected && sender.sent == sent
+                sent = sender.sent
+                stuck
+            }
+            val start = System.nanoTime()
+            manager.shutdown()
+            assertTrue(System.nanoTime() - start < 2_000_000_000L)
+            assertFalse(sender.isAlive)
+        }
+        server.close()
+    }
+
+    @Test
+    fun noReceiver_dropsFramesAndRetries() {
+        val events = Events()
+        val manager = ConnectionManager(
+            ConnectionManager.Connector { throw ConnectException("Connection refused") },
+            FrameProtocol.VERSION_2, 0, events, Random(2)
+        )
+        manager.start()
+        try {
+            waitFor("a second attempt") { events.failed.get() >= 2 }
+            repeat(3) { manager.sender.offer(frame()) }
+            assertEquals(3L, manager.sender.drops(DropReason.DISCONNECTED))
+            // The frames went straight back to the pool.
+            val misses = pool.misses
+            repeat(2) { pool.acquire(FRAME_SIZE) }
+            assertEquals(misses, pool.misses)
+        } finally {
+            val start = System.nanoTime()
+            manager.shutdown()
+            // Shutting down does not wait out the backoff.
+            assertTrue(System.nanoTime() - start < ConnectionManager.MAX_BACKOFF_MS * 1_000_000 / 2)
+        }
+        assertEquals(0L, events.connected.get().toLong())
+    }
+
+    companion object {
+        private const val FRAME_SIZE = 1024
+        private const val LARGE_FRAME_SIZE = 1 shl 20
+    }
+}
@@ -0,0 +1,124 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.io.DataInputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class ControlChannelTest {
+    private val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+    private val transport = StreamTransport.connect(server.inetAddress.hostAddress, server.localPort)
+    private val receiver: Socket = server.accept()
+    private val protocol = FrameProtocol(FrameProtocol.VERSION_2, FrameProtocol.CAP_CONTROL)
+    private val sender = FrameSender(transport, protocol) {}
+
+    /** Requests as the listener saw them: id, command and argument. */
+    private val requests = ArrayBlockingQueue<LongArray>(8)
+    private val channel = ControlChannel(transport, sender, protocol) { _, requestId, command, argument ->
+        requests.add(longArrayOf(requestId.toLong(), command.toLong(), argument))
+    }
+
+    init {
+        sender.start()
+        channel.start()
+    }
+
+    @After
+    fun close() {
+        sender.shutdown()
+        transport.close()
+        receiver.close()
+        server.close()
+        channel.join(10_000)
+    }
+
+    private fun send(requestId: Int, command: Int, argument: Long) {
+        val request = ByteBuffer.allocate(ControlChannel.REQUEST_SIZE)
+        ControlChannel.putRequest(request, requestId, command, argument)
+        receiver.getOutputStream().write(request.array())
+    }
+
+    /** Reads the next version 2 frame without its length field. */
+    private fun readFrame(): ByteBuffer {
+        val input = DataInputStream(receiver.getInputStream())
+        val frame = ByteArray(input.readInt())
+        input.readFully(frame)
+        return ByteBuffer.wrap(frame)
+    }
+
+    /** Reads the next frame, which has to be an answer, and returns its control block. */
+    private fun readAck(): ByteBuffer {
+        val buffer = readFrame()
+        assertEquals(FrameFormat.TYPE_CONTROL.toLong(), buffer.get(1).toLong())
+        val headerLength = (buffer.getShort(2).toInt() and 0xffff) - 4
+        assertEquals(FrameFormat.BLOCK_CONTROL.toLong(), buffer.get(headerLength).toLong())
+        buffer.position(headerLength + FrameFormat.BLOCK_HEADER_SIZE)
+        return buffer.slice()
+    }
+
+    @Test
+    fun request_reachesListenerAndAnswerCarriesSequence() {
+        send(7, ControlChannel.COMMAND_CAPTURE_SIZE, ControlChannel.captureSize(1280, 720))
+        val request = requests.poll(10, TimeUnit.SECONDS)!!
+        assertEquals(7L, request[0])
+        assertEquals(1280L, ControlChannel.captureWidth(request[2]).toLong())
+        assertEquals(720L, ControlChannel.captureHeight(request[2]).toLong())
+
+        protocol.nextSequence()
+        channel.acknowledge(7, ControlChannel.COMMAND_CAPTURE_SIZE, ControlChannel.STATUS_APPLIED, request[2], 42)
+        val ack = readAck()
+        assertEquals(7L, ack.getInt(0).toLong())
+        assertEquals(ControlChannel.COMMAND_CAPTURE_SIZE.toLong(), ack.get(4).toLong())
+        assertEquals(ControlChannel.STATUS_APPLIED.toLong(), ack.get(5).toLong())
+        assertEquals(42L, ack.getInt(8).toLong())
+        assertEquals(request[2], ack.getLong(12))
+    }
+
+    @Test
+    fun answer_carriesSequenceOfNextFrame() {
+        val packer = RawFramePacker(protocol)
+        val pool = FramePool(2, 64)
+        sender.offer(packer.packNv21(pool, ByteBuffer.allocate(24), 4, 4, 0, 17, null))
+        assertEquals(0L, readFrame().getInt(4).toLong())
+        channel.acknowledge(5, ControlChannel.COMMAND_SYNC_FRAME, ControlChannel.STATUS_APPLIED, 0)
+        val ack = readAck()
+        // The answer takes no number, the next raw frame is the one the request applies to.
+        sender.offer(packer.packNv21(pool, ByteBuffer.allocate(24), 4, 4, 0, 17, null))
+        val next = readFrame()
+        assertEquals(FrameFormat.TYPE_RAW.toLong(), next.get(1).toLong())
+        assertEquals(1L, next.getInt(4).toLong())
+        assertEquals(next.getInt(4).toLong(), ack.getInt(8).toLong())
+    }
+
+    @Test
+    fun unknownCommand_isRejectedWithoutListener() {
+        send(3, 200, 0)
+        val ack = readAck()
+        assertEquals(3L, ack.getInt(0).toLong())
+        assertEquals(ControlChannel.STATUS_INVALID.toLong(), ack.get(5).toLong())
+        assertTrue(requests.isEmpty())
+    }
+
+    @Test
+    fun answerAfterReconnect_isDropped() {
+        sender.attach(transport, FrameProtocol(FrameProtocol.VERSION_2, FrameProtocol.CAP_CONTROL))
+        channel.acknowledge(1, ControlChannel.COMMAND_SYNC_FRAME, ControlChannel.STATUS_APPLIED, 0)
+        assertEquals(0L, protocol.peekSequence().toLong())
+        assertEquals(0L, sender.sent)
+    }
+
+    @Test
+    fun lostSync_stopsTheChannel() {
+        receiver.getOutputStream().write(ByteArray(ControlChannel.REQUEST_SIZE) { 1 })
+        channel.join(10_000)
+        assertFalse(channel.isAlive)
+        assertEquals(0L, channel.requests)
+    }
+}
@@ -0,0 +1,116 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class LatencyRecorderTest {
+    private var localNs = 1_000_000_000L
+    private val recorder = LatencyRecorder { localNs }
+    private val pool = FramePool(2, 64)
+
+    /** A receiver clock 5 s ahead, known after one exchange over a symmetric link. */
+    private val clock = ClockSync { localNs }.also {
+        val id = it.nextPing()
+        it.onPong(id, localNs + RECEIVER_OFFSET_NS, 0, localNs)
+    }
+
+    /** Packs frame [sequence] exposed 8 ms ago that arrived 2 ms ago, and writes it 3 ms later. */
+    private fun send(sequence: Int): Frame {
+        val frame = pool.acquire(64)
+        frame.sequence = sequence
+        recorder.onPacked(frame, localNs - 8_000_000, localNs - 2_000_000)
+        recorder.onSending(frame)
+        localNs += 3_000_000
+        recorder.onWritten(frame)
+        return frame
+    }
+
+    @Test
+    fun everyStage_isRecorded() {
+        send(7).release()
+        // Received 4 ms after the write, in the receiver's clock.
+        assertTrue(recorder.onReceived(7, localNs + 4_000_000 + RECEIVER_OFFSET_NS, clock))
+        val interval = recorder.export()
+        assertEquals(6000L, interval[LatencyStage.CAPTURE].max)
+        assertEquals(2000L, interval[LatencyStage.PACK].max)
+        assertEquals(3000L, interval[LatencyStage.SEND].max)
+        assertEquals(4000L, interval[LatencyStage.NETWORK].max)
+        assertEquals(15000L, interval[LatencyStage.TOTAL].max)
+        for (stage in LatencyStage.values()) {
+            assertEquals(1L, interval[stage].count)
+        }
+    }
+
+    @Test
+    fun unknownRepeatedOrUnsyncedReceipts_areIgnored() {
+        send(3).release()
+        assertFalse(recorder.onReceived(4, localNs + RECEIVER_OFFSET_NS, clock))
+        assertFalse(recorder.onReceived(3, localNs + RECEIVER_OFFSET_NS, ClockSync { localNs }))
+        assertTrue(recorder.onReceived(3, localNs + RECEIVER_OFFSET_NS, clock))
+        assertFalse(recorder.onReceived(3, localNs + RECEIVER_OFFSET_NS, clock))
+        // A frame whose slot was reused by a later one.
+        send(5).release()
+        send(5 + 256).release()
+        assertFalse(recorder.onReceived(5, localNs + RECEIVER_OFFSET_NS, clock))
+        assertTrue(recorder.onReceived(5 + 256, localNs + RECEIVER_OFFSET_NS, clock))
+        assertEquals(2L, recorder.export()[LatencyStage.NETWORK].count)
+    }
+
+    @Test
+    fun receiptBeforeTheWriteReturned_countsOnceWritten() {
+        val frame = pool.acquire(64)
+        frame.sequence = 9
+        recorder.onPacked(frame, localNs - 8_000_000, localNs - 2_000_000)
+        recorder.onSending(frame)
+        localNs += 3_000_000
+        // The receiver had it 1 ms before the write returned.
+        assertTrue(recorder.onReceived(9, localNs - 1_000_000 + RECEIVER_OFFSET_NS, clock))
+        assertEquals(0L, recorder.export()[LatencyStage.NETWORK].count)
+        recorder.onWritten(frame)
+        frame.release()
+        val interval = recorder.export()
+        assertEquals(1L, interval[LatencyStage.NETWORK].count)
+        assertEquals(0L, interval[LatencyStage.NETWORK].max)
+        assertEquals(10000L, interval[LatencyStage.TOTAL].max)
+        assertFalse(recorder.onReceived(9, localNs + RECEIVER_OFFSET_NS, clock))
+    }
+
+    @Test
+    fun unstampedFrames_skipTheirStages() {
+        // A control answer, never packed by a producer.
+        val control = pool.acquire(64)
+        recorder.onWritten(control)
+        control.release()
+        // An encoded frame, without delivery time.
+        val frame = pool.acquire(64)
+        recorder.onPacked(frame, localNs - 1_000_000, 0)
+        recorder.onWritten(frame)
+        frame.release()
+        val interval = recorder.export()
+        assertEquals(0L, interval[LatencyStage.CAPTURE].count)
+        assertEquals(0L, interval[LatencyStage.PACK].count)
+        assertEquals(1L, interval[LatencyStage.SEND].count)
+    }
+
+    @Test
+    fun export_startsANewInterval() {
+        send(1).release()
+        val first = recorder.export()
+        assertEquals(1L, first[LatencyStage.SEND].count)
+        localNs += 1_000_000
+        val second = recorder.export()
+        assertEquals(0L, second[LatencyStage.SEND].count)
+        assertEquals(first.endNs, second.startNs)
+        assertEquals(localNs, second.endNs)
+        // Recycled frames come back without the stamps of their previous use.
+        val frame = pool.acquire(64)
+        assertEquals(-1L, frame.sequence.toLong())
+        recorder.onWritten(frame)
+        assertEquals(0L, recorder.export()[LatencyStage.SEND].count)
+    }
+
+    companion object {
+        private const val RECEIVER_OFFSET_NS = 5_000_000_000L
+    }
+}
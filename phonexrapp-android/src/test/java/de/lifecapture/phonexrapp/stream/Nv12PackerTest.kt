@@ -0,0 +1,180 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+class Nv12PackerTest {
+    private fun lumaAt(x: Int, y: Int) = (x * 7 + y * 13).toByte()
+    private fun uAt(x: Int, y: Int) = (100 + x * 3 + y).toByte()
+    private fun vAt(x: Int, y: Int) = (200 - x - y * 5).toByte()
+
+    /**
+     * A [fullWidth] x [fullHeight] image in direct buffers. Chroma is planar with [pixelStride] 1,
+     * or interleaved in one buffer, U first unless [vFirst].
+     */
+    private fun planes(
+        fullWidth: Int,
+        fullHeight: Int,
+        pixelStride: Int,
+        rowPadding: Int = 0,
+        vFirst: Boolean = false
+    ): YuvPlanes {
+        val rowStride = fullWidth + rowPadding
+        val y = ByteBuffer.allocateDirect(rowStride * (fullHeight - 1) + fullWidth)
+        for (row in 0 until fullHeight) {
+            for (column in 0 until fullWidth) {
+                y.put(row * rowStride + column, lumaAt(column, row))
+            }
+        }
+        val chromaWidth = (fullWidth + 1) / 2
+        val chromaHeight = (fullHeight + 1) / 2
+        val uvRowStride = chromaWidth * pixelStride + rowPadding
+        val planeSize = uvRowStride * (chromaHeight - 1) + (chromaWidth - 1) * pixelStride + 1
+        val u: ByteBuffer
+        val v: ByteBuffer
+        if (pixelStride == 2) {
+            val uv = ByteBuffer.allocateDirect(planeSize + 1)
+            uv.position(if (vFirst) 1 else 0).limit(planeSize + if (vFirst) 1 else 0)
+            u = uv.slice()
+            uv.clear()
+            uv.position(if (vFirst) 0 else 1).limit(planeSize + if (vFirst) 0 else 1)
+            v = uv.slice()
+        } else {
+            u = ByteBuffer.allocateDirect(planeSize)
+            v = ByteBuffer.allocateDirect(planeSize)
+        }
+        for (row in 0 until chromaHeight) {
+            for (column in 0 until chromaWidth) {
+                u.put(row * uvRowStride + column * pixelStride, uAt(column, row))
+                v.put(row * uvRowStride + column * pixelStride, vAt(column, row))
+            }
+        }
+        val planes = YuvPlanes()
+        planes.width = fullWidth
+        planes.height = fullHeight
+        planes.setPlane(0, y, rowStride, 1)
+        planes.setPlane(1, u, uvRowStride, pixelStride)
+        planes.setPlane(2, v, uvRowStride, pixelStride)
+        return planes
+    }
+
+    /** The NV12 bytes [Nv12Packer] should produce for the crop of [planes]. */
+    private fun expected(planes: YuvPlanes): ByteArray {
+        val stride = Nv12Packer.stride(planes.width)
+        val out = ByteBuffer.allocate(Nv12Packer.packedSize(planes.width, planes.height))
+        val left = planes.cropLeft and 1.inv()
+        val top = planes.cropTop and 1.inv()
+        for (row in 0 until planes.height) {
+            for (column in 0 until stride) {
+                out.put(lumaAt(left + minOf(column, planes.width - 1), top + row))
+            }
+        }
+        for (row in 0 until (planes.height + 1) / 2) {
+            for (column in 0 until stride / 2) {
+                out.put(uAt(left / 2 + column, top / 2 + row))
+                out.put(vAt(left / 2 + column, top / 2 + row))
+            }
+        }
+        return out.array()
+    }
+
+    private fun pack(planes: YuvPlanes): ByteArray {
+        val packed = ByteBuffer.allocateDirect(Nv12Packer.packedSize(planes.width, planes.height) + 8)
+        packed.position(4)
+        Nv12Packer().pack(planes, packed)
+        assertEquals(4L + Nv12Packer.packedSize(planes.width, planes.height), packed.position().toLong())
+        val bytes = ByteArray(packed.position() - 4)
+        packed.position(4)
+        packed.get(bytes)
+        return bytes
+    }
+
+    @Test
+    fun semiPlanar_withPadding() {
+        val planes = planes(64, 48, 2, rowPadding = 32)
+        assertEquals(Nv12Packer.Layout.SEMI_PLANAR, Nv12Packer.layout(planes))
+        assertTrue(Nv12Packer.isPadded(planes))
+        assertArrayEquals(expected(planes), pack(planes))
+    }
+
+    @Test
+    fun semiPlanar_vFirst() {
+        val planes = planes(64, 48, 2, vFirst = true)
+        assertArrayEquals(expected(planes), pack(planes))
+    }
+
+    @Test
+    fun planar_i420() {
+        val planes = planes(64, 48, 1)
+        assertEquals(Nv12Packer.Layout.PLANAR, Nv12Packer.layout(planes))
+        assertFalse(Nv12Packer.isPadded(planes))
+        assertArrayEquals(expected(planes), pack(planes))
+        // The plane buffers are left as they were found.
+        assertEquals(0L, planes.buffers[0]!!.position().toLong())
+        assertEquals(planes.buffers[0]!!.capacity().toLong(), planes.buffers[0]!!.limit().toLong())
+    }
+
+    @Test
+    fun oddSizes_keepLastColumnAndRow() {
+        for (pixelStride in intArrayOf(1, 2)) {
+            val planes = planes(37, 11, pixelStride, rowPadding = 5)
+            assertEquals(38L, Nv12Packer.stride(37).toLong())
+            assertEquals(38L * (11 + 6), Nv12Packer.packedSize(37, 11).toLong())
+            assertArrayEquals(expected(planes), pack(planes))
+        }
+    }
+
+    @Test
+    fun oddWidth_withOneBytePadding() {
+        // The row stride equals the packed stride, the last row has no padding byte.
+        for (pixelStride in intArrayOf(1, 2)) {
+            val planes = planes(37, 11, pixelStride, rowPadding = 1)
+            assertArrayEquals(expected(planes), pack(planes))
+        }
+    }
+
+    @Test
+    fun crop_startsOnChromaSample() {
+        for (pixelStride in intArrayOf(1, 2)) {
+            val planes = planes(64, 48, pixelStride, rowPadding = 16)
+            planes.cropLeft = 10
+            planes.cropTop = 7
+            planes.width = 33
+            planes.height = 25
+            assertArrayEquals(expected(planes), pack(planes))
+        }
+    }
+
+    @Test
+    fun mixedPixelStrides_areOther() {
+        val planes = planes(16, 8, 1)
+        planes.pixelStrides[2] = 2
+        assertEquals(Nv12Packer.Layout.OTHER, Nv12Packer.layout(planes))
+    }
+
+    @Test
+    fun packing_allocatesNothing() {
+        val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean ?: return
+        val planes = planes(320, 240, 2, rowPadding = 64)
+        val packed = ByteBuffer.allocateDirect(Nv12Packer.packedSize(320, 240))
+        val packer = Nv12Packer()
+        // Until everything is compiled, the JVM itself allocates now and then.
+        repeat(500) {
+            packer.pack(planes, packed)
+            packed.clear()
+        }
+        val id = Thread.currentThread().id
+        val allocated = (1..5).minOf {
+            val before = threads.getThreadAllocatedBytes(id)
+            repeat(100) {
+                packer.pack(planes, packed)
+                packed.clear()
+            }
+            threads.getThreadAllocatedBytes(id) - before
+        }
+        assertEquals(0L, allocated)
+    }
+}
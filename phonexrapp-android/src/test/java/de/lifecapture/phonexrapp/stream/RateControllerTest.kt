@@ -0,0 +1,130 @@
+package de.lifecapture.phonexrapp.stream
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Drives the controller with windows of the sender statistics: a window with drops is congested,
+ * one without any traffic is clear. The sender thread is never started.
+ */
+class RateControllerTest {
+    /** A size ladder of [rungs] sizes, starting at the top like the fragment. */
+    private class Ladder(private val rungs: Int) : RateController.Listener {
+        var rung = rungs - 1
+        val bitRates = ArrayList<Int>()
+
+        override fun onBitRateChanged(bitRate: Int) {
+            bitRates.add(bitRate)
+        }
+
+        override fun onCaptureSizeStep(step: Int): Boolean {
+            val next = rung + step
+            if (next < 0 || next >= rungs) {
+                return false
+            }
+            rung = next
+            return true
+        }
+    }
+
+    private val sender = FrameSender {}
+    private val ladder = Ladder(3)
+    private var nowNs = 1_000_000_000L
+
+    private fun controller(encoded: Boolean): RateController {
+        val controller = RateController(sender, ladder, encoded, MIN_BIT_RATE, MAX_BIT_RATE)
+        assertFalse(controller.update(nowNs))
+        return controller
+    }
+
+    private fun congested(controller: RateController): Boolean {
+        sender.countDrop(DropReason.QUEUE_FULL)
+        nowNs += RateController.UPDATE_INTERVAL_MS * 1_000_000
+        return controller.update(nowNs)
+    }
+
+    private fun clear(controller: RateController): Boolean {
+        nowNs += RateController.UPDATE_INTERVAL_MS * 1_000_000
+        return controller.update(nowNs)
+    }
+
+    @Test
+    fun congestion_cutsBitRateDownToMinimum() {
+        val controller = controller(true)
+        assertTrue(congested(controller))
+        assertEquals(7_000_000L, controller.bitRate.toLong())
+        assertEquals(7_000_000L, ladder.bitRates.last().toLong())
+        while (controller.bitRate > MIN_BIT_RATE) {
+            assertTrue(congested(controller))
+        }
+        assertEquals(MIN_BIT_RATE.toLong(), controller.bitRate.toLong())
+        assertEquals(0L, controller.sizeSteps.toLong())
+        assertEquals(2L, ladder.rung.toLong())
+    }
+
+    @Test
+    fun clearWindows_raiseBitRateAdditively() {
+        val controller = controller(true)
+        congested(controller)
+        assertFalse(clear(controller))
+        assertTrue(clear(controller))
+        assertEquals(7_500_000L, controller.bitRate.toLong())
+        assertEquals(1L, controller.bitRateIncreases.toLong())
+        // Up to the maximum and not beyond.
+        repeat(20) { clear(controller) }
+        assertEquals(MAX_BIT_RATE.toLong(), controller.bitRate.toLong())
+    }
+
+    @Test
+    fun congestionAtMinimum_stepsSizeDownToTheBottom() {
+        val controller = controller(true)
+        while (controller.bitRate > MIN_BIT_RATE) {
+            congested(controller)
+        }
+        // The windows spent cutting the bit rate count as congested as well.
+        assertTrue(congested(controller))
+        assertEquals(1L, ladder.rung.toLong())
+        assertEquals(1L, controller.sizeSteps.toLong())
+        // A smaller size starts again from the middle bit rate.
+        assertEquals(5_500_000L, controller.bitRate.toLong())
+
+        while (controller.bitRate > MIN_BIT_RATE) {
+            congested(controller)
+        }
+        assertTrue(congested(controller))
+        assertEquals(0L, ladder.rung.toLong())
+        assertEquals(2L, controller.sizeSteps.toLong())
+
+        while (controller.bitRate > MIN_BIT_RATE) {
+            congested(controller)
+        }
+        // The bottom rung: nothing to step down to, the bit rate stays.
+        repeat(8) { assertFalse(congested(controller)) }
+        assertEquals(0L, ladder.rung.toLong())
+        assertEquals(2L, controller.sizeSteps.toLong())
+        assertEquals(MIN_BIT_RATE.toLong(), controller.bitRate.toLong())
+    }
+
+    @Test
+    fun rawFrames_stepSizeOnlyWithinTheLadder() {
+        val controller = controller(false)
+        // At the top already, clear windows change nothing.
+        repeat(40) { assertFalse(clear(controller)) }
+        assertEquals(0L, controller.sizeSteps.toLong())
+        repeat(8) { congested(controller) }
+        assertEquals(0L, ladder.rung.toLong())
+        assertEquals(2L, controller.sizeSteps.toLong())
+        repeat(4) { assertFalse(congested(controller)) }
+        assertEquals(2L, controller.sizeSteps.toLong())
+        repeat(20) { clear(controller) }
+        assertEquals(1L, ladder.rung.toLong())
+        assertEquals(3L, controller.sizeSteps.toLong())
+        assertTrue(ladder.bitRates.isEmpty())
+    }
+
+    companion object {
+        private const val MIN_BIT_RATE = 1_000_000
+        private const val MAX_BIT_RATE = 10_000_000
+    }
+}
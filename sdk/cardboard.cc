@@ -313,6 +313,16 @@ void CardboardHeadTracker_recenter(CardboardHeadTracker* head_tracker) {
   static_cast<cardboard::HeadTracker*>(head_tracker)->Recenter();
 }
 
+void CardboardHeadTracker_setImuSampleListener(
+    CardboardHeadTracker* head_tracker, CardboardImuSampleListener listener,
+    void* user_data) {
+  if (CARDBOARD_IS_NOT_INITIALIZED() || CARDBOARD_IS_ARG_NULL(head_tracker)) {
+    return;
+  }
+  static_cast<cardboard::HeadTracker*>(head_tracker)
+      ->SetImuSampleListener(listener, user_data);
+}
+
 void CardboardQrCode_getSavedDeviceParams(uint8_t** encoded_device_params,
                                           int* size) {
   if (CARDBOARD_IS_NOT_INITIALIZED() ||
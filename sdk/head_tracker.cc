@@ -82,6 +82,8 @@ HeadTracker::HeadTracker()
       latest_gyroscope_data_({0, 0, Vector3::Zero()}),
       accel_sensor_(new SensorEventProducer<AccelerometerData>()),
       gyro_sensor_(new SensorEventProducer<GyroscopeData>()),
+      imu_listener_(nullptr),
+      imu_listener_user_data_(nullptr),
       is_viewport_orientation_initialized_(false) {
   on_accel_callback_ = [&](const AccelerometerData& event) {
     OnAccelerometerData(event);
@@ -89,6 +91,14 @@ HeadTracker::HeadTracker()
   on_gyro_callback_ = [&](const GyroscopeData& event) {
     OnGyroscopeData(event);
   };
+  on_accel_batch_callback_ = [&](const std::vector<AccelerometerData>& events) {
+    OnSensorBatch(events, kImuAccelerometer, accel_samples_);
+  };
+  on_gyro_batch_callback_ = [&](const std::vector<GyroscopeData>& events) {
+    OnSensorBatch(events, kImuGyroscope, gyro_samples_);
+  };
+  accel_sensor_->SetBatchCallback(&on_accel_batch_callback_);
+  gyro_sensor_->SetBatchCallback(&on_gyro_batch_callback_);
 }
 
 HeadTracker::~HeadTracker() { UnregisterCallbacks(); }
@@ -143,6 +153,35 @@ void HeadTracker::Recenter() {
   sensor_fusion_->Reset();
 }
 
+void HeadTracker::SetImuSampleListener(CardboardImuSampleListener listener,
+                                       void* user_data) {
+  std::lock_guard<std::mutex> lock(imu_listener_mutex_);
+  imu_listener_ = listener;
+  imu_listener_user_data_ = user_data;
+}
+
+template <typename DataType>
+void HeadTracker::OnSensorBatch(const std::vector<DataType>& events,
+                                CardboardImuSampleType type,
+                                std::vector<CardboardImuSample>& samples) {
+  std::lock_guard<std::mutex> lock(imu_listener_mutex_);
+  if (imu_listener_ == nullptr) {
+    return;
+  }
+  // The buffer only grows until it holds the largest poll seen so far.
+  samples.resize(events.size());
+  for (size_t i = 0; i < events.size(); ++i) {
+    const DataType& event = events[i];
+    samples[i].timestamp_ns = static_cast<int64_t>(event.sensor_timestamp_ns);
+    samples[i].x = static_cast<float>(event.data[0]);
+    samples[i].y = static_cast<float>(event.data[1]);
+    samples[i].z = static_cast<float>(event.data[2]);
+    samples[i].type = type;
+  }
+  imu_listener_(imu_listener_user_data_, samples.data(),
+                static_cast<int32_t>(samples.size()));
+}
+
 void HeadTracker::RegisterCallbacks() {
   accel_sensor_->StartSensorPolling(&on_accel_callback_);
   gyro_sensor_->StartSensorPolling(&on_gyro_callback_);
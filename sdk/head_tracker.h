@@ -19,6 +19,7 @@
 #include <array>
 #include <memory>
 #include <mutex>  // NOLINT
+#include <vector>
 
 #include "include/cardboard.h"
 #include "sensors/accelerometer_data.h"
@@ -52,6 +53,11 @@ class HeadTracker {
   // Recenters the head tracker.
   void Recenter();
 
+  // Sets the listener for raw IMU samples, null removes it. Once this returns
+  // the previous listener is not called anymore.
+  void SetImuSampleListener(CardboardImuSampleListener listener,
+                            void* user_data);
+
  private:
   // Function called when receiving AccelerometerData.
   //
@@ -63,6 +69,16 @@ class HeadTracker {
   // @param event sensor event.
   void OnGyroscopeData(const GyroscopeData& event);
 
+  // Forwards the raw samples of one sensor poll to the IMU sample listener.
+  //
+  // @param events sensor events of one poll.
+  // @param type sensor the events come from.
+  // @param samples scratch space owned by the calling sensor thread.
+  template <typename DataType>
+  void OnSensorBatch(const std::vector<DataType>& events,
+                     CardboardImuSampleType type,
+                     std::vector<CardboardImuSample>& samples);
+
   // Registers this as a listener for data from the accel and gyro sensors. This
   // is useful for informing the sensors that they may need to start polling for
   // data.
@@ -90,6 +106,19 @@ class HeadTracker {
   // Callback functions registered to the input SingleTypeEventProducer.
   std::function<void(AccelerometerData)> on_accel_callback_;
   std::function<void(GyroscopeData)> on_gyro_callback_;
+  std::function<void(const std::vector<AccelerometerData>&)>
+      on_accel_batch_callback_;
+  std::function<void(const std::vector<GyroscopeData>&)>
+      on_gyro_batch_callback_;
+
+  // Listener for raw IMU samples and its user data, guarded by
+  // imu_listener_mutex_.
+  std::mutex imu_listener_mutex_;
+  CardboardImuSampleListener imu_listener_;
+  void* imu_listener_user_data_;
+  // Conversion buffers, one per sensor thread, reused for every poll.
+  std::vector<CardboardImuSample> accel_samples_;
+  std::vector<CardboardImuSample> gyro_samples_;
 
   // @{ Hold rotations to adapt the pose estimation to the viewport and head
   // poses. Use the following indexing for each viewport orientation:
@@ -230,6 +230,39 @@ typedef struct CardboardDistortionRenderer CardboardDistortionRenderer;
 /// An opaque Head Tracker object.
 typedef struct CardboardHeadTracker CardboardHeadTracker;
 
+/// Enum to distinguish the sensors raw IMU samples come from.
+typedef enum CardboardImuSampleType {
+  /// Accelerometer, values in m/s^2.
+  kImuAccelerometer = 1,
+  /// Gyroscope, values in rad/s.
+  kImuGyroscope = 2,
+} CardboardImuSampleType;
+
+/// Struct to hold one raw IMU sample, in the Android sensor coordinate system.
+typedef struct CardboardImuSample {
+  /// Sensor timestamp in nanoseconds.
+  int64_t timestamp_ns;
+  /// Value along the x axis.
+  float x;
+  /// Value along the y axis.
+  float y;
+  /// Value along the z axis.
+  float z;
+  /// Sensor the sample comes from.
+  CardboardImuSampleType type;
+} CardboardImuSample;
+
+/// Listener for raw IMU samples, see
+/// @c ::CardboardHeadTracker_setImuSampleListener.
+///
+/// @param[in]      user_data               Pointer passed on registration.
+/// @param[in]      samples                 Samples of one sensor poll, only
+///                                         valid during the call.
+/// @param[in]      count                   Number of samples.
+typedef void (*CardboardImuSampleListener)(void* user_data,
+                                           const CardboardImuSample* samples,
+                                           int32_t count);
+
 /// @}
 
 #ifdef __cplusplus
@@ -610,6 +643,24 @@ void CardboardHeadTracker_getPose(
 /// @param[in]      head_tracker            Head tracker object pointer.
 void CardboardHeadTracker_recenter(CardboardHeadTracker* head_tracker);
 
+/// Sets a listener receiving the raw accelerometer and gyroscope samples the
+/// head tracker consumes, batched per sensor poll.
+///
+/// @details The listener is called on the sensor threads while the head
+///          tracker is resumed, so it must return quickly. Once this function
+///          returns, the previous listener is not called anymore. Only
+///          supported on Android.
+///
+/// @pre @p head_tracker Must not be null.
+/// When it is unmet, a call to this function results in a no-op.
+///
+/// @param[in]      head_tracker            Head tracker object pointer.
+/// @param[in]      listener                Listener, or null to remove it.
+/// @param[in]      user_data               Pointer passed to the listener.
+void CardboardHeadTracker_setImuSampleListener(
+    CardboardHeadTracker* head_tracker, CardboardImuSampleListener listener,
+    void* user_data);
+
 /// @}
 
 /////////////////////////////////////////////////////////////////////////////
@@ -108,6 +108,9 @@ void SensorEventProducer<AccelerometerData>::WorkFn() {
         (*on_event_callback_)(event);
       }
     }
+    if (on_batch_callback_ && !sensor_events_vec.empty()) {
+      (*on_batch_callback_)(sensor_events_vec);
+    }
   }
   sensor.Stop();
 }
@@ -133,6 +136,9 @@ void SensorEventProducer<GyroscopeData>::WorkFn() {
         (*on_event_callback_)(event);
       }
     }
+    if (on_batch_callback_ && !sensor_events_vec.empty()) {
+      (*on_batch_callback_)(sensor_events_vec);
+    }
   }
   sensor.Stop();
 }
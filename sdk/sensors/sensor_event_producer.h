@@ -18,6 +18,7 @@
 
 #include <functional>
 #include <memory>
+#include <vector>
 
 namespace cardboard {
 
@@ -47,6 +48,15 @@ class SensorEventProducer {
   // running. This method blocks until the sensor capture thread is finished.
   void StopSensorPolling();
 
+  // Registers a callback receiving all events of one sensor poll at once, after
+  // they went to the event callback. Must be called before polling starts.
+  // Only Android delivers batches.
+  void SetBatchCallback(
+      const std::function<void(const std::vector<DataType>&)>*
+          on_batch_callback) {
+    on_batch_callback_ = on_batch_callback;
+  }
+
  private:
   // Internal function to start sensor polling with the assumption that the lock
   // has already been obtained. Not implemented for iOS.
@@ -70,6 +80,10 @@ class SensorEventProducer {
 
   // Callbacks to call when OnEvent() is called.
   const std::function<void(DataType)>* on_event_callback_;
+
+  // Callback to call with the events of each poll.
+  const std::function<void(const std::vector<DataType>&)>* on_batch_callback_ =
+      nullptr;
 };
 
 }  // namespace cardboard